@@ -0,0 +1,32 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+
+/**
+ * The embedded object of NestedModel, marshalled by a registered adapter.
+ */
+public class AddressModel implements HasUuid {
+    private String uuid;
+    private String street;
+    private String city;
+    private String postalCode;
+
+    public AddressModel() {
+    }
+
+    public AddressModel( int seed ) {
+        this.street = seed + " Main Street";
+        this.city = "city-" + ( seed % 50 );
+        this.postalCode = String.format( "%05d", seed % 100000 );
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public void setUuid( String uuid ) {
+        this.uuid = uuid;
+    }
+}
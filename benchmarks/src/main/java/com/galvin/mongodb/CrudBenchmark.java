@@ -0,0 +1,134 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the CrudUtil round trips against a live mongod or an
+ * InMemoryDocumentStore, as the backend parameter selects. The mongod is
+ * taken from the mongo.host and mongo.port system properties (default
+ * 127.0.0.1:27017), and the benchmarks work on a scratch database,
+ * MongoUtilsBenchmarks. Either store is filled with FlatModel documents
+ * before each trial and emptied after it.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class CrudBenchmark {
+    private static final String DB_NAME = "MongoUtilsBenchmarks";
+
+    @Param( { "mongo", "memory" } )
+    public String backend;
+
+    @Param( { "10000" } )
+    public int documents;
+
+    @Param( { "100" } )
+    public int batchSize;
+
+    @Param( { "DELETE_AND_INSERT", "UPSERT" } )
+    public StoreMode storeMode;
+
+    private CrudUtil<FlatModel> crudUtil;
+    private List<String> uuids;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception {
+        DocumentStore store;
+        if( "memory".equals( backend ) ) {
+            store = new InMemoryDocumentStore( "FlatModel" );
+        }
+        else {
+            String host = System.getProperty( "mongo.host", "127.0.0.1" );
+            int port = Integer.getInteger( "mongo.port", MongoDbConnection.DEFAULT_MONGO_DB_PORT );
+            DBCollection collection = CollectionUtil.getCollection( new MongoDbConnection( host, port, DB_NAME ), "FlatModel" );
+            store = new MongoDocumentStore( collection );
+        }
+
+        crudUtil = MarshallBenchmark.crudUtil( store, FlatModel.class );
+        crudUtil.setStoreMode( storeMode );
+        crudUtil.deleteAll( DeleteMode.TRUNCATE );
+        crudUtil.ensureIndexes();
+
+        List<FlatModel> models = new ArrayList( documents );
+        for( int index = 0; index < documents; index++ ) {
+            models.add( new FlatModel( index ) );
+        }
+        crudUtil.storeAll( models );
+
+        uuids = new ArrayList( documents );
+        for( FlatModel model : models ) {
+            uuids.add( model.getUuid() );
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws PersistenceException {
+        crudUtil.deleteAll( DeleteMode.TRUNCATE );
+    }
+
+    private String randomUuid() {
+        return uuids.get( ThreadLocalRandom.current().nextInt( uuids.size() ) );
+    }
+
+    /**
+     * Replaces an existing document, as an application saving an edited
+     * object would.
+     */
+    @Benchmark
+    public String store() throws PersistenceException {
+        int seed = ThreadLocalRandom.current().nextInt( documents );
+        FlatModel model = new FlatModel( seed );
+        model.setUuid( uuids.get( seed ) );
+        return crudUtil.store( model );
+    }
+
+    @Benchmark
+    public FlatModel retrieve() throws PersistenceException {
+        return crudUtil.retrieve( randomUuid() );
+    }
+
+    @Benchmark
+    public List<FlatModel> retrieveList() throws PersistenceException {
+        List<String> batch = new ArrayList( batchSize );
+        for( int index = 0; index < batchSize; index++ ) {
+            batch.add( randomUuid() );
+        }
+        return crudUtil.retrieve( batch );
+    }
+
+    /**
+     * An unindexed equality query matching one document in a hundred.
+     */
+    @Benchmark
+    public List<FlatModel> search() throws PersistenceException {
+        int category = ThreadLocalRandom.current().nextInt( 100 );
+        return crudUtil.search( new BasicDBObject( "category", "category-" + category ) );
+    }
+
+    @Benchmark
+    public List<String> getStrings() throws PersistenceException {
+        return crudUtil.getStrings( "name" );
+    }
+}
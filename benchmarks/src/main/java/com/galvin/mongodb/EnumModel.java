@@ -0,0 +1,46 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A document made up mostly of enum fields and a list of enums.
+ */
+public class EnumModel implements HasUuid {
+    public enum Color { RED, ORANGE, YELLOW, GREEN, BLUE, INDIGO, VIOLET }
+    public enum Size { SMALL, MEDIUM, LARGE }
+    public enum Status { NEW, ACTIVE, SUSPENDED, CLOSED }
+
+    private String uuid;
+    private Color primary;
+    private Color secondary;
+    private Size size;
+    private Status status;
+    private List<Color> palette;
+
+    public EnumModel() {
+    }
+
+    public EnumModel( int seed ) {
+        Color[] colors = Color.values();
+        this.primary = colors[ seed % colors.length ];
+        this.secondary = colors[ ( seed + 3 ) % colors.length ];
+        this.size = Size.values()[ seed % Size.values().length ];
+        this.status = Status.values()[ seed % Status.values().length ];
+        this.palette = new ArrayList();
+        for( int index = 0; index < 10; index++ ) {
+            palette.add( colors[ ( seed + index ) % colors.length ] );
+        }
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public void setUuid( String uuid ) {
+        this.uuid = uuid;
+    }
+}
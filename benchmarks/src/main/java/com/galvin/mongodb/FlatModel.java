@@ -0,0 +1,44 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+
+/**
+ * A document of scalar fields only.
+ */
+public class FlatModel implements HasUuid {
+    private String uuid;
+    private String name;
+    private String description;
+    private String category;
+    private int count;
+    private long timestamp;
+    private double price;
+    private boolean active;
+
+    public FlatModel() {
+    }
+
+    public FlatModel( int seed ) {
+        this.name = "name-" + seed;
+        this.description = "A flat benchmark document, number " + seed;
+        this.category = "category-" + ( seed % 100 );
+        this.count = seed;
+        this.timestamp = 1500000000000L + seed;
+        this.price = seed * 1.25;
+        this.active = seed % 2 == 0;
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public void setUuid( String uuid ) {
+        this.uuid = uuid;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+}
@@ -0,0 +1,41 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A document dominated by lists of strings, numbers and adapted objects.
+ */
+public class ListModel implements HasUuid {
+    private String uuid;
+    private List<String> tags;
+    private List<Integer> scores;
+    private List<AddressModel> addresses;
+
+    public ListModel() {
+    }
+
+    public ListModel( int seed ) {
+        this.tags = new ArrayList();
+        this.scores = new ArrayList();
+        this.addresses = new ArrayList();
+        for( int index = 0; index < 50; index++ ) {
+            tags.add( "tag-" + ( seed + index ) );
+            scores.add( seed * index );
+        }
+        for( int index = 0; index < 5; index++ ) {
+            addresses.add( new AddressModel( seed + index ) );
+        }
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public void setUuid( String uuid ) {
+        this.uuid = uuid;
+    }
+}
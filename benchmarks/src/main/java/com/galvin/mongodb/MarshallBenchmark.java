@@ -0,0 +1,89 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBObject;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures CrudUtil.marshall() and unmarshall() in isolation. No database
+ * is needed: the CrudUtils are built over empty in-memory stores.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 2 )
+public class MarshallBenchmark {
+    @Param( { "flat", "nested", "enums", "lists" } )
+    public String model;
+
+    private CrudUtil crudUtil;
+    private HasUuid target;
+    private BasicDBObject document;
+
+    @Setup
+    public void setUp() throws PersistenceException {
+        switch( model ) {
+            case "flat":
+                crudUtil = crudUtil( FlatModel.class );
+                target = new FlatModel( 42 );
+                break;
+            case "nested":
+                crudUtil = crudUtil( NestedModel.class );
+                target = new NestedModel( 42 );
+                break;
+            case "enums":
+                crudUtil = crudUtil( EnumModel.class );
+                target = new EnumModel( 42 );
+                break;
+            case "lists":
+                crudUtil = crudUtil( ListModel.class );
+                target = new ListModel( 42 );
+                break;
+            default:
+                throw new IllegalArgumentException( "Unknown model: " + model );
+        }
+
+        // the first call assigns uuids and compiles the codecs
+        document = crudUtil.marshall( target );
+        crudUtil.unmarshall( document );
+    }
+
+    @Benchmark
+    public BasicDBObject marshall() throws PersistenceException {
+        return crudUtil.marshall( target );
+    }
+
+    @Benchmark
+    public Object unmarshall() throws PersistenceException {
+        return crudUtil.unmarshall( document );
+    }
+
+    /**
+     * Builds a CrudUtil for the class, with AddressModel registered as an
+     * adapter the way an application would register embedded types.
+     */
+    static CrudUtil crudUtil( Class type ) {
+        return crudUtil( new InMemoryDocumentStore( type.getSimpleName() ), type );
+    }
+
+    static CrudUtil crudUtil( DocumentStore store, Class type ) {
+        CrudUtil crudUtil = new CrudUtil( store, type.getCanonicalName() );
+        crudUtil.register( AddressModel.class.getCanonicalName(),
+                           new CrudUtil( new InMemoryDocumentStore( "AddressModel" ), AddressModel.class.getCanonicalName() ) );
+        return crudUtil;
+    }
+}
@@ -0,0 +1,32 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+
+/**
+ * A document with two embedded AddressModel objects.
+ */
+public class NestedModel implements HasUuid {
+    private String uuid;
+    private String name;
+    private AddressModel home;
+    private AddressModel work;
+
+    public NestedModel() {
+    }
+
+    public NestedModel( int seed ) {
+        this.name = "name-" + seed;
+        this.home = new AddressModel( seed );
+        this.work = new AddressModel( seed + 1 );
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public void setUuid( String uuid ) {
+        this.uuid = uuid;
+    }
+}
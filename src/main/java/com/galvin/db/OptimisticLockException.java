@@ -0,0 +1,36 @@
+package com.galvin.db;
+
+/**
+ * Thrown when a versioned object could not be stored because another
+ * writer changed the stored copy since the object was read.
+ */
+public class OptimisticLockException
+extends PersistenceException
+{
+    private String uuid;
+    private long expectedVersion;
+
+    public OptimisticLockException( String uuid, long expectedVersion )
+    {
+        super( "Object [" + uuid + "] was modified concurrently; expected stored version " + expectedVersion );
+        this.uuid = uuid;
+        this.expectedVersion = expectedVersion;
+    }
+
+    public OptimisticLockException( String uuid, long expectedVersion, Throwable cause )
+    {
+        super( "Object [" + uuid + "] was modified concurrently; expected stored version " + expectedVersion, cause );
+        this.uuid = uuid;
+        this.expectedVersion = expectedVersion;
+    }
+
+    public String getUuid()
+    {
+        return uuid;
+    }
+
+    public long getExpectedVersion()
+    {
+        return expectedVersion;
+    }
+}
@@ -0,0 +1,20 @@
+package com.galvin.db;
+
+/**
+ * Wraps a PersistenceException where the calling interface does not allow
+ * checked exceptions, such as Iterator.next().
+ */
+public class UncheckedPersistenceException
+extends RuntimeException
+{
+    public UncheckedPersistenceException( PersistenceException cause )
+    {
+        super( cause.getMessage(), cause );
+    }
+
+    @Override
+    public PersistenceException getCause()
+    {
+        return (PersistenceException)super.getCause();
+    }
+}
@@ -1,21 +1,45 @@
 package com.galvin.db;
 
-import java.util.UUID;
 import org.apache.commons.lang3.StringUtils;
 
 public final class UuidFactory
 {
+    private static volatile UuidGenerator defaultGenerator = UuidGenerators.SECURE_RANDOM;
+    
     private UuidFactory(){}
     
     public static void ensureUuid( HasUuid uuid ){
+        ensureUuid( uuid, defaultGenerator );
+    }
+    
+    /**
+     * Assigns a uuid from the given generator if the object has none. A
+     * null generator means the default generator.
+     */
+    public static void ensureUuid( HasUuid uuid, UuidGenerator generator ){
         if( uuid != null ){
             if( StringUtils.isBlank( uuid.getUuid() ) ){
-                uuid.setUuid( generateUuid() );
+                uuid.setUuid( generator == null ? generateUuid() : generator.generateUuid() );
             }
         }
     }
     
     public static String generateUuid(){
-        return UUID.randomUUID().toString();
+        return defaultGenerator.generateUuid();
+    }
+    
+    public static UuidGenerator getDefaultGenerator(){
+        return defaultGenerator;
+    }
+    
+    /**
+     * Sets the generator used by generateUuid() and by every CrudUtil that
+     * has no generator of its own.
+     */
+    public static void setDefaultGenerator( UuidGenerator generator ){
+        if( generator == null ){
+            throw new IllegalArgumentException( "The default uuid generator cannot be null" );
+        }
+        defaultGenerator = generator;
     }
 }
@@ -0,0 +1,10 @@
+package com.galvin.db;
+
+/**
+ * Generates new uuids for objects that do not yet have one.
+ * Implementations must be safe to call from many threads at once.
+ */
+public interface UuidGenerator
+{
+    public String generateUuid();
+}
@@ -0,0 +1,67 @@
+package com.galvin.db;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The standard uuid generators.
+ */
+public enum UuidGenerators
+implements UuidGenerator
+{
+    /**
+     * Random (version 4) uuids from UUID.randomUUID(). Unpredictable, but
+     * every thread shares a single SecureRandom.
+     */
+    SECURE_RANDOM
+    {
+        @Override
+        public String generateUuid()
+        {
+            return UUID.randomUUID().toString();
+        }
+    },
+
+    /**
+     * Random (version 4) uuids drawn from each thread's own random number
+     * generator, so concurrent callers never contend. The values are not
+     * cryptographically secure and should not be used where a uuid must
+     * be unguessable.
+     */
+    FAST_RANDOM
+    {
+        @Override
+        public String generateUuid()
+        {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long mostSigBits = ( random.nextLong() & ~0xF000L ) | 0x4000L;
+            return new UUID( mostSigBits, variant( random.nextLong() ) ).toString();
+        }
+    },
+
+    /**
+     * Time-ordered (version 7) uuids: a 48-bit millisecond timestamp
+     * followed by 74 random bits from the thread's own generator. Ids
+     * generated later sort later, so inserts land at the right-hand edge
+     * of the uuid index instead of scattering across it. Ids generated in
+     * the same millisecond are not ordered among themselves.
+     */
+    TIME_ORDERED
+    {
+        @Override
+        public String generateUuid()
+        {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long mostSigBits = ( System.currentTimeMillis() << 16 ) | 0x7000L | ( random.nextLong() & 0x0FFFL );
+            return new UUID( mostSigBits, variant( random.nextLong() ) ).toString();
+        }
+    };
+
+    /**
+     * Sets the IETF variant bits of the low half of a uuid.
+     */
+    private static long variant( long leastSigBits )
+    {
+        return ( leastSigBits & 0x3FFFFFFFFFFFFFFFL ) | 0x8000000000000000L;
+    }
+}
@@ -0,0 +1,22 @@
+package com.galvin.mongodb;
+
+/**
+ * How a CrudUtil registered as an adapter writes the nested objects it
+ * handles into the documents of its parent.
+ */
+public enum AdapterMode {
+    /**
+     * The whole object is embedded in the parent document. It is stored,
+     * loaded and queried along with its parent.
+     */
+    EMBEDDED,
+
+    /**
+     * Only the object's type and uuid are written, and the object itself
+     * lives in the adapter's own collection. It must be stored through the
+     * adapter; storing the parent does not store it. References are loaded
+     * in batches, one query per adapter for a whole result set, and an
+     * object referenced many times is loaded once.
+     */
+    REFERENCE
+}
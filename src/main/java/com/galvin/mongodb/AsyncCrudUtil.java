@@ -0,0 +1,283 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBObject;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An asynchronous front end for a CrudUtil. Every operation returns a
+ * CompletableFuture and runs the matching CrudUtil method on an executor,
+ * so marshalling and query semantics are exactly those of the wrapped
+ * CrudUtil.
+ * 
+ * At most maxInFlight operations run at once; the rest wait in a queue
+ * without holding a thread, so thousands of outstanding requests need only
+ * maxInFlight threads. If maxQueued is positive, operations submitted
+ * while the queue is full fail with RejectedExecutionException.
+ *
+ * An operation gives up its place before its future is completed, so
+ * stages chained on the future may start and wait for other operations.
+ * With an executor that runs tasks on the calling thread, though, an
+ * operation submitted from a chained stage only starts once that stage
+ * returns, so the stage must not wait for it.
+ */
+public class AsyncCrudUtil<T extends HasUuid> implements AutoCloseable {
+    private final CrudUtil<T> crudUtil;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final int maxInFlight;
+    private final int maxQueued;
+
+    private final ConcurrentLinkedQueue<Task> pending = new ConcurrentLinkedQueue();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    /**
+     * Creates an AsyncCrudUtil with its own pool of maxInFlight daemon
+     * threads, which close() shuts down.
+     */
+    public AsyncCrudUtil( CrudUtil<T> crudUtil, int maxInFlight ) {
+        this( crudUtil, Executors.newFixedThreadPool( maxInFlight, new DaemonThreadFactory() ), maxInFlight, 0, true );
+    }
+
+    /**
+     * Creates an AsyncCrudUtil that runs operations on the given executor,
+     * for example one shared with the rest of the application.
+     */
+    public AsyncCrudUtil( CrudUtil<T> crudUtil, Executor executor, int maxInFlight, int maxQueued ) {
+        this( crudUtil, executor, maxInFlight, maxQueued, false );
+    }
+
+    private AsyncCrudUtil( CrudUtil<T> crudUtil, Executor executor, int maxInFlight, int maxQueued, boolean ownsExecutor ) {
+        if( maxInFlight < 1 ) {
+            throw new IllegalArgumentException( "maxInFlight must be positive: " + maxInFlight );
+        }
+
+        this.crudUtil = crudUtil;
+        this.executor = executor;
+        this.ownExecutor = ownsExecutor ? (ExecutorService)executor : null;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+    }
+
+    ////////////////
+    // operations //
+    ////////////////
+
+    public CompletableFuture<String> store( T target ) {
+        return submit( () -> crudUtil.store( target ) );
+    }
+
+    public CompletableFuture<List<BulkItemResult>> storeAll( Collection<T> targets ) {
+        return submit( () -> crudUtil.storeAll( targets ) );
+    }
+
+    public CompletableFuture<T> retrieve( String uuid ) {
+        return submit( () -> crudUtil.retrieve( uuid ) );
+    }
+
+    public CompletableFuture<T> retrieve( String uuid, String fieldName ) {
+        return submit( () -> crudUtil.retrieve( uuid, fieldName ) );
+    }
+
+    public CompletableFuture<List<T>> retrieve( List<String> uuids ) {
+        return submit( () -> crudUtil.retrieve( uuids ) );
+    }
+
+    public CompletableFuture<List<T>> retrieveAll() {
+        return submit( () -> crudUtil.retrieveAll() );
+    }
+
+    public CompletableFuture<List<T>> search( BasicDBObject query ) {
+        return submit( () -> crudUtil.search( query ) );
+    }
+
+    public CompletableFuture<Boolean> exists( String uuid ) {
+        return submit( () -> crudUtil.exists( uuid ) );
+    }
+
+    public CompletableFuture<Boolean> exists( String uuid, String fieldName ) {
+        return submit( () -> crudUtil.exists( uuid, fieldName ) );
+    }
+
+    public CompletableFuture<Boolean> delete( String uuid ) {
+        return submit( () -> crudUtil.delete( uuid ) );
+    }
+
+    public CompletableFuture<Boolean> delete( List<String> uuids ) {
+        return submit( () -> crudUtil.delete( uuids ) );
+    }
+
+    ///////////////
+    // execution //
+    ///////////////
+
+    private <R> CompletableFuture<R> submit( Operation<R> operation ) {
+        CompletableFuture<R> future = new CompletableFuture();
+
+        if( queued.incrementAndGet() > maxQueued && maxQueued > 0 ) {
+            queued.decrementAndGet();
+            future.completeExceptionally( new RejectedExecutionException( "Too many queued operations: " + maxQueued ) );
+            return future;
+        }
+
+        pending.add( new Task<>( operation, future ) );
+        drain();
+        return future;
+    }
+
+    /**
+     * Starts queued operations until maxInFlight are running or the queue
+     * is empty. Called after every submission and every completion. Only
+     * one thread drains at a time; a call made while another is draining,
+     * including one from a task the executor ran on the draining thread,
+     * makes it go round again instead of recursing.
+     */
+    private void drain() {
+        if( drainRequests.getAndIncrement() != 0 ) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            startPending();
+            missed = drainRequests.addAndGet( -missed );
+        }
+        while( missed != 0 );
+    }
+
+    private void startPending() {
+        while( !pending.isEmpty() ) {
+            int running = inFlight.get();
+            if( running >= maxInFlight ) {
+                return;
+            }
+            if( !inFlight.compareAndSet( running, running + 1 ) ) {
+                continue;
+            }
+
+            Task task = pending.poll();
+            if( task == null ) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+
+            try {
+                executor.execute( task );
+            }
+            catch( RuntimeException ex ) {
+                // a task that already ran has given its place back itself
+                if( !task.started ) {
+                    inFlight.decrementAndGet();
+                    task.fail( ex );
+                }
+            }
+        }
+    }
+
+    public CrudUtil<T> getCrudUtil() {
+        return crudUtil;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * The number of operations currently running.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * The number of operations waiting to run.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Shuts down the executor if this AsyncCrudUtil created it. Operations
+     * already running are allowed to finish.
+     */
+    @Override
+    public void close() {
+        if( ownExecutor != null ) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    private interface Operation<R> {
+        R call() throws PersistenceException;
+    }
+
+    private final class Task<R> implements Runnable {
+        private final Operation<R> operation;
+        private final CompletableFuture<R> future;
+        private volatile boolean started = false;
+
+        private Task( Operation<R> operation, CompletableFuture<R> future ) {
+            this.operation = operation;
+            this.future = future;
+        }
+
+        /**
+         * Runs the operation and gives up its place before completing the
+         * future, so that stages chained on the future do not run while
+         * holding it.
+         */
+        @Override
+        public void run() {
+            started = true;
+            R result = null;
+            Throwable failure = null;
+            try {
+                result = operation.call();
+            }
+            catch( Throwable t ) {
+                failure = t;
+            }
+
+            try {
+                inFlight.decrementAndGet();
+                drain();
+            }
+            finally {
+                if( failure != null ) {
+                    future.completeExceptionally( failure );
+                }
+                else {
+                    future.complete( result );
+                }
+            }
+        }
+
+        private void fail( Throwable t ) {
+            future.completeExceptionally( t );
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private static final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread( Runnable runnable ) {
+            Thread thread = new Thread( runnable, "AsyncCrudUtil-" + counter.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.DBObject;
+import java.util.List;
+
+/**
+ * Turns a batch of documents read from the database into objects, in the
+ * same order, so that the objects they reference can be loaded for the
+ * batch as a whole.
+ */
+interface BatchDecoder<T> {
+    List<T> decode( List<DBObject> records ) throws PersistenceException;
+}
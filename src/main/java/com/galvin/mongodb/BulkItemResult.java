@@ -0,0 +1,43 @@
+package com.galvin.mongodb;
+
+/**
+ * The outcome of writing a single object as part of a bulk operation.
+ * Results are returned in the same order as the objects that were passed
+ * in.
+ */
+public class BulkItemResult {
+    private final String uuid;
+    private final boolean success;
+    private final String errorMessage;
+
+    public BulkItemResult( String uuid, boolean success, String errorMessage ) {
+        this.uuid = uuid;
+        this.success = success;
+        this.errorMessage = errorMessage;
+    }
+
+    public static BulkItemResult success( String uuid ) {
+        return new BulkItemResult( uuid, true, null );
+    }
+
+    public static BulkItemResult failure( String uuid, String errorMessage ) {
+        return new BulkItemResult( uuid, false, errorMessage );
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    @Override
+    public String toString() {
+        return success ? uuid + ": ok" : uuid + ": " + errorMessage;
+    }
+}
@@ -0,0 +1,51 @@
+package com.galvin.mongodb;
+
+/**
+ * Settings for CrudUtil.storeAll() and CrudUtil.deleteAll(Collection).
+ * Objects are written in chunks of chunkSize documents, each chunk being
+ * a single bulk write. Unordered bulk writes let the server apply a chunk
+ * in any order and keep going past failed items; ordered writes stop at
+ * the first failure, and no further chunks are sent.
+ */
+public class BulkOptions {
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean ordered = false;
+    private boolean parallelMarshalling = true;
+
+    public BulkOptions() {
+    }
+
+    public BulkOptions( int chunkSize, boolean ordered ) {
+        setChunkSize( chunkSize );
+        this.ordered = ordered;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize( int chunkSize ) {
+        if( chunkSize < 1 ) {
+            throw new IllegalArgumentException( "Chunk size must be positive: " + chunkSize );
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void setOrdered( boolean ordered ) {
+        this.ordered = ordered;
+    }
+
+    public boolean isParallelMarshalling() {
+        return parallelMarshalling;
+    }
+
+    public void setParallelMarshalling( boolean parallelMarshalling ) {
+        this.parallelMarshalling = parallelMarshalling;
+    }
+}
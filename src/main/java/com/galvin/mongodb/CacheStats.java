@@ -0,0 +1,71 @@
+package com.galvin.mongodb;
+
+/**
+ * A point-in-time snapshot of an ObjectCache's counters.
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final long invalidations;
+    private final int size;
+
+    public CacheStats( long hits, long misses, long evictions, long expirations, long invalidations, int size ) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.invalidations = invalidations;
+        this.size = size;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getRequests() {
+        return hits + misses;
+    }
+
+    public double getHitRate() {
+        long requests = getRequests();
+        return requests == 0 ? 0 : (double)hits / requests;
+    }
+
+    /**
+     * Entries discarded to stay within the size bound.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Entries discarded because their time to live ran out.
+     */
+    public long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * Entries discarded because the object was stored or deleted.
+     */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + " misses=" + misses + " hitRate=" + getHitRate() +
+               " evictions=" + evictions + " expirations=" + expirations +
+               " invalidations=" + invalidations + " size=" + size;
+    }
+}
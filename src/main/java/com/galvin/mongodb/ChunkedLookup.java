@@ -0,0 +1,154 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * Runs a lookup over a list of ids in chunks of LookupOptions.getChunkSize(),
+ * up to getParallelism() chunks at a time. Workers share the caller's
+ * CrudMetrics scope, so their round trips count towards the operation that
+ * started them.
+ */
+final class ChunkedLookup {
+    private ChunkedLookup() {
+    }
+
+    interface ChunkTask<R> {
+        R run( String[] ids ) throws PersistenceException;
+    }
+
+    /**
+     * The ids without duplicates, in the order they first appear.
+     */
+    static List<String> distinct( List<String> ids ) {
+        return new ArrayList( new LinkedHashSet( ids ) );
+    }
+
+    /**
+     * Runs the task over each chunk of ids and returns the results in
+     * chunk order. If stop is not null and accepts a result, the chunks
+     * still running are cancelled and only the results so far are
+     * returned.
+     */
+    static <R> List<R> run( List<String> ids, LookupOptions options, ChunkTask<R> task, Predicate<R> stop ) throws PersistenceException {
+        String[] all = ids.toArray( new String[ ids.size() ] );
+        int chunkSize = options.getChunkSize();
+        int chunks = ( all.length + chunkSize - 1 ) / chunkSize;
+        if( chunks <= 1 ) {
+            return Collections.singletonList( task.run( all ) );
+        }
+
+        if( options.getParallelism() == 1 ) {
+            List<R> result = new ArrayList( chunks );
+            for( int index = 0; index < chunks; index++ ) {
+                R value = task.run( chunk( all, index, chunkSize ) );
+                result.add( value );
+                if( stop != null && stop.test( value ) ) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        ExecutorService executor = options.getExecutor();
+        boolean ownExecutor = executor == null;
+        if( ownExecutor ) {
+            executor = new ForkJoinPool( Math.min( options.getParallelism(), chunks ) );
+        }
+
+        CrudMetrics.Scope scope = CrudMetrics.scope();
+        CompletionService<Object[]> completion = new ExecutorCompletionService( executor );
+        List<Future<Object[]>> submitted = new ArrayList( chunks );
+        Object[] results = new Object[ chunks ];
+        int completed = 0;
+
+        try {
+            while( submitted.size() < Math.min( options.getParallelism(), chunks ) ) {
+                submitted.add( submit( completion, task, all, submitted.size(), chunkSize, scope ) );
+            }
+
+            while( completed < submitted.size() ) {
+                Object[] done = await( take( completion ) );
+                completed++;
+                results[ (Integer)done[ 0 ] ] = done[ 1 ];
+                if( stop != null && stop.test( (R)done[ 1 ] ) ) {
+                    break;
+                }
+                if( submitted.size() < chunks ) {
+                    submitted.add( submit( completion, task, all, submitted.size(), chunkSize, scope ) );
+                }
+            }
+
+            List<R> result = new ArrayList( chunks );
+            for( Object value : results ) {
+                if( value != null ) {
+                    result.add( (R)value );
+                }
+            }
+            return result;
+        }
+        finally {
+            for( Future<Object[]> future : submitted ) {
+                future.cancel( true );
+            }
+            if( ownExecutor ) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static String[] chunk( String[] all, int index, int chunkSize ) {
+        return Arrays.copyOfRange( all, index * chunkSize, Math.min( all.length, ( index + 1 ) * chunkSize ) );
+    }
+
+    private static <R> Future<Object[]> submit( CompletionService<Object[]> completion, ChunkTask<R> task, String[] all,
+                                                int index, int chunkSize, CrudMetrics.Scope scope ) {
+        String[] ids = chunk( all, index, chunkSize );
+        return completion.submit( () -> {
+            CrudMetrics.Scope previous = CrudMetrics.enter( scope );
+            try {
+                return new Object[]{ index, task.run( ids ) };
+            }
+            finally {
+                CrudMetrics.enter( previous );
+            }
+        } );
+    }
+
+    private static Future<Object[]> take( CompletionService<Object[]> completion ) throws PersistenceException {
+        try {
+            return completion.take();
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException( "Interrupted during chunked lookup", ex );
+        }
+    }
+
+    private static Object[] await( Future<Object[]> future ) throws PersistenceException {
+        try {
+            return future.get();
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException( "Interrupted during chunked lookup", ex );
+        }
+        catch( ExecutionException ex ) {
+            if( ex.getCause() instanceof PersistenceException ) {
+                throw (PersistenceException)ex.getCause();
+            }
+            throw new PersistenceException( "Error in chunked lookup", ex.getCause() );
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.galvin.mongodb;
+
+/**
+ * Stops callers from waiting on a database that is known to be down.
+ * After failureThreshold consecutive failures the breaker opens and every
+ * request is refused immediately. Once openMillis have passed, a single
+ * trial request is let through: if it succeeds the breaker closes, and if
+ * it fails the breaker opens again.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+
+    public CircuitBreaker() {
+        this( 5, 10000 );
+    }
+
+    public CircuitBreaker( int failureThreshold, long openMillis ) {
+        if( failureThreshold < 1 ) {
+            throw new IllegalArgumentException( "Failure threshold must be positive: " + failureThreshold );
+        }
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Returns true if the caller may try the database now.
+     */
+    public synchronized boolean allowRequest() {
+        switch( state ) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if( System.currentTimeMillis() - openedAt >= openMillis ) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // a trial request is already in progress
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if( state == State.HALF_OPEN || consecutiveFailures >= failureThreshold ) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+}
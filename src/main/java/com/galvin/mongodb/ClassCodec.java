@@ -0,0 +1,280 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A compiled description of a persistent class: its canonical name, its
+ * no-arg constructor and a table of field bindings, each backed by method
+ * handles. Building a codec performs all of the reflection CrudUtil needs,
+ * so marshalling and unmarshalling a document is reduced to table lookups
+ * and handle invocations.
+ */
+final class ClassCodec {
+    private static final MethodType GETTER_TYPE = MethodType.methodType( Object.class, Object.class );
+    private static final MethodType SETTER_TYPE = MethodType.methodType( void.class, Object.class, Object.class );
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType( Object.class );
+
+    private final Class type;
+    private final String canonicalName;
+    private final MethodHandle constructor;
+    private final FieldBinding[] recordedFields;
+    private final HashMap<String, FieldBinding> fieldsByName;
+    private final HashSet<String> ignoredNames;
+    private final HashMap<String, Integer> recordedIndexes;
+
+    private ClassCodec( Class type, MethodHandle constructor, FieldBinding[] recordedFields,
+                        HashMap<String, FieldBinding> fieldsByName, HashSet<String> ignoredNames ) {
+        this.type = type;
+        this.canonicalName = type.getCanonicalName();
+        this.constructor = constructor;
+        this.recordedFields = recordedFields;
+        this.fieldsByName = fieldsByName;
+        this.ignoredNames = ignoredNames;
+        this.recordedIndexes = new HashMap( recordedFields.length * 2 );
+        for( int index = 0; index < recordedFields.length; index++ ) {
+            recordedIndexes.put( recordedFields[ index ].getName(), index );
+        }
+    }
+
+    /**
+     * Builds the codec for the given class, including the fields it
+     * inherits. Static, transient and synthetic fields are ignored; fields
+     * whose names appear in excludedFieldNames can still be read but are
+     * never written.
+     */
+    static ClassCodec compile( Class type, Collection<String> excludedFieldNames ) throws PersistenceException {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+            List<Class> hierarchy = new ArrayList();
+            for( Class current = type; current != null && current != Object.class; current = current.getSuperclass() ) {
+                hierarchy.add( 0, current );
+            }
+
+            LinkedHashMap<String, Field> fields = new LinkedHashMap();
+            HashSet<String> ignoredNames = new HashSet();
+            for( Class current : hierarchy ) {
+                for( Field field : current.getDeclaredFields() ) {
+                    int modifiers = field.getModifiers();
+                    if( Modifier.isStatic( modifiers ) && !field.isSynthetic() ) {
+                        ignoredNames.add( field.getName() );
+                    }
+                    else if( !Modifier.isTransient( modifiers ) &&
+                             !field.isSynthetic() ) {
+                        fields.put( field.getName(), field );
+                    }
+                }
+            }
+            ignoredNames.removeAll( fields.keySet() );
+
+            HashMap<String, FieldBinding> fieldsByName = new HashMap( fields.size() * 2 );
+            List<FieldBinding> recorded = new ArrayList( fields.size() );
+            for( Field field : fields.values() ) {
+                field.setAccessible( true );
+                FieldBinding binding = new FieldBinding( field,
+                                                         lookup.unreflectGetter( field ).asType( GETTER_TYPE ),
+                                                         lookup.unreflectSetter( field ).asType( SETTER_TYPE ) );
+                fieldsByName.put( binding.getName(), binding );
+
+                if( !excludedFieldNames.contains( binding.getName() ) ) {
+                    recorded.add( binding );
+                }
+            }
+
+            MethodHandle constructor = null;
+            if( !Modifier.isAbstract( type.getModifiers() ) && !type.isInterface() ) {
+                try {
+                    Constructor noArgs = type.getDeclaredConstructor();
+                    noArgs.setAccessible( true );
+                    constructor = lookup.unreflectConstructor( noArgs ).asType( CONSTRUCTOR_TYPE );
+                }
+                catch( NoSuchMethodException ex ) {
+                    // only needed when unmarshalling; reported by newInstance()
+                }
+            }
+
+            return new ClassCodec( type, constructor, recorded.toArray( new FieldBinding[ recorded.size() ] ), fieldsByName, ignoredNames );
+        }
+        catch( IllegalAccessException | RuntimeException ex ) {
+            throw new PersistenceException( "Unable to compile codec for " + type.getName(), ex );
+        }
+    }
+
+    Object newInstance() throws PersistenceException {
+        if( constructor == null ) {
+            throw new PersistenceException( "Class " + type.getName() + " has no no-argument constructor" );
+        }
+
+        try {
+            return (Object)constructor.invokeExact();
+        }
+        catch( Throwable t ) {
+            throw new PersistenceException( "Unable to instantiate " + type.getName(), t );
+        }
+    }
+
+    Class getType() {
+        return type;
+    }
+
+    String getCanonicalName() {
+        return canonicalName;
+    }
+
+    /**
+     * The fields that are written when marshalling, in declaration order,
+     * superclass fields first.
+     */
+    FieldBinding[] getRecordedFields() {
+        return recordedFields;
+    }
+
+    /**
+     * Returns the position of the named field in getRecordedFields(), or
+     * -1 if it is not written.
+     */
+    int getRecordedIndex( String name ) {
+        Integer index = recordedIndexes.get( name );
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the binding for the named field, or null if the class has no
+     * such persistent field.
+     */
+    FieldBinding getField( String name ) {
+        return fieldsByName.get( name );
+    }
+
+    /**
+     * Whether a stored key names a static field. Static fields are not
+     * persistent, but versions before the codec wrote the non-final ones,
+     * so documents may still hold them; they are skipped when reading.
+     */
+    boolean isIgnored( String name ) {
+        return ignoredNames.contains( name );
+    }
+
+    /**
+     * A single persistent field, with its accessors and whatever type
+     * information the marshaller needs precomputed.
+     */
+    static final class FieldBinding {
+        private final String name;
+        private final Class type;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+        private final Object[] enumConstants;
+        private final Object[] elementEnumConstants;
+
+        private FieldBinding( Field field, MethodHandle getter, MethodHandle setter ) {
+            this.name = field.getName();
+            this.type = field.getType();
+            this.getter = getter;
+            this.setter = setter;
+            this.enumConstants = type.isEnum() ? type.getEnumConstants() : null;
+            this.elementEnumConstants = findElementEnumConstants( field );
+        }
+
+        private static Object[] findElementEnumConstants( Field field ) {
+            if( List.class.isAssignableFrom( field.getType() ) ) {
+                Type generic = field.getGenericType();
+                if( generic instanceof ParameterizedType ) {
+                    Type[] arguments = ( (ParameterizedType)generic ).getActualTypeArguments();
+                    if( arguments.length == 1 && arguments[0] instanceof Class && ( (Class)arguments[0] ).isEnum() ) {
+                        return ( (Class)arguments[0] ).getEnumConstants();
+                    }
+                }
+            }
+            return null;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Class getType() {
+            return type;
+        }
+
+        boolean isEnum() {
+            return enumConstants != null;
+        }
+
+        /**
+         * Maps a stored ordinal back to its enum constant.
+         */
+        Object enumConstant( Object ordinal ) {
+            return enumConstants[ ( (Number)ordinal ).intValue() ];
+        }
+
+        /**
+         * The constants of the enum type held in this List field, or null if
+         * this is not a List of enums.
+         */
+        Object[] getElementEnumConstants() {
+            return elementEnumConstants;
+        }
+
+        Object get( Object target ) throws PersistenceException {
+            try {
+                return (Object)getter.invokeExact( target );
+            }
+            catch( Throwable t ) {
+                throw new PersistenceException( "Unable to read field " + name, t );
+            }
+        }
+
+        void set( Object target, Object value ) throws PersistenceException {
+            try {
+                setter.invokeExact( target, coerce( value ) );
+            }
+            catch( Throwable t ) {
+                throw new PersistenceException( "Unable to write field " + name, t );
+            }
+        }
+
+        /**
+         * BSON only has int32, int64 and double, so numbers read back from
+         * the database may not match the declared type of the field.
+         */
+        private Object coerce( Object value ) {
+            if( value instanceof Number && !type.isInstance( value ) ) {
+                Number number = (Number)value;
+                if( type == int.class || type == Integer.class ) {
+                    return number.intValue();
+                }
+                else if( type == long.class || type == Long.class ) {
+                    return number.longValue();
+                }
+                else if( type == double.class || type == Double.class ) {
+                    return number.doubleValue();
+                }
+                else if( type == float.class || type == Float.class ) {
+                    return number.floatValue();
+                }
+                else if( type == short.class || type == Short.class ) {
+                    return number.shortValue();
+                }
+                else if( type == byte.class || type == Byte.class ) {
+                    return number.byteValue();
+                }
+            }
+            return value;
+        }
+    }
+}
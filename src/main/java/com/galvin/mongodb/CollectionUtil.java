@@ -9,36 +9,73 @@ public class CollectionUtil {
     private static final Logger logger = LoggerFactory.getLogger( CollectionUtil.class );
 
     public static DBCollection getCollection( MongoDbConnection connection, String collectionName ) throws PersistenceException {
-        return CollectionUtil.getCollection( connection, collectionName, 0, 1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000,
-                                                                            1000 );
+        return CollectionUtil.getCollection( connection, collectionName, new RetryPolicy() );
+    }
+
+    /**
+     * Gets the collection, retrying as the policy allows while the database
+     * is unavailable. Failures are reported to the connection's circuit
+     * breaker; while it is open this fails immediately instead of waiting.
+     * Errors the policy does not consider retryable are thrown at once.
+     */
+    public static DBCollection getCollection( MongoDbConnection connection, String collectionName, RetryPolicy policy )
+        throws PersistenceException {
+        CircuitBreaker breaker = connection.getCircuitBreaker();
+        long deadline = System.nanoTime() + policy.getDeadlineMillis() * 1000000L;
+        Exception lastError = null;
+
+        for( int attempt = 0; ; attempt++ ) {
+            if( breaker != null && !breaker.allowRequest() ) {
+                throw new PersistenceException( "Collection " + collectionName + " is unavailable: circuit breaker is open.", lastError );
+            }
+
+            // every attempt reports its outcome, even if it throws an Error;
+            // otherwise a half-open breaker would wait for its trial forever
+            boolean reported = false;
+            try {
+                DBCollection result = connection.getCollection( collectionName );
+                if( breaker != null ) {
+                    breaker.recordSuccess();
+                    reported = true;
+                }
+                return result;
+            }
+            catch( Exception ex ) {
+                lastError = ex;
+                if( !policy.isRetryable( ex ) ) {
+                    // the server answered, so it is not down
+                    if( breaker != null ) {
+                        breaker.recordSuccess();
+                        reported = true;
+                    }
+                    throw new PersistenceException( "Unable to get collection " + collectionName, ex );
+                }
+                if( breaker != null ) {
+                    breaker.recordFailure();
+                    reported = true;
+                }
+            }
+            finally {
+                if( breaker != null && !reported ) {
+                    breaker.recordFailure();
+                }
+            }
+
+            long remaining = ( deadline - System.nanoTime() ) / 1000000L;
+            boolean outOfAttempts = policy.getMaxAttempts() > 0 && attempt + 1 >= policy.getMaxAttempts();
+            if( remaining <= 0 || outOfAttempts ) {
+                throw new PersistenceException( "Collection " + collectionName + " never became available.", lastError );
+            }
+
+            logger.debug( "Collection {} unavailable, retry {}", collectionName, attempt + 1 );
+            try {
+                Thread.sleep( Math.min( policy.getDelayMillis( attempt ), remaining ) );
+            }
+            catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException( "Interrupted while waiting for collection " + collectionName, ex );
+            }
+        }
     }
 
     public static DBCollection getCollection( MongoDbConnection connection, String collectionName, int... sleepTimes )
@@ -0,0 +1,23 @@
+package com.galvin.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares an index over several fields of a persistent class, in the
+ * order given. Prefix a field name with "-" to index it in descending
+ * order. The index is created by CrudUtil.ensureIndexes().
+ */
+@Retention( RetentionPolicy.RUNTIME )
+@Target( ElementType.TYPE )
+@Repeatable( CompoundIndexes.class )
+public @interface CompoundIndex {
+    String[] fields();
+
+    boolean unique() default false;
+
+    boolean sparse() default false;
+}
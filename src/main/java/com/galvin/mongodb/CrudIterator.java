@@ -0,0 +1,95 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.galvin.db.UncheckedPersistenceException;
+import com.mongodb.DBObject;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A lazy iterator over the results of a query. Documents are fetched from
+ * the server a batch at a time as the iterator advances and are
+ * unmarshalled a window at a time when next() needs them, so memory use
+ * does not depend on the size of the result, and the objects referenced by
+ * a window are loaded with one query per adapter. The underlying cursor is
+ * closed when the iterator is exhausted or closed.
+ * 
+ * Errors while unmarshalling are thrown as UncheckedPersistenceException.
+ */
+public class CrudIterator<T> implements Iterator<T>, Closeable {
+    private final DocumentCursor cursor;
+    private final BatchDecoder<T> decoder;
+    private final int windowSize;
+    private final ArrayDeque<T> decoded = new ArrayDeque();
+    private boolean closed = false;
+
+    CrudIterator( DocumentCursor cursor, BatchDecoder<T> decoder, int windowSize ) {
+        this.cursor = cursor;
+        this.decoder = decoder;
+        this.windowSize = windowSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if( !decoded.isEmpty() ) {
+            return true;
+        }
+        if( closed ) {
+            return false;
+        }
+
+        boolean result = cursor.hasNext();
+        if( !result ) {
+            close();
+        }
+        return result;
+    }
+
+    @Override
+    public T next() {
+        if( !hasNext() ) {
+            throw new NoSuchElementException();
+        }
+
+        if( decoded.isEmpty() ) {
+            List<DBObject> records = new ArrayList( windowSize );
+            while( records.size() < windowSize && cursor.hasNext() ) {
+                records.add( cursor.next() );
+            }
+
+            try {
+                decoded.addAll( decoder.decode( records ) );
+            }
+            catch( PersistenceException ex ) {
+                throw new UncheckedPersistenceException( ex );
+            }
+        }
+        return decoded.poll();
+    }
+
+    @Override
+    public void close() {
+        if( !closed ) {
+            closed = true;
+            cursor.close();
+        }
+        decoded.clear();
+    }
+
+    /**
+     * Returns a sequential stream over the remaining results. Closing the
+     * stream closes this iterator.
+     */
+    public Stream<T> stream() {
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize( this, Spliterator.ORDERED | Spliterator.NONNULL );
+        return StreamSupport.stream( spliterator, false ).onClose( this::close );
+    }
+}
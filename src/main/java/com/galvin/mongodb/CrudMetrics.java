@@ -0,0 +1,166 @@
+package com.galvin.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects latency histograms, failure counts and round trips for every
+ * CrudUtil it is given to, keyed by collection and class. Call
+ * CrudUtil.setMetrics() to start measuring; a CrudUtil without metrics pays
+ * nothing. The numbers can be read directly, through JMX once
+ * registerMBean() has been called, or forwarded to a MetricsListener.
+ *
+ * Only the outermost CrudUtil operation on a thread is recorded, so a bulk
+ * store that falls back to single stores counts as one BULK_STORE with all
+ * of their round trips.
+ */
+public class CrudMetrics implements CrudMetricsMXBean {
+    public static final String OBJECT_NAME_PREFIX = "com.galvin.mongodb:type=CrudMetrics,name=";
+
+    private static final ThreadLocal<Scope> SCOPE = ThreadLocal.withInitial( Scope::new );
+    private static final MetricsListener[] NO_LISTENERS = new MetricsListener[ 0 ];
+
+    private final ConcurrentHashMap<String, CrudUtilStats> stats = new ConcurrentHashMap();
+    private final CopyOnWriteArrayList<MetricsListener> listeners = new CopyOnWriteArrayList();
+    private volatile MetricsListener[] listenerArray = NO_LISTENERS;
+    private volatile boolean countingBytes;
+    private volatile ObjectName objectName;
+
+    /**
+     * Returns the stats for the given collection and class, creating them
+     * if necessary.
+     */
+    public CrudUtilStats getStats( String collection, String className ) {
+        String key = collection + '\u0000' + className;
+        CrudUtilStats result = stats.get( key );
+        if( result == null ) {
+            stats.putIfAbsent( key, new CrudUtilStats( this, collection, className ) );
+            result = stats.get( key );
+        }
+        return result;
+    }
+
+    public Collection<CrudUtilStats> getAllStats() {
+        return new ArrayList( stats.values() );
+    }
+
+    /**
+     * Records time spent waiting for a lock that guards the named
+     * collection, such as the one MongoDbConnection takes to create it.
+     */
+    public void lockWaited( String collection, long nanos ) {
+        getStats( collection, null ).lockWaited( nanos );
+    }
+
+    public void addListener( MetricsListener listener ) {
+        listeners.add( listener );
+        listenerArray = listeners.toArray( NO_LISTENERS );
+    }
+
+    public void removeListener( MetricsListener listener ) {
+        listeners.remove( listener );
+        listenerArray = listeners.toArray( NO_LISTENERS );
+    }
+
+    MetricsListener[] getListenerArray() {
+        return listenerArray;
+    }
+
+    @Override
+    public boolean isCountingBytes() {
+        return countingBytes;
+    }
+
+    /**
+     * Turns on measuring the BSON size of marshalled documents. Off by
+     * default, as it encodes every document a second time.
+     */
+    @Override
+    public void setCountingBytes( boolean countingBytes ) {
+        this.countingBytes = countingBytes;
+    }
+
+    @Override
+    public List<MetricsSummary> getSummaries() {
+        List<MetricsSummary> result = new ArrayList();
+        for( CrudUtilStats entry : stats.values() ) {
+            String collection = entry.getCollection();
+            String className = entry.getClassName();
+
+            for( OperationStats operation : entry.getOperations() ) {
+                result.add( MetricsSummary.of( collection, className, operation.getOperation().name(), operation.getLatency(),
+                                               operation.getFailures(), operation.getRoundTrips(), 0 ) );
+            }
+            addIfUsed( result, collection, className, "ROUND_TRIP", entry.getRoundTrips(), 0 );
+            addIfUsed( result, collection, className, "MARSHALL", entry.getMarshalling(), entry.getBytesMarshalled() );
+            addIfUsed( result, collection, className, "UNMARSHALL", entry.getUnmarshalling(), 0 );
+            addIfUsed( result, collection, className, "LOCK_WAIT", entry.getLockWaits(), 0 );
+        }
+        return result;
+    }
+
+    private static void addIfUsed( List<MetricsSummary> result, String collection, String className, String metric,
+                                   LatencyHistogram histogram, long bytes ) {
+        if( histogram.getCount() > 0 ) {
+            result.add( MetricsSummary.of( collection, className, metric, histogram, 0, 0, bytes ) );
+        }
+    }
+
+    @Override
+    public void reset() {
+        for( CrudUtilStats entry : stats.values() ) {
+            entry.reset();
+        }
+    }
+
+    /**
+     * Registers this object with the platform MBean server under
+     * com.galvin.mongodb:type=CrudMetrics,name=[name].
+     */
+    public void registerMBean( String name ) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName registered = new ObjectName( OBJECT_NAME_PREFIX + ObjectName.quote( name ) );
+        server.registerMBean( this, registered );
+        objectName = registered;
+    }
+
+    public void unregisterMBean() throws JMException {
+        ObjectName registered = objectName;
+        if( registered != null ) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( registered );
+            objectName = null;
+        }
+    }
+
+    static Scope scope() {
+        return SCOPE.get();
+    }
+
+    /**
+     * Makes scope current on this thread, so that a worker's round trips
+     * count towards the operation that started it, and returns the scope
+     * it replaced.
+     */
+    static Scope enter( Scope scope ) {
+        Scope previous = SCOPE.get();
+        SCOPE.set( scope );
+        return previous;
+    }
+
+    /**
+     * The operation currently being measured on this thread, and on any
+     * workers it has started.
+     */
+    static final class Scope {
+        volatile int depth;
+        final AtomicInteger roundTrips = new AtomicInteger();
+    }
+}
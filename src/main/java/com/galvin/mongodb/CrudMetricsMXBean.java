@@ -0,0 +1,19 @@
+package com.galvin.mongodb;
+
+import java.util.List;
+
+/**
+ * The JMX view of a CrudMetrics.
+ */
+public interface CrudMetricsMXBean {
+    /**
+     * One row per collection, class and measurement.
+     */
+    public List<MetricsSummary> getSummaries();
+
+    public boolean isCountingBytes();
+
+    public void setCountingBytes( boolean countingBytes );
+
+    public void reset();
+}
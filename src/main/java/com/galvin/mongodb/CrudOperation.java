@@ -0,0 +1,16 @@
+package com.galvin.mongodb;
+
+/**
+ * The CrudUtil operations that CrudMetrics times.
+ */
+public enum CrudOperation {
+    STORE,
+    UPDATE,
+    BULK_STORE,
+    RETRIEVE,
+    SEARCH,
+    EXISTS,
+    DELETE,
+    BULK_DELETE,
+    DELETE_ALL
+}
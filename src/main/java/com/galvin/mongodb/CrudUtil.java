@@ -2,81 +2,245 @@ package com.galvin.mongodb;
 
 import com.galvin.db.PersistenceException;
 import com.galvin.db.HasUuid;
+import com.galvin.db.OptimisticLockException;
+import com.galvin.db.UuidFactory;
+import com.galvin.db.UuidGenerator;
+import com.galvin.mongodb.ClassCodec.FieldBinding;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
+import com.mongodb.DBDecoderFactory;
 import com.mongodb.DBObject;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.UUID;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import org.apache.commons.lang3.StringUtils;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class CrudUtil<T extends HasUuid> {
     private static final Logger logger = LoggerFactory.getLogger( CrudUtil.class );
     
-    private static final String CANONICAL_NAME = "_____canonical_class_name_____";
+    static final String CANONICAL_NAME = "_____canonical_class_name_____";
+    static final String REFERENCE_KEY = "_ref";
     public static final String UUID_FIELD = "uuid";
-    private DBCollection collection;
+    private static final String NOT_EXECUTED = "Not executed: an earlier item in the ordered bulk write failed";
+    private static final int DEFAULT_DECODE_WINDOW = 100;
+    private final DocumentStore baseStore;
+    private volatile DocumentStore store;
     private String className;
     private HashMap<String, CrudUtil> adapters = new HashMap();
+    private HashMap<String, AdapterMode> adapterModes = new HashMap();
     private List<String> excludedFieldNames = new ArrayList();
 
+    private static final Object NO_ADAPTER = new Object();
+    private final ConcurrentHashMap<Class, Object> adaptersByClass = new ConcurrentHashMap();
+    private final ConcurrentHashMap<Class, Boolean> referencesByClass = new ConcurrentHashMap();
+    private final ConcurrentHashMap<Class, ClassCodec> codecs = new ConcurrentHashMap();
+    private volatile Class targetClass;
+    private StoreMode storeMode = StoreMode.DELETE_AND_INSERT;
+    private String versionField;
+    private volatile ObjectCache cache;
+    private volatile boolean directCodec = false;
+    private volatile TypeRegistry typeRegistry;
+    private volatile UuidRepresentation uuidRepresentation = UuidRepresentation.STRING;
+    private volatile UuidGenerator uuidGenerator;
+    private volatile CrudMetrics metrics;
+    private volatile CrudUtilStats stats;
+    private volatile SlowQueryMonitor slowQueryMonitor;
+    private volatile LookupOptions lookupOptions = new LookupOptions();
+    private volatile DirtyTracker tracker;
+    private volatile long snapshotCheck = -1;
+    private static final AtomicInteger configurationVersion = new AtomicInteger();
+    private final DBDecoderFactory decoderFactory = () -> new EntityDecoder( this );
+
     public CrudUtil( DBCollection collection, String className ) {
-        this.collection = collection;
+        this( new MongoDocumentStore( collection ), className );
+    }
+
+    /**
+     * Creates a CrudUtil and, if ensureIndexes is true, creates and verifies
+     * its indexes before returning.
+     */
+    public CrudUtil( DBCollection collection, String className, boolean ensureIndexes ) throws PersistenceException {
+        this( new MongoDocumentStore( collection ), className, ensureIndexes );
+    }
+
+    /**
+     * Creates a CrudUtil over any DocumentStore, such as an
+     * InMemoryDocumentStore.
+     */
+    public CrudUtil( DocumentStore store, String className ) {
+        this.baseStore = store;
+        this.store = store;
         this.className = className;
     }
 
-    private BasicDBObject marshall( T target ) throws PersistenceException {
-        try {
-            ensureUuid( target );
-            BasicDBObject result = new BasicDBObject();
-
-            Class clazz = target.getClass();
-            result.append( CANONICAL_NAME, clazz.getCanonicalName() );
-
-            Field[] fields = clazz.getDeclaredFields();
-            for( Field field : fields ) {
-                if( recordField( field ) ) {
-                    field.setAccessible( true );
-                    Object value = field.get( target );
-
-                    if( value != null ) {
-                        String name = field.getName();
-
-                        String fieldClassName = value.getClass().getCanonicalName();
-                        CrudUtil adapter = getAdapter( fieldClassName );
-                        
-                        if( adapter != null && value instanceof HasUuid ) {
-                            value = adapter.marshall( (HasUuid)value );
-                        }
-                        else if( value instanceof List ){
-                            value = marshall( (List)value );
-                        }
-                        else if( isEnum( field ) ) {
-                            Enum enumValue = (Enum)value;
-                            value = enumValue.ordinal();
-                        }
-
-                        result.append( name, value );
-                    }
+    public CrudUtil( DocumentStore store, String className, boolean ensureIndexes ) throws PersistenceException {
+        this( store, className );
+        if( ensureIndexes ) {
+            ensureIndexes();
+        }
+    }
+
+    BasicDBObject marshall( T target ) throws PersistenceException {
+        CrudUtilStats current = stats;
+        if( current == null ) {
+            return marshallObject( target );
+        }
+
+        long start = System.nanoTime();
+        BasicDBObject result = marshallObject( target );
+        current.marshalled( result, System.nanoTime() - start );
+        return result;
+    }
+
+    private BasicDBObject marshallObject( T target ) throws PersistenceException {
+        ensureUuid( target );
+
+        ClassCodec codec = getCodec( target.getClass() );
+        FieldBinding[] fields = codec.getRecordedFields();
+        BasicDBObject result = new BasicDBObject( fields.length * 2 );
+        if( typeRegistry != null ) {
+            result.append( TypeRegistry.TYPE_KEY, typeRegistry.getCode( codec.getCanonicalName() ) );
+        }
+        else {
+            result.append( CANONICAL_NAME, codec.getCanonicalName() );
+        }
+
+        for( FieldBinding field : fields ) {
+            Object value = field.get( target );
+
+            if( value != null ) {
+                result.append( field.getName(), marshallValue( field, value ) );
+            }
+        }
+
+        if( uuidRepresentation != UuidRepresentation.STRING ) {
+            result.put( UUID_FIELD, UuidCodec.toBinary( target.getUuid() ) );
+        }
+
+        return result;
+    }
+
+    /**
+     * Converts the object to the document handed to the driver: a
+     * marshalled BasicDBObject, or with the direct codec enabled, an
+     * EntityDocument view that the driver encodes without an intermediate
+     * map.
+     */
+    private DBObject encode( T target ) throws PersistenceException {
+        if( !directCodec ) {
+            return marshall( target );
+        }
+
+        CrudUtilStats current = stats;
+        long start = current == null ? 0 : System.nanoTime();
+        ensureUuid( target );
+        EntityDocument result = encodeDirect( target );
+        if( current != null ) {
+            current.marshalled( result, System.nanoTime() - start );
+        }
+        return result;
+    }
+
+    private EntityDocument encodeDirect( HasUuid target ) throws PersistenceException {
+        ClassCodec codec = getCodec( target.getClass() );
+        FieldBinding[] fields = codec.getRecordedFields();
+        Object[] values = new Object[ fields.length ];
+
+        for( int index = 0; index < fields.length; index++ ) {
+            Object value = fields[ index ].get( target );
+            if( value != null ) {
+                values[ index ] = encodeValue( fields[ index ], value );
+            }
+        }
+
+        int uuidIndex = codec.getRecordedIndex( UUID_FIELD );
+        if( uuidRepresentation != UuidRepresentation.STRING && uuidIndex >= 0 && values[ uuidIndex ] != null ) {
+            values[ uuidIndex ] = UuidCodec.toBinary( target.getUuid() );
+        }
+
+        if( typeRegistry != null ) {
+            return new EntityDocument( codec, TypeRegistry.TYPE_KEY, typeRegistry.getCode( codec.getCanonicalName() ), values );
+        }
+        return new EntityDocument( codec, CANONICAL_NAME, codec.getCanonicalName(), values );
+    }
+
+    private Object encodeValue( FieldBinding field, Object value ) throws PersistenceException {
+        if( value instanceof HasUuid ) {
+            CrudUtil adapter = getAdapter( value.getClass() );
+            if( adapter != null ) {
+                return isReference( value.getClass() ) ? adapter.createReference( (HasUuid)value ) : adapter.encodeDirect( (HasUuid)value );
+            }
+        }
+
+        if( value instanceof List ) {
+            return encodeList( (List)value );
+        }
+        else if( field.isEnum() ) {
+            return ( (Enum)value ).ordinal();
+        }
+
+        return value;
+    }
+
+    private List encodeList( List list ) throws PersistenceException {
+        List result = new ArrayList( list.size() );
+
+        for( Object value : list ) {
+            if( value != null ) {
+                CrudUtil adapter = value instanceof HasUuid ? getAdapter( value.getClass() ) : null;
+
+                if( adapter != null ) {
+                    value = isReference( value.getClass() ) ? adapter.createReference( (HasUuid)value ) : adapter.encodeDirect( (HasUuid)value );
+                }
+                else if( value instanceof List ) {
+                    value = encodeList( (List)value );
                 }
+                else if( value instanceof Enum ) {
+                    value = ( (Enum)value ).ordinal();
+                }
+
+                result.add( value );
             }
+        }
 
-            return result;
+        return result;
+    }
+
+    private Object marshallValue( FieldBinding field, Object value ) throws PersistenceException {
+        if( value instanceof HasUuid ) {
+            CrudUtil adapter = getAdapter( value.getClass() );
+            if( adapter != null ) {
+                return isReference( value.getClass() ) ? adapter.createReference( (HasUuid)value ) : adapter.marshall( (HasUuid)value );
+            }
+        }
+
+        if( value instanceof List ) {
+            return marshall( (List)value );
         }
-        catch( IllegalAccessException ex ) {
-            throw new PersistenceException( "Error in CrudUtil.marshall", ex );
+        else if( field.isEnum() ) {
+            return ( (Enum)value ).ordinal();
         }
+
+        return value;
     }
     
     private BasicDBList marshall( List list ) throws PersistenceException {
@@ -85,11 +249,10 @@ public class CrudUtil<T extends HasUuid> {
             
             for( Object value : list ) {
                 if( value != null ) {
-                    String objectClassName = value.getClass().getCanonicalName();
-                    CrudUtil adapter = getAdapter( objectClassName );
+                    CrudUtil adapter = value instanceof HasUuid ? getAdapter( value.getClass() ) : null;
 
-                    if( adapter != null && value instanceof HasUuid ) {
-                        value = adapter.marshall( (HasUuid)value );
+                    if( adapter != null ) {
+                        value = isReference( value.getClass() ) ? adapter.createReference( (HasUuid)value ) : adapter.marshall( (HasUuid)value );
                     }
                     else if( value instanceof List ) {
                         value = marshall( (List)value );
@@ -109,278 +272,1218 @@ public class CrudUtil<T extends HasUuid> {
         return null;
     }
 
-    private void ensureUuid( T target ) {
+    /**
+     * Writes the type and uuid of an object handled by this CrudUtil in
+     * reference mode, in place of the object itself.
+     */
+    private BasicDBObject createReference( T target ) throws PersistenceException {
         if( StringUtils.isBlank( target.getUuid() ) ) {
-            target.setUuid( UUID.randomUUID().toString() );
+            throw new PersistenceException( "Cannot reference a " + target.getClass().getName() + " without a uuid; store it before the objects that refer to it" );
+        }
+
+        ClassCodec codec = getCodec( target.getClass() );
+        BasicDBObject result = new BasicDBObject( 4 );
+        if( typeRegistry != null ) {
+            result.append( TypeRegistry.TYPE_KEY, typeRegistry.getCode( codec.getCanonicalName() ) );
+        }
+        else {
+            result.append( CANONICAL_NAME, codec.getCanonicalName() );
         }
+        return result.append( REFERENCE_KEY, target.getUuid() );
+    }
+
+    private void ensureUuid( T target ) {
+        UuidFactory.ensureUuid( target, uuidGenerator );
+    }
+
+    boolean setField( String name ){
+        return !CANONICAL_NAME.equals( name ) &&
+               !name.startsWith( "_" );
+    }
+
+    /**
+     * Unmarshalls a single record, loading any objects it references.
+     */
+    T unmarshall( DBObject record ) throws PersistenceException {
+        ReferenceResolver resolver = new ReferenceResolver();
+        T result = unmarshall( record, resolver );
+        resolver.resolve( this, Collections.singletonList( result ) );
+        return result;
+    }
+
+    /**
+     * Unmarshalls a record that is part of a larger result set. Its
+     * references are left to the resolver, and the object is not complete
+     * until resolve() has been called.
+     */
+    T unmarshall( DBObject record, ReferenceResolver resolver ) throws PersistenceException {
+        return unmarshall( record, resolver, true );
+    }
+
+    /**
+     * As unmarshall( record, resolver ), where complete is false if the
+     * record may be missing fields because it was read with a projection.
+     */
+    private T unmarshall( DBObject record, ReferenceResolver resolver, boolean complete ) throws PersistenceException {
+        CrudUtilStats current = stats;
+        if( current == null ) {
+            return unmarshallRecord( record, resolver, complete );
+        }
+
+        long start = System.nanoTime();
+        T result = unmarshallRecord( record, resolver, complete );
+        current.unmarshalled( System.nanoTime() - start );
+        return result;
+    }
+
+    private T unmarshallRecord( DBObject record, ReferenceResolver resolver, boolean complete ) throws PersistenceException {
+        T result = record instanceof EntityDecoder.DecodedEntity && ( (EntityDecoder.DecodedEntity)record ).belongsTo( this )
+                   ? (T)( (EntityDecoder.DecodedEntity)record ).finish( resolver )
+                   : unmarshall( (BasicDBObject)record, resolver );
+
+        DirtyTracker current = tracker;
+        if( current != null ) {
+            if( complete && record instanceof BasicDBObject && canSnapshotRecords() ) {
+                current.track( result, (BasicDBObject)record );
+            }
+            else {
+                // the snapshot must include the references, which are filled in later
+                resolver.whenResolved( () -> current.track( result, marshallObject( result ) ) );
+            }
+        }
+        return result;
     }
     
-    private boolean recordField( Field field ){
-        if( Modifier.isTransient( field.getModifiers() ) ) {
-            return false;
+    /**
+     * Whether a whole document read from the database can be tracked as it
+     * is, instead of marshalling the object read from it again. It can
+     * unless some field of this class or of a nested adapter's class is
+     * excluded, and so would be missing from the marshalled document, or a
+     * nested adapter uses references, which are only filled in later. The
+     * answer is kept until an adapter or excluded field is changed on any
+     * CrudUtil.
+     */
+    private boolean canSnapshotRecords() {
+        int version = configurationVersion.get();
+        long check = snapshotCheck;
+        if( check >= 0 && (int)( check >>> 1 ) == version ) {
+            return ( check & 1 ) != 0;
         }
 
-        if( excludedFieldNames.contains( field.getName() ) ) {
+        boolean result = recordsRoundTrip( Collections.newSetFromMap( new IdentityHashMap() ) );
+        snapshotCheck = ( (long)version << 1 ) | ( result ? 1 : 0 );
+        return result;
+    }
+
+    private boolean recordsRoundTrip( Set<CrudUtil> visited ) {
+        if( !visited.add( this ) ) {
+            return true;
+        }
+        if( !excludedFieldNames.isEmpty() ) {
             return false;
         }
 
+        for( Entry<String, CrudUtil> entry : adapters.entrySet() ) {
+            if( adapterModes.get( entry.getKey() ) == AdapterMode.REFERENCE || !entry.getValue().recordsRoundTrip( visited ) ) {
+                return false;
+            }
+        }
         return true;
     }
 
-    private boolean setField( String name ){
-        return !CANONICAL_NAME.equals( name ) &&
-               !name.startsWith( "_" );
+    private T unmarshall( BasicDBObject record, ReferenceResolver resolver ) throws PersistenceException {
+        ClassCodec codec = getCodec( getTargetClass() );
+        T result = (T)codec.newInstance();
+
+        for( Entry<String, Object> entry : record.entrySet() ) {
+            String name = entry.getKey();
+            if( setField( name ) && !codec.isIgnored( name ) ) {
+                FieldBinding field = codec.getField( name );
+                if( field == null ) {
+                    throw new PersistenceException( "Error in CrudUtil.unmarshall",
+                                                    new NoSuchFieldException( name ) );
+                }
+
+                Object value = entry.getValue();
+                if( value != null ) {
+                    unmarshallField( result, field, value, resolver );
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Converts a stored value and sets it on the target, or, if it is a
+     * reference that has not been loaded yet, has the resolver set it later.
+     */
+    void unmarshallField( Object target, FieldBinding field, Object value, ReferenceResolver resolver ) throws PersistenceException {
+        Object converted = unmarshallValue( field, value, resolver );
+        if( converted instanceof ReferenceResolver.Pending ) {
+            resolver.await( (ReferenceResolver.Pending)converted, resolved -> field.set( target, resolved ) );
+        }
+        else {
+            field.set( target, converted );
+        }
+    }
+
+    private Object unmarshallValue( FieldBinding field, Object value, ReferenceResolver resolver ) throws PersistenceException {
+        if( value instanceof BasicDBObject ) {
+            CrudUtil adapter = getAdapter( typeOf( (BasicDBObject)value ) );
+            if( adapter != null ) {
+                return adapter.unmarshallNested( (BasicDBObject)value, resolver );
+            }
+        }
+        else if( value instanceof BasicDBList ) {
+            return unmarshall( (BasicDBList)value, field.getElementEnumConstants(), resolver );
+        }
+        else if( field.isEnum() ) {
+            return field.enumConstant( value );
+        }
+        else if( field.getType() == String.class && UuidCodec.isUuid( value ) ) {
+            return UuidCodec.toString( value );
+        }
+
+        return value;
+    }
+
+    /**
+     * Unmarshalls an object embedded in another document, which is either
+     * the object itself or, whatever the current AdapterMode, a reference
+     * to it.
+     */
+    private Object unmarshallNested( BasicDBObject value, ReferenceResolver resolver ) throws PersistenceException {
+        Object reference = value.get( REFERENCE_KEY );
+        if( reference != null ) {
+            return resolver.reference( this, UuidCodec.isUuid( reference ) ? UuidCodec.toString( reference ) : reference.toString() );
+        }
+        return unmarshall( value, resolver );
+    }
+    
+    private List unmarshall( BasicDBList list, Object[] enumConstants, ReferenceResolver resolver ) throws PersistenceException {
+        List result = new ArrayList( list.size() );
+        
+        for( Object value : list ){
+            if( value != null ){
+                if( value instanceof BasicDBObject ){
+                    CrudUtil adapter = getAdapter( typeOf( (BasicDBObject)value ) );
+                    if( adapter != null ) {
+                        value = adapter.unmarshallNested( (BasicDBObject)value, resolver );
+                    }
+                }
+                else if( value instanceof BasicDBList ) {
+                    value = unmarshall( (BasicDBList)value, null, resolver );
+                }
+                else if( enumConstants != null && value instanceof Number ) {
+                    value = enumConstants[ ( (Number)value ).intValue() ];
+                }
+
+                if( value instanceof ReferenceResolver.Pending ) {
+                    // a reference to a missing object leaves a null element
+                    int index = result.size();
+                    resolver.await( (ReferenceResolver.Pending)value, resolved -> result.set( index, resolved ) );
+                    value = null;
+                }
+                result.add( value );
+            }
+        }
+        
+        return result;
+    }
+
+    /**
+     * Loads the objects with the given uuids for a resolver, one query per
+     * chunk of LookupOptions.getChunkSize() uuids. Their own references are
+     * left to the same resolver.
+     */
+    List<T> loadReferenced( List<String> uuids, ReferenceResolver resolver ) throws PersistenceException {
+        List<List<T>> chunks = ChunkedLookup.run( uuids, lookupOptions, chunk -> {
+            return unmarshallAll( find( createInQuery( UUID_FIELD, chunk ), null ), resolver, true );
+        }, null );
+
+        if( chunks.size() == 1 ) {
+            return chunks.get( 0 );
+        }
+
+        List<T> result = new ArrayList( uuids.size() );
+        for( List<T> chunk : chunks ) {
+            result.addAll( chunk );
+        }
+        return result;
+    }
+
+    private T getCached( Object key ) throws PersistenceException {
+        ObjectCache cache = this.cache;
+        Object value = cache == null ? null : cache.get( key );
+        if( value == null ) {
+            return null;
+        }
+        if( !cache.isCopyOnRead() ) {
+            return (T)value;
+        }
+
+        ReferenceResolver resolver = new ReferenceResolver();
+        T result = unmarshall( (BasicDBObject)value, resolver );
+        resolver.resolve( this, Collections.singletonList( result ) );
+        DirtyTracker current = tracker;
+        if( current != null ) {
+            current.track( result, (BasicDBObject)value );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stamp to pass to putCached() for objects about to be read
+     * from the database.
+     */
+    private long cacheStamp() {
+        ObjectCache cache = this.cache;
+        return cache == null ? 0 : cache.stamp();
+    }
+
+    /**
+     * Caches an object read from the database, unless a write has
+     * invalidated it since the stamp was taken.
+     */
+    private void putCached( Object key, T value, long stamp ) throws PersistenceException {
+        ObjectCache cache = this.cache;
+        if( cache != null ) {
+            cache.put( key, value.getUuid(), cache.isCopyOnRead() ? marshall( value ) : value, stamp );
+        }
+    }
+
+    private void invalidate( String uuid ) {
+        ObjectCache cache = this.cache;
+        if( cache != null && uuid != null ) {
+            cache.invalidate( uuid );
+        }
+    }
+
+    /**
+     * Returns the class name recorded in an embedded document, either as a
+     * canonical name or, for documents written in compact mode, as a
+     * registered type code.
+     */
+    private String typeOf( BasicDBObject record ) throws PersistenceException {
+        String result = record.getString( CANONICAL_NAME );
+        if( result == null && typeRegistry != null ) {
+            Object code = record.get( TypeRegistry.TYPE_KEY );
+            if( code instanceof Number ) {
+                result = typeRegistry.getClassName( ( (Number)code ).intValue() );
+            }
+        }
+        return result;
+    }
+
+    private ClassCodec getCodec( Class type ) throws PersistenceException {
+        ClassCodec codec = codecs.get( type );
+        if( codec == null ) {
+            codec = ClassCodec.compile( type, excludedFieldNames );
+            ClassCodec existing = codecs.putIfAbsent( type, codec );
+            if( existing != null ) {
+                codec = existing;
+            }
+        }
+        return codec;
+    }
+
+    ClassCodec getTargetCodec() throws PersistenceException {
+        return getCodec( getTargetClass() );
+    }
+
+    private Class getTargetClass() throws PersistenceException {
+        Class result = targetClass;
+        if( result == null ) {
+            try {
+                result = Class.forName( className );
+                targetClass = result;
+            }
+            catch( ClassNotFoundException ex ) {
+                throw new PersistenceException( "Error in CrudUtil.unmarshall", ex );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stores the object, replacing any existing document with the same
+     * uuid. If a version field has been set, the write only succeeds if the
+     * stored version still matches the object's, and the object's version
+     * is incremented; otherwise an OptimisticLockException is thrown.
+     */
+    public String store( T target ) throws PersistenceException {
+        return measure( CrudOperation.STORE, () -> {
+            try {
+                String uuid = write( target );
+                track( target );
+                return uuid;
+            }
+            finally {
+                invalidate( target.getUuid() );
+            }
+        } );
+    }
+
+    /**
+     * Writes only the fields of the object that have changed since it was
+     * loaded or stored by this CrudUtil, with $set and $unset, as found by
+     * the dirty tracking mode. Objects that are not tracked, because
+     * tracking is off or they were loaded elsewhere, are stored whole, as
+     * are objects whose document no longer exists. If a version field has
+     * been set, the update only succeeds if the stored version still
+     * matches, as with store().
+     */
+    public String update( T target ) throws PersistenceException {
+        return measure( CrudOperation.UPDATE, () -> {
+            try {
+                return writeChanges( target );
+            }
+            finally {
+                invalidate( target.getUuid() );
+            }
+        } );
+    }
+
+    private String writeChanges( T target ) throws PersistenceException {
+        DirtyTracker current = tracker;
+        if( current == null || StringUtils.isBlank( target.getUuid() ) || !current.isTracked( target ) ) {
+            String uuid = write( target );
+            track( target );
+            return uuid;
+        }
+
+        String uuid = target.getUuid();
+        FieldBinding field = null;
+        long version = 0;
+        if( versionField != null ) {
+            field = getVersionField( target );
+            Object value = field.get( target );
+            version = value == null ? 0 : ( (Number)value ).longValue();
+        }
+
+        BasicDBObject record = marshallObject( target );
+        BasicDBObject changes = current.diff( target, record, versionField );
+        if( changes == null ) {
+            // collected between isTracked() and diff()
+            String result = write( target );
+            current.track( target, record );
+            return result;
+        }
+        if( changes.isEmpty() ) {
+            return uuid;
+        }
+
+        BasicDBObject query = createUuidQuery( uuid );
+        if( field != null ) {
+            query.append( versionField, version );
+            BasicDBObject set = (BasicDBObject)changes.get( "$set" );
+            if( set == null ) {
+                set = new BasicDBObject();
+                changes.put( "$set", set );
+            }
+            set.put( versionField, version + 1 );
+        }
+
+        UpdateResult result = store.update( query, changes, false, false );
+        if( result.getN() == 0 ) {
+            if( field != null ) {
+                throw new OptimisticLockException( uuid, version );
+            }
+            write( target );
+        }
+        else if( field != null ) {
+            field.set( target, version + 1 );
+            record.put( versionField, version + 1 );
+        }
+
+        current.track( target, record );
+        return uuid;
+    }
+
+    /**
+     * Remembers the object's current state for update(), if dirty tracking
+     * is on.
+     */
+    private void track( T target ) throws PersistenceException {
+        DirtyTracker current = tracker;
+        if( current != null ) {
+            current.track( target, marshallObject( target ) );
+        }
+    }
+
+    private String write( T target ) throws PersistenceException {
+        if( versionField != null ) {
+            return storeVersioned( target );
+        }
+        else if( storeMode == StoreMode.UPSERT ) {
+            DBObject record = encode( target );
+            store.update( createUuidQuery( target.getUuid() ), record, true, false );
+            return target.getUuid();
+        }
+
+        String uuid = target.getUuid();
+        if( !StringUtils.isBlank( uuid ) ){
+            if( exists( uuid ) ){
+                delete( uuid );
+            }
+        }
+        
+        DBObject record = encode( target );
+        store.insert( record );
+        return target.getUuid();
+    }
+
+    private String storeVersioned( T target ) throws PersistenceException {
+        BasicDBObject record = marshall( target );
+        String uuid = target.getUuid();
+
+        FieldBinding field = getVersionField( target );
+        Object current = field.get( target );
+        long version = current == null ? 0 : ( (Number)current ).longValue();
+        record.put( versionField, version + 1 );
+
+        try {
+            if( version == 0 ) {
+                BasicDBObject query = createUuidQuery( uuid );
+                if( !( query.get( UUID_FIELD ) instanceof DBObject ) ) {
+                    // an equality query already sets the uuid of an inserted document
+                    record.removeField( UUID_FIELD );
+                }
+                UpdateResult result = store.update( query, new BasicDBObject( "$setOnInsert", record ), true, false );
+                if( result.isUpdateOfExisting() ) {
+                    throw new OptimisticLockException( uuid, version );
+                }
+            }
+            else {
+                BasicDBObject query = createUuidQuery( uuid ).append( versionField, version );
+                UpdateResult result = store.update( query, record, false, false );
+                if( result.getN() == 0 ) {
+                    throw new OptimisticLockException( uuid, version );
+                }
+            }
+        }
+        catch( MongoException ex ) {
+            if( ex instanceof DuplicateKeyException || ex.getCode() == DocumentStore.DUPLICATE_KEY ) {
+                throw new OptimisticLockException( uuid, version, ex );
+            }
+            throw ex;
+        }
+
+        field.set( target, version + 1 );
+        return uuid;
+    }
+
+    private FieldBinding getVersionField( T target ) throws PersistenceException {
+        FieldBinding field = getCodec( target.getClass() ).getField( versionField );
+        if( field == null || !isVersionType( field.getType() ) ) {
+            throw new PersistenceException( "Version field [" + versionField + "] must be an int or long field of " + target.getClass().getName() );
+        }
+        return field;
+    }
+
+    private boolean isVersionType( Class type ) {
+        return type == long.class || type == Long.class ||
+               type == int.class || type == Integer.class;
+    }
+
+    public List<T> retrieve( boolean bool, String fieldName ) throws PersistenceException {
+        
+        BasicDBObject query = new BasicDBObject( fieldName, bool );
+        return monitored( query, () -> unmarshallAll( store.find( query, null ), true ) );
+    }
+
+    public T retrieve( String uuid ) throws PersistenceException {
+        return retrieve( uuid, UUID_FIELD );
+    }
+
+    public T retrieve( String uuid, String fieldName ) throws
+        PersistenceException {
+        return retrieve( uuid, fieldName, null );
+    }
+
+    public T retrieve( String uuid, Projection projection ) throws PersistenceException {
+        return retrieve( uuid, UUID_FIELD, projection );
+    }
+
+    public T retrieve( String uuid, String fieldName, Projection projection ) throws
+        PersistenceException {
+        return measure( CrudOperation.RETRIEVE, () -> retrieveOne( uuid, fieldName, projection ) );
+    }
+
+    private T retrieveOne( String uuid, String fieldName, Projection projection ) throws PersistenceException {
+        boolean cached = cache != null && projection == null;
+        if( cached ) {
+            T result = getCached( ObjectCache.key( fieldName, uuid ) );
+            if( result != null ) {
+                return result;
+            }
+        }
+
+        long stamp = cacheStamp();
+        List<T> result = retrieve( Arrays.asList( uuid ), fieldName, projection );
+        if( result != null && !result.isEmpty() ) {
+            if( result.size() > 1 ){
+                throw new PersistenceException( "Query for uuid [" + uuid + "] in field [" + fieldName + "] was not unique." );
+            }
+            if( cached ) {
+                putCached( ObjectCache.key( fieldName, uuid ), result.get( 0 ), stamp );
+            }
+            return result.get( 0 );
+        }
+        return null;
+    }
+    
+    public List<T> retrieveAll( String uuid ) throws PersistenceException {
+        return retrieveAll( uuid, UUID_FIELD );
+    }
+
+    /**
+     * Retrieves the objects with the given uuids. If a cache is set, only
+     * the objects it does not hold are fetched from the database.
+     */
+    public List<T> retrieve( List<String> uuids ) throws PersistenceException {
+        if( cache == null ) {
+            return retrieve( uuids, UUID_FIELD );
+        }
+        return measure( CrudOperation.RETRIEVE, () -> retrieveCached( uuids ) );
+    }
+
+    /**
+     * Retrieves the objects the cache does not hold with one lookup. As
+     * with lookup(), duplicate uuids are removed and the objects are in the
+     * order of their uuids if the lookup options ask for it; otherwise the
+     * cached objects come first.
+     */
+    private List<T> retrieveCached( List<String> uuids ) throws PersistenceException {
+        LookupOptions options = lookupOptions;
+        List<String> ids = ChunkedLookup.distinct( uuids );
+
+        List<T> result = new ArrayList( ids.size() );
+        List<String> missing = new ArrayList();
+        for( String uuid : ids ) {
+            T cached = getCached( uuid );
+            if( cached != null ) {
+                result.add( cached );
+            }
+            else {
+                missing.add( uuid );
+            }
+        }
+
+        if( !missing.isEmpty() ) {
+            long stamp = cacheStamp();
+            for( T retrieved : lookup( missing, UUID_FIELD, null, options ) ) {
+                putCached( retrieved.getUuid(), retrieved, stamp );
+                result.add( retrieved );
+            }
+
+            if( options.isOrdered() && result.size() > missing.size() ) {
+                sortByIds( result, ids, UUID_FIELD );
+            }
+        }
+        return result;
+    }
+
+    public List<T> retrieve( List<String> uuids, String fieldName ) throws PersistenceException {
+        return retrieve( uuids, fieldName, null );
+    }
+
+    public List<T> retrieve( List<String> uuids, String fieldName, Projection projection ) throws PersistenceException {
+        LookupOptions options = lookupOptions;
+        return measure( CrudOperation.RETRIEVE, () -> lookup( uuids, fieldName, projection, options ) );
+    }
+
+    /**
+     * Retrieves the objects whose field matches any of the ids, splitting
+     * long lists into chunks that are queried in parallel as the options
+     * specify.
+     */
+    private List<T> lookup( List<String> uuids, String fieldName, Projection projection, LookupOptions options ) throws PersistenceException {
+        List<String> ids = ChunkedLookup.distinct( uuids );
+        ReferenceResolver resolver = new ReferenceResolver();
+        List<List<T>> chunks = ChunkedLookup.run( ids, options, chunk -> {
+            return unmarshallAll( find( createInQuery( fieldName, chunk ), projection ), resolver, projection == null );
+        }, null );
+
+        List<T> result;
+        if( chunks.size() == 1 ) {
+            result = chunks.get( 0 );
+        }
+        else {
+            // an array field can match ids in more than one chunk
+            LinkedHashMap<String, T> unique = new LinkedHashMap();
+            for( List<T> chunk : chunks ) {
+                for( T item : chunk ) {
+                    unique.putIfAbsent( item.getUuid(), item );
+                }
+            }
+            result = new ArrayList( unique.values() );
+        }
+        resolver.resolve( this, result );
+
+        if( options.isOrdered() ) {
+            sortByIds( result, ids, fieldName );
+        }
+        return result;
+    }
+
+    /**
+     * Sorts the objects into the order of the ids that matched them.
+     * Objects whose field cannot be read, such as a dotted path, go last.
+     */
+    private void sortByIds( List<T> items, List<String> ids, String fieldName ) throws PersistenceException {
+        HashMap<String, Integer> positions = new HashMap( ids.size() * 2 );
+        for( int index = ids.size() - 1; index >= 0; index-- ) {
+            positions.put( ids.get( index ), index );
+        }
+
+        IdentityHashMap<T, Integer> itemPositions = new IdentityHashMap( items.size() * 2 );
+        for( T item : items ) {
+            int position = Integer.MAX_VALUE;
+            if( UUID_FIELD.equals( fieldName ) ) {
+                position = positions.getOrDefault( item.getUuid(), position );
+            }
+            else {
+                FieldBinding field = getCodec( item.getClass() ).getField( fieldName );
+                Object value = field == null ? null : field.get( item );
+                for( Object element : value instanceof List ? (List)value : Arrays.asList( value ) ) {
+                    if( element != null ) {
+                        position = Math.min( position, positions.getOrDefault( element.toString(), Integer.MAX_VALUE ) );
+                    }
+                }
+            }
+            itemPositions.put( item, position );
+        }
+        items.sort( ( left, right ) -> Integer.compare( itemPositions.get( left ), itemPositions.get( right ) ) );
+    }
+
+    public BasicDBObject createUuidQuery( String uuid, String fieldName ) {
+        List<String> uuids = new ArrayList();
+        uuids.add( uuid );
+        return createUuidQuery( uuids, fieldName );
+    }
+
+    public BasicDBObject createUuidQuery( List<String> uuids, String fieldName ) {
+        String[] uuidArray = uuids.toArray( new String[ uuids.size() ] );
+        BasicDBObject query = createInQuery( fieldName, uuidArray );
+        return query;
+    }
+
+    public List<T> retrieveAll( String uuid, String fieldName ) throws
+        PersistenceException {
+        List<String> uuids = Arrays.asList( uuid );
+        return retrieve( uuids, fieldName );
+    }
+
+    public List<T> retrieveAll() throws PersistenceException {
+        return retrieveAll( (Projection)null );
+    }
+
+    public List<T> retrieveAll( Projection projection ) throws PersistenceException {
+        BasicDBObject query = createTypeQuery( className );
+        return monitored( query, () -> unmarshallAll( find( query, projection ), projection == null ) );
+    }
+
+    /**
+     * Retrieves every object of this type, overlapping the cursor reads
+     * with unmarshalling on a pool of threads.
+     */
+    public List<T> retrieveAll( ParallelOptions options ) throws PersistenceException {
+        return search( createTypeQuery( className ), options );
+    }
+
+    /**
+     * Returns one page of every object of this type; see
+     * search(BasicDBObject, PageRequest).
+     */
+    public Page<T> retrieveAll( PageRequest request ) throws PersistenceException {
+        return search( createTypeQuery( className ), request );
+    }
+
+    public boolean exists( String uuid ) throws PersistenceException {
+        return exists( uuid, UUID_FIELD );
+    }
+
+    public boolean exists( String uuid, String fieldName ) throws
+        PersistenceException {
+        return exists( Arrays.asList( uuid ), fieldName );
+    }
+
+    /**
+     * Returns true if any of the ids matches a document. Long lists are
+     * checked in chunks, as set by setLookupOptions(), stopping at the
+     * first chunk with a match.
+     */
+    public boolean exists( List<String> uuids, String fieldName ) throws PersistenceException {
+        List<String> ids = ChunkedLookup.distinct( uuids );
+        LookupOptions options = lookupOptions;
+        return measure( CrudOperation.EXISTS, () -> {
+            return ChunkedLookup.run( ids, options, chunk -> existsIn( fieldName, chunk ), found -> found ).contains( Boolean.TRUE );
+        } );
+    }
+
+    private Boolean existsIn( String fieldName, String[] uuids ) {
+        BasicDBObject query = createInQuery( fieldName, uuids );
+        BasicDBObject limit = createUuidQueryLimiter();
+        DocumentCursor cursor = store.find( query, limit );
+        try {
+            return cursor.hasNext();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    public boolean delete( String uuid ) throws PersistenceException {
+        return delete( uuid, UUID_FIELD );
+    }
+
+    public boolean delete( String uuid, String fieldName ) throws PersistenceException {
+        return delete( Arrays.asList( uuid ), fieldName );
+    }
+
+    public boolean delete( List<String> uuids ) throws PersistenceException {
+        return delete( uuids, UUID_FIELD );
+    }
+
+    public boolean delete( List<String> uuids, String fieldName ) throws PersistenceException {
+        return measure( CrudOperation.DELETE, () -> remove( uuids, fieldName ) );
+    }
+
+    private boolean remove( List<String> uuids, String fieldName ) throws PersistenceException {
+        try {
+            boolean existed = exists( uuids, fieldName );
+
+            if( existed ) {
+                ChunkedLookup.run( ChunkedLookup.distinct( uuids ), lookupOptions, chunk -> {
+                    return store.remove( createInQuery( fieldName, chunk ) );
+                }, null );
+
+                boolean exists = exists( uuids, fieldName );
+                return !exists;
+            }
+            else {
+                return false;
+            }
+        }
+        finally {
+            // after the write, so that a read overtaken by it is not cached
+            ObjectCache cache = this.cache;
+            if( cache != null ) {
+                if( UUID_FIELD.equals( fieldName ) ) {
+                    for( String uuid : uuids ) {
+                        invalidate( uuid );
+                    }
+                }
+                else {
+                    cache.invalidateAll();
+                }
+            }
+        }
+    }
+
+    public boolean deleteAll() throws PersistenceException {
+        return deleteAll( DeleteMode.MULTI_DELETE ) > 0;
+    }
+
+    /**
+     * Deletes every object of this type and returns the number of
+     * documents removed, which is approximate for TRUNCATE if other writes
+     * are made to the collection at the same time; see DeleteMode.
+     */
+    public long deleteAll( DeleteMode mode ) throws PersistenceException {
+        BasicDBObject query = createTypeQuery( className );
+        try {
+            return measure( CrudOperation.DELETE_ALL, () -> mode == DeleteMode.TRUNCATE ? store.truncate() : store.remove( query ) );
+        }
+        finally {
+            ObjectCache cache = this.cache;
+            if( cache != null ) {
+                cache.invalidateAll();
+            }
+        }
+    }
+
+    //////////////////
+    // bulk methods //
+    //////////////////
+
+    public List<BulkItemResult> storeAll( Collection<T> targets ) throws PersistenceException {
+        return storeAll( targets, new BulkOptions() );
+    }
+
+    /**
+     * Stores every object, replacing any existing document with the same
+     * uuid. Objects are marshalled in parallel and written with one bulk
+     * operation per chunk; the results are in the same order as targets.
+     * Version fields are not checked.
+     */
+    public List<BulkItemResult> storeAll( Collection<T> targets, BulkOptions options ) throws PersistenceException {
+        List<T> items = new ArrayList( targets );
+        return measure( CrudOperation.BULK_STORE, () -> writeAll( items, options, true ) );
     }
-    
-    private boolean isEnum( Field field ){
-        Class type = field.getClass();
-        return type.isEnum();
+
+    public List<BulkItemResult> deleteAll( Collection<T> targets ) throws PersistenceException {
+        return deleteAll( targets, new BulkOptions() );
     }
 
-    private T unmarshall( DBObject record ) throws PersistenceException {
-        return unmarshall( (BasicDBObject)record );
+    /**
+     * Deletes every document whose uuid matches one of the given objects,
+     * using one bulk operation per chunk. An item is reported as successful
+     * if the server accepted its delete, whether or not a document existed.
+     */
+    public List<BulkItemResult> deleteAll( Collection<T> targets, BulkOptions options ) throws PersistenceException {
+        List<T> items = new ArrayList( targets );
+        return measure( CrudOperation.BULK_DELETE, () -> writeAll( items, options, false ) );
     }
-    
-    private T unmarshall( BasicDBObject record ) throws PersistenceException {
+
+    private List<BulkItemResult> writeAll( List<T> items, BulkOptions options, boolean replace ) throws PersistenceException {
         try {
-            Class clazz = Class.forName( className );
-            T result = (T)clazz.newInstance();
-            
-            Set<Entry<String, Object>> entries = record.entrySet();
-            Iterator<Entry<String, Object>> iter = entries.iterator();
-            while( iter.hasNext() ){
-                Entry<String, Object> entry = iter.next();
-                String name = entry.getKey();
-                if( setField( name ) ) {
-                    Field field = clazz.getDeclaredField( name );
-                    if( field != null ) {
-                        Object value = entry.getValue();
-                        if( value != null ) {
-                            String fieldClassName = value.getClass().getCanonicalName();
-                            CrudUtil adapter = getAdapter( fieldClassName );
-                            
-                            if( adapter != null && value instanceof BasicDBObject ) {
-                                value = adapter.unmarshall( (BasicDBObject)value );
-                            }
-                            else if( value instanceof BasicDBList ){
-                                value = unmarshall( (BasicDBList)value );
-                            }
-                            else if( isEnum( field ) ) {
-                                int ordinal = (Integer)value;
-                                value = field.getType().getEnumConstants()[ordinal];
-                            }
-
-                            field.setAccessible( true );
-                            field.set( result, value );
-                        }
+            return executeAll( items, options, replace );
+        }
+        finally {
+            if( cache != null ) {
+                for( T item : items ) {
+                    if( item != null ) {
+                        invalidate( item.getUuid() );
                     }
                 }
             }
-
-            return result;
-        }
-        catch( ClassNotFoundException | 
-               InstantiationException | 
-               IllegalAccessException |
-               NoSuchFieldException ex ) {
-            throw new PersistenceException( "Error in CrudUtil.unmarshall", ex );
         }
     }
-    
-    private List unmarshall( BasicDBList list ) throws PersistenceException {
-        List result = new ArrayList();
-        
-        if( list != null ){
-            for( Object value : list ){
-                if( value != null ){
-                    String objectClassName = value.getClass().getCanonicalName();
-                    if( value instanceof BasicDBObject ){
-                        BasicDBObject tmp = (BasicDBObject)value;
-                        objectClassName = tmp.getString( CANONICAL_NAME );
-                    }
-                    
-                    CrudUtil adapter = getAdapter( objectClassName );
-                    
-                    if( adapter != null && value instanceof BasicDBObject ) {
-                        value = adapter.unmarshall( (BasicDBObject)value );
+
+    private List<BulkItemResult> executeAll( List<T> items, BulkOptions options, boolean replace ) throws PersistenceException {
+        BulkItemResult[] results = new BulkItemResult[ items.size() ];
+        int stoppedAt = items.size();
+
+        for( int from = 0; from < stoppedAt; from += options.getChunkSize() ) {
+            int to = Math.min( from + options.getChunkSize(), items.size() );
+            DBObject[] records = replace ? marshall( items, from, to, options.isParallelMarshalling(), results ) : null;
+
+            List<DocumentWrite> writes = new ArrayList( to - from );
+            int[] indexes = new int[ to - from ];
+            int count = 0;
+
+            for( int index = from; index < to; index++ ) {
+                T item = items.get( index );
+                if( results[ index ] == null ) {
+                    if( item == null ) {
+                        results[ index ] = BulkItemResult.failure( null, "Object is null" );
                     }
-                    else if( value instanceof BasicDBList ) {
-                        value = unmarshall( (BasicDBList)value );
+                    else if( StringUtils.isBlank( item.getUuid() ) ) {
+                        results[ index ] = BulkItemResult.failure( null, "Object has no uuid" );
                     }
-                    
-                    result.add( value );
                 }
+
+                if( results[ index ] == null ) {
+                    BasicDBObject query = createUuidQuery( item.getUuid() );
+                    writes.add( replace ? DocumentWrite.replace( query, records[ index - from ] ) : DocumentWrite.remove( query ) );
+                    indexes[ count++ ] = index;
+                }
+                else if( options.isOrdered() ) {
+                    stoppedAt = index + 1;
+                    break;
+                }
+            }
+
+            if( !executeBulk( writes, items, indexes, options.isOrdered(), results ) ) {
+                stoppedAt = Math.min( stoppedAt, to );
             }
         }
-        
+
+        List<BulkItemResult> result = new ArrayList( results.length );
+        for( int index = 0; index < results.length; index++ ) {
+            BulkItemResult itemResult = results[ index ];
+            if( itemResult == null ) {
+                String uuid = items.get( index ) == null ? null : items.get( index ).getUuid();
+                itemResult = index < stoppedAt ?
+                             BulkItemResult.success( uuid ) :
+                             BulkItemResult.failure( uuid, NOT_EXECUTED );
+            }
+            result.add( itemResult );
+        }
         return result;
     }
 
-    public String store( T target ) throws PersistenceException {
-        String uuid = target.getUuid();
-        if( !StringUtils.isBlank( uuid ) ){
-            if( exists( uuid ) ){
-                delete( uuid );
-            }
+    private DBObject[] marshall( List<T> items, int from, int to, boolean parallel, BulkItemResult[] results ) {
+        DBObject[] records = new DBObject[ to - from ];
+        IntStream range = IntStream.range( from, to );
+        if( parallel ) {
+            range = range.parallel();
         }
-        
-        BasicDBObject record = marshall( target );
-        getCollection().insert( record );
-        return target.getUuid();
+
+        range.forEach( index -> {
+            T item = items.get( index );
+            if( item == null ) {
+                results[ index ] = BulkItemResult.failure( null, "Object is null" );
+            }
+            else {
+                try {
+                    records[ index - from ] = encode( item );
+                }
+                catch( PersistenceException | RuntimeException ex ) {
+                    results[ index ] = BulkItemResult.failure( item.getUuid(), String.valueOf( ex.getMessage() ) );
+                }
+            }
+        } );
+
+        return records;
     }
 
-    public List<T> retrieve( boolean bool, String fieldName ) throws PersistenceException {
-        
-        BasicDBObject query = new BasicDBObject( fieldName, bool );
-        DBCursor cursor = getCollection().find( query );
-        List<T> result = new ArrayList( cursor.size() );
+    /**
+     * Executes a bulk write, recording a failure for every item the server
+     * rejected. Returns false if the write was ordered and failed, in which
+     * case nothing after the failing item was applied.
+     */
+    private boolean executeBulk( List<DocumentWrite> writes, List<T> items, int[] indexes, boolean ordered, BulkItemResult[] results ) throws PersistenceException {
+        if( writes.isEmpty() ) {
+            return true;
+        }
 
-        while( cursor.hasNext() ) {
-            result.add( unmarshall( cursor.next() ) );
+        SortedMap<Integer, String> failures;
+        try {
+            failures = store.bulkWrite( writes, ordered );
+        }
+        catch( MongoException ex ) {
+            throw new PersistenceException( "Error in CrudUtil bulk write", ex );
         }
 
-        return result;
-    }
+        if( failures.isEmpty() ) {
+            return true;
+        }
 
-    public T retrieve( String uuid ) throws PersistenceException {
-        return retrieve( uuid, UUID_FIELD );
-    }
+        for( Entry<Integer, String> failure : failures.entrySet() ) {
+            int index = indexes[ failure.getKey() ];
+            results[ index ] = BulkItemResult.failure( items.get( index ).getUuid(), failure.getValue() );
+        }
 
-    public T retrieve( String uuid, String fieldName ) throws
-        PersistenceException {
-        List<T> result = retrieve( Arrays.asList( uuid ), fieldName );
-        if( result != null && !result.isEmpty() ) {
-            if( result.size() > 1 ){
-                throw new PersistenceException( "Query for uuid [" + uuid + "] in field [" + fieldName + "] was not unique." );
+        if( ordered ) {
+            for( int position = failures.firstKey() + 1; position < writes.size(); position++ ) {
+                int index = indexes[ position ];
+                results[ index ] = BulkItemResult.failure( items.get( index ).getUuid(), NOT_EXECUTED );
             }
-            return result.get( 0 );
+            return false;
         }
-        return null;
+        return true;
     }
+
+    ////////////////////
+    // search methods //
+    ////////////////////
     
-    public List<T> retrieveAll( String uuid ) throws PersistenceException {
-        return retrieveAll( uuid, UUID_FIELD );
+    public List<T> search( BasicDBObject dbObj ) throws PersistenceException {
+        return search( dbObj, (Projection)null );
     }
 
-    public List<T> retrieve( List<String> uuids ) throws PersistenceException {
-        return retrieve( uuids, UUID_FIELD );
+    /**
+     * Searches, fetching only the fields selected by the projection.
+     */
+    public List<T> search( BasicDBObject dbObj, Projection projection ) throws PersistenceException {
+        return monitored( dbObj, () -> unmarshallAll( find( dbObj, projection ), projection == null ) );
     }
 
-    public List<T> retrieve( List<String> uuids, String fieldName ) throws PersistenceException {
-        BasicDBObject query = createUuidQuery( uuids, fieldName );
-        DBCursor cursor = getCollection().find( query );
-        List<T> result = new ArrayList( cursor.size() );
+    /**
+     * Searches with the cursor read on the calling thread and the results
+     * unmarshalled in parallel, in cursor order or in completion order as
+     * the options specify.
+     */
+    public List<T> search( BasicDBObject dbObj, ParallelOptions options ) throws PersistenceException {
+        return monitored( dbObj, () -> {
+            DocumentCursor cursor = store.find( dbObj, null );
+            ReferenceResolver resolver = new ReferenceResolver();
+            List<T> result = new ParallelUnmarshaller<T>( record -> unmarshall( record, resolver ), options ).unmarshall( cursor );
+            resolver.resolve( this, result );
+            return result;
+        } );
+    }
 
-        while( cursor.hasNext() ) {
-            result.add( unmarshall( cursor.next() ) );
+    /**
+     * Returns one page of the objects matching the query, in the request's
+     * sort order. Pass the page's continuation in the next request to get
+     * the page after it.
+     */
+    public Page<T> search( BasicDBObject query, PageRequest request ) throws PersistenceException {
+        BasicDBObject sort = request.createSort();
+        BasicDBObject pageQuery = query;
+        if( request.getContinuation() != null ) {
+            List<Object> after = PageToken.decode( sort, request.getContinuation() );
+            pageQuery = new BasicDBObject( "$and", Arrays.asList( query, createKeysetQuery( sort, after ) ) );
         }
 
-        return result;
-    }
+        BasicDBObject finalQuery = pageQuery;
+        return monitored( finalQuery, () -> {
+            DocumentCursor cursor = store.find( finalQuery, null ).sort( sort ).limit( request.getLimit() + 1 );
+            try {
+                List<T> items = new ArrayList( request.getLimit() );
+                ReferenceResolver resolver = new ReferenceResolver();
+                DBObject last = null;
+                while( items.size() < request.getLimit() && cursor.hasNext() ) {
+                    last = cursor.next();
+                    items.add( unmarshall( last, resolver ) );
+                }
+                resolver.resolve( this, items );
 
-    public BasicDBObject createUuidQuery( String uuid, String fieldName ) {
-        List<String> uuids = new ArrayList();
-        uuids.add( uuid );
-        return createUuidQuery( uuids, fieldName );
+                String continuation = cursor.hasNext() ? PageToken.encode( sort, getSortValues( last, sort ) ) : null;
+                return new Page<T>( items, continuation );
+            }
+            finally {
+                cursor.close();
+            }
+        } );
     }
 
-    public BasicDBObject createUuidQuery( List<String> uuids, String fieldName ) {
-        String[] uuidArray = uuids.toArray( new String[ uuids.size() ] );
-        BasicDBObject query = createInQuery( fieldName, uuidArray );
-        return query;
+    /**
+     * Matches the documents that sort after the given values: those with a
+     * greater first field, or an equal first field and a greater second
+     * field, and so on, with "greater" meaning less for descending fields.
+     */
+    private BasicDBObject createKeysetQuery( BasicDBObject sort, List<Object> after ) {
+        List<String> fields = new ArrayList( sort.keySet() );
+        List<DBObject> branches = new ArrayList( fields.size() );
+        for( int index = 0; index < fields.size(); index++ ) {
+            BasicDBObject branch = new BasicDBObject();
+            for( int previous = 0; previous < index; previous++ ) {
+                branch.append( fields.get( previous ), after.get( previous ) );
+            }
+            String operator = ( (Number)sort.get( fields.get( index ) ) ).intValue() > 0 ? "$gt" : "$lt";
+            branch.append( fields.get( index ), new BasicDBObject( operator, after.get( index ) ) );
+            branches.add( branch );
+        }
+        return new BasicDBObject( "$or", branches );
     }
 
-    public List<T> retrieveAll( String uuid, String fieldName ) throws
-        PersistenceException {
-        List<String> uuids = Arrays.asList( uuid );
-        return retrieve( uuids, fieldName );
+    private List<Object> getSortValues( DBObject record, BasicDBObject sort ) throws PersistenceException {
+        List<Object> result = new ArrayList( sort.size() );
+        for( String field : sort.keySet() ) {
+            Object value = Documents.get( record, field );
+            if( value == Documents.MISSING || value == null || value instanceof List ) {
+                throw new PersistenceException( "Sort field [" + field + "] of object [" + UuidCodec.toString( record.get( UUID_FIELD ) ) +
+                                                "] is missing, null or an array" );
+            }
+            result.add( value );
+        }
+        return result;
     }
 
-    public List<T> retrieveAll() throws PersistenceException {
-        DBCursor cursor = getCollection().find( createTypeQuery( className ) );
-        List<T> result = new ArrayList( cursor.size() );
+    /**
+     * Explains the query, so that its plan can be checked for collection
+     * scans and poor selectivity. The query is run on the server.
+     */
+    public QueryPlan explain( BasicDBObject query ) throws PersistenceException {
+        try {
+            return QueryPlan.parse( baseStore.explain( query ) );
+        }
+        catch( MongoException ex ) {
+            throw new PersistenceException( "Error explaining query", ex );
+        }
+    }
 
-        while( cursor.hasNext() ) {
-            DBObject record = cursor.next();
-            T organization = unmarshall( record );
-            result.add( organization );
+    /**
+     * Runs a search, recording it as a SEARCH if metrics are enabled and
+     * passing it to the slow query monitor if one is set.
+     */
+    private <R> R monitored( BasicDBObject query, PersistenceCall<R> call ) throws PersistenceException {
+        SlowQueryMonitor monitor = slowQueryMonitor;
+        if( monitor == null ) {
+            return measure( CrudOperation.SEARCH, call );
         }
 
-        return result;
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            R result = measure( CrudOperation.SEARCH, call );
+            failed = false;
+            return result;
+        }
+        finally {
+            monitor.completed( baseStore, className, query, System.nanoTime() - start, failed );
+        }
     }
 
-    public boolean exists( String uuid ) throws PersistenceException {
-        return exists( uuid, UUID_FIELD );
-    }
+    ///////////////////////
+    // streaming methods //
+    ///////////////////////
 
-    public boolean exists( String uuid, String fieldName ) throws
-        PersistenceException {
-        return exists( Arrays.asList( uuid ), fieldName );
+    public CrudIterator<T> iterate( BasicDBObject query ) {
+        return iterate( query, 0 );
     }
 
-    public boolean exists( List<String> uuids, String fieldName ) throws PersistenceException {
-        String[] uuidArray = uuids.toArray( new String[ uuids.size() ] );
-        BasicDBObject query = createInQuery( fieldName, uuidArray );
-        BasicDBObject limit = createUuidQueryLimiter();
-        DBCursor cursor = getCollection().find( query, limit );
-        return cursor.hasNext();
+    /**
+     * Returns a lazy iterator over the objects matching the query, fetching
+     * batchSize documents per round trip (or the server's default if
+     * batchSize is zero). Objects are unmarshalled batchSize at a time, or
+     * 100 at a time if batchSize is zero, so that the objects they
+     * reference are loaded together. The caller must close the iterator if
+     * it is not read to the end.
+     */
+    public CrudIterator<T> iterate( BasicDBObject query, int batchSize ) {
+        DocumentCursor cursor = decodeWith( store.find( query, null ) );
+        return iterate( cursor, batchSize, true );
     }
 
-    public boolean delete( String uuid ) throws PersistenceException {
-        return delete( uuid, UUID_FIELD );
+    public CrudIterator<T> iterate( BasicDBObject query, Projection projection, int batchSize ) throws PersistenceException {
+        return iterate( find( query, projection ), batchSize, projection == null );
     }
 
-    public boolean delete( String uuid, String fieldName ) throws PersistenceException {
-        return delete( Arrays.asList( uuid ), fieldName );
+    private CrudIterator<T> iterate( DocumentCursor cursor, int batchSize, boolean complete ) {
+        if( batchSize > 0 ) {
+            cursor.batchSize( batchSize );
+        }
+        return new CrudIterator<>( cursor, records -> unmarshallBatch( records, complete ), batchSize > 0 ? batchSize : DEFAULT_DECODE_WINDOW );
     }
 
-    public boolean delete( List<String> uuids ) throws PersistenceException {
-        return delete( uuids, UUID_FIELD );
+    public CrudIterator<T> iterateAll() throws PersistenceException {
+        return iterateAll( 0 );
     }
 
-    public boolean delete( List<String> uuids, String fieldName ) throws PersistenceException {
-        String[] uuidArray = uuids.toArray( new String[ uuids.size() ] );
+    public CrudIterator<T> iterateAll( int batchSize ) throws PersistenceException {
+        return iterate( createTypeQuery( className ), batchSize );
+    }
 
-        boolean existed = exists( uuids, fieldName );
+    public Stream<T> stream( BasicDBObject query ) {
+        return iterate( query ).stream();
+    }
 
-        if( existed ) {
-            BasicDBObject query = createInQuery( fieldName, uuidArray );
-            getCollection().remove( query );
+    /**
+     * Returns a lazy stream over the objects matching the query. The stream
+     * should be closed, for example with try-with-resources, so that the
+     * server cursor is released if the stream is not fully consumed.
+     */
+    public Stream<T> stream( BasicDBObject query, int batchSize ) {
+        return iterate( query, batchSize ).stream();
+    }
 
-            boolean exists = exists( uuids, fieldName );
-            return !exists;
-        }
-        else {
-            return false;
-        }
+    public Publisher<T> publish( BasicDBObject query ) {
+        return publish( query, 0, null );
     }
 
-    public boolean deleteAll() throws PersistenceException {
-        boolean found = false;
-        DBCursor cursor = collection.find();
-        while( cursor.hasNext() ) {
-            collection.remove( cursor.next() );
-            found = true;
-        }
+    /**
+     * Returns a Reactive Streams publisher of the objects matching the
+     * query. Documents are fetched and unmarshalled batchSize at a time
+     * (100 if batchSize is zero), and only as fast as subscribers request
+     * them. Signals are delivered on the executor, or on a shared daemon
+     * pool if executor is null.
+     */
+    public Publisher<T> publish( BasicDBObject query, int batchSize, Executor executor ) {
+        return new CursorPublisher<T>( () -> decodeWith( store.find( query, null ) ), records -> unmarshallBatch( records, true ), batchSize,
+                                       batchSize > 0 ? batchSize : DEFAULT_DECODE_WINDOW, executor );
+    }
 
-        return found;
+    public Publisher<T> publishAll() throws PersistenceException {
+        return publishAll( 0, null );
     }
 
-    ////////////////////
-    // search methods //
-    ////////////////////
-    
-    public List<T> search( BasicDBObject dbObj ) throws PersistenceException {
-        DBCursor cursor = this.getCollection().find( dbObj );
-        List<T> result = new ArrayList( cursor.size() );
+    public Publisher<T> publishAll( int batchSize, Executor executor ) throws PersistenceException {
+        return publish( createTypeQuery( className ), batchSize, executor );
+    }
 
-        while( cursor.hasNext() ) {
-            DBObject record = cursor.next();
-            T obj = this.unmarshall( record );
-            result.add( obj );
-        }
+    public Stream<T> streamAll() throws PersistenceException {
+        return iterateAll().stream();
+    }
 
-        return result;
+    public Stream<T> streamAll( int batchSize ) throws PersistenceException {
+        return iterateAll( batchSize ).stream();
     }
 
     public List<String> getUuids() throws PersistenceException {
@@ -391,21 +1494,147 @@ public class CrudUtil<T extends HasUuid> {
         BasicDBObject query = new BasicDBObject( fieldName, new BasicDBObject( "$exists", true ) );
         BasicDBObject fields = new BasicDBObject( fieldName, 1 );
 
-        DBCursor cursor = this.getCollection().find( query, fields );
+        DocumentCursor cursor = store.find( query, fields );
         List<String> result = new ArrayList();
 
-        while( cursor.hasNext() ) {
-            DBObject record = cursor.next();
-            result.add( record.get( fieldName ).toString() );
+        try {
+            while( cursor.hasNext() ) {
+                DBObject record = cursor.next();
+                result.add( UuidCodec.toString( record.get( fieldName ) ) );
+            }
+        }
+        finally {
+            cursor.close();
+        }
+
+        return result;
+    }
+    
+    private DocumentCursor find( BasicDBObject query, Projection projection ) throws PersistenceException {
+        return decodeWith( store.find( query, projection == null ? null : createFields( projection ) ) );
+    }
+
+    /**
+     * Installs the direct decoder on a cursor whose documents will all be
+     * unmarshalled by this CrudUtil.
+     */
+    private DocumentCursor decodeWith( DocumentCursor cursor ) {
+        if( directCodec ) {
+            cursor.decodeWith( decoderFactory );
+        }
+        return cursor;
+    }
+
+    /**
+     * Converts a projection to a field selector, after checking that every
+     * field it names is a persistent field of the stored class. Dotted
+     * paths are checked by their first segment.
+     */
+    private BasicDBObject createFields( Projection projection ) throws PersistenceException {
+        ClassCodec codec = getCodec( getTargetClass() );
+        BasicDBObject fields = new BasicDBObject();
+
+        for( String field : projection.getFields() ) {
+            int dot = field.indexOf( '.' );
+            String name = dot < 0 ? field : field.substring( 0, dot );
+            if( codec.getField( name ) == null ) {
+                throw new PersistenceException( "Projection field [" + field + "] is not a field of " + className );
+            }
+            if( !projection.isInclude() && UUID_FIELD.equals( field ) ) {
+                throw new PersistenceException( "The " + UUID_FIELD + " field cannot be excluded" );
+            }
+            fields.append( field, projection.isInclude() ? 1 : 0 );
+        }
+
+        if( projection.isInclude() ) {
+            fields.append( UUID_FIELD, 1 );
+            fields.append( CANONICAL_NAME, 1 );
+            fields.append( TypeRegistry.TYPE_KEY, 1 );
         }
+        return fields;
+    }
 
+    /**
+     * Runs the call, recording it as the given operation if metrics are
+     * enabled.
+     */
+    private <R> R measure( CrudOperation operation, PersistenceCall<R> call ) throws PersistenceException {
+        CrudUtilStats current = stats;
+        return current == null ? call.call() : current.measure( operation, call );
+    }
+
+    private List<T> unmarshallAll( DocumentCursor cursor, boolean complete ) throws PersistenceException {
+        ReferenceResolver resolver = new ReferenceResolver();
+        List<T> result = unmarshallAll( cursor, resolver, complete );
+        resolver.resolve( this, result );
+        return result;
+    }
+
+    /**
+     * Unmarshalls a window of a lazily read result, loading the objects the
+     * whole window references together.
+     */
+    private List<T> unmarshallBatch( List<DBObject> records, boolean complete ) throws PersistenceException {
+        ReferenceResolver resolver = new ReferenceResolver();
+        List<T> result = new ArrayList( records.size() );
+        for( DBObject record : records ) {
+            result.add( unmarshall( record, resolver, complete ) );
+        }
+        resolver.resolve( this, result );
         return result;
     }
+
+    private List<T> unmarshallAll( DocumentCursor cursor, ReferenceResolver resolver, boolean complete ) throws PersistenceException {
+        try {
+            List<T> result = new ArrayList();
+            while( cursor.hasNext() ) {
+                result.add( unmarshall( cursor.next(), resolver, complete ) );
+            }
+            return result;
+        }
+        finally {
+            cursor.close();
+        }
+    }
     
     private BasicDBObject createInQuery( String field, Object[] values )
     {
+        if( UUID_FIELD.equals( field ) && uuidRepresentation != UuidRepresentation.STRING ) {
+            values = toStoredUuids( values );
+        }
         return new BasicDBObject( field, new BasicDBObject( "$in", values ) );
     }
+
+    /**
+     * Creates the query matching a single uuid in the stored form, or in
+     * either form in MIXED mode.
+     */
+    private BasicDBObject createUuidQuery( String uuid ) {
+        if( uuidRepresentation == UuidRepresentation.STRING ) {
+            return new BasicDBObject( UUID_FIELD, uuid );
+        }
+        else if( uuidRepresentation == UuidRepresentation.BINARY ) {
+            return new BasicDBObject( UUID_FIELD, UuidCodec.toBinary( uuid ) );
+        }
+        return createInQuery( UUID_FIELD, new Object[]{ uuid } );
+    }
+
+    private Object[] toStoredUuids( Object[] uuids ) {
+        boolean mixed = uuidRepresentation == UuidRepresentation.MIXED;
+        Object[] result = new Object[ mixed ? uuids.length * 2 : uuids.length ];
+
+        for( int index = 0; index < uuids.length; index++ ) {
+            Object binary = uuids[ index ] instanceof String ? UuidCodec.toBinary( (String)uuids[ index ] ) : uuids[ index ];
+            if( mixed ) {
+                result[ index * 2 ] = uuids[ index ];
+                result[ index * 2 + 1 ] = binary;
+            }
+            else {
+                result[ index ] = binary;
+            }
+        }
+        return result;
+    }
     
     private BasicDBObject createUuidQueryLimiter()
     {
@@ -413,14 +1642,18 @@ public class CrudUtil<T extends HasUuid> {
         return limit;
     }
     
-    private BasicDBObject createTypeQuery( Class clazz )
+    private BasicDBObject createTypeQuery( Class clazz ) throws PersistenceException
     {
         return createTypeQuery( clazz.getCanonicalName() );
     }
     
-    private BasicDBObject createTypeQuery( String className )
+    BasicDBObject createTypeQuery( String className ) throws PersistenceException
     {
         BasicDBObject query = new BasicDBObject( CANONICAL_NAME, className );
+        if( typeRegistry != null ) {
+            BasicDBObject compact = new BasicDBObject( TypeRegistry.TYPE_KEY, typeRegistry.getCode( className ) );
+            query = new BasicDBObject( "$or", Arrays.asList( query, compact ) );
+        }
         return query;
     }
 
@@ -428,24 +1661,225 @@ public class CrudUtil<T extends HasUuid> {
     // public methods //
     ////////////////////
     
+    /**
+     * The MongoDB collection this CrudUtil stores its objects in, or null if
+     * it uses some other DocumentStore.
+     */
     public DBCollection getCollection(){
-        return collection;
+        return baseStore instanceof MongoDocumentStore ? ( (MongoDocumentStore)baseStore ).getCollection() : null;
+    }
+
+    public DocumentStore getStore() {
+        return baseStore;
+    }
+
+    /**
+     * Creates a unique index on the uuid field, an index on the type field,
+     * and every index declared on the stored class with Indexed or
+     * CompoundIndex, then checks that they all exist. Fails if existing data
+     * violates a unique index, or if an index with the same keys exists
+     * without the requested uniqueness.
+     */
+    public void ensureIndexes() throws PersistenceException {
+        IndexProvisioner provisioner = new IndexProvisioner();
+        provisioner.add( new BasicDBObject( UUID_FIELD, 1 ), true, false );
+        provisioner.add( new BasicDBObject( CANONICAL_NAME, 1 ), false, false );
+        if( typeRegistry != null ) {
+            provisioner.add( new BasicDBObject( TypeRegistry.TYPE_KEY, 1 ), false, false );
+        }
+        provisioner.addAnnotated( getTargetClass() );
+        provisioner.ensure( store );
     }
     
     public String getClassName() {
         return className;
     }
+
+    public UuidGenerator getUuidGenerator() {
+        return uuidGenerator;
+    }
+
+    /**
+     * Sets the generator used to assign uuids to objects stored without
+     * one. Null, the default, means UuidFactory's default generator.
+     */
+    public void setUuidGenerator( UuidGenerator uuidGenerator ) {
+        this.uuidGenerator = uuidGenerator;
+    }
+
+    public CrudMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts recording this CrudUtil's operations, round trips and
+     * marshalling times in the given metrics, under its collection name and
+     * class name, or stops recording if metrics is null. Adapters must be
+     * given metrics separately.
+     */
+    public void setMetrics( CrudMetrics metrics ) {
+        if( metrics == null ) {
+            this.stats = null;
+            this.store = baseStore;
+        }
+        else {
+            CrudUtilStats current = metrics.getStats( baseStore.getName(), className );
+            this.store = new MeteredDocumentStore( baseStore, current );
+            this.stats = current;
+        }
+        this.metrics = metrics;
+    }
+
+    public DirtyTracking getDirtyTracking() {
+        DirtyTracker current = tracker;
+        return current == null ? DirtyTracking.NONE : current.getMode();
+    }
+
+    /**
+     * Sets how the objects this CrudUtil loads and stores are remembered
+     * for update(). Changing the mode forgets every object tracked so far.
+     * Objects are tracked until they are garbage collected.
+     */
+    public void setDirtyTracking( DirtyTracking dirtyTracking ) {
+        this.tracker = dirtyTracking == null || dirtyTracking == DirtyTracking.NONE ? null : new DirtyTracker( dirtyTracking );
+    }
+
+    public LookupOptions getLookupOptions() {
+        return lookupOptions;
+    }
+
+    /**
+     * Sets how retrieve(List), exists(List) and delete(List) split long id
+     * lists into chunks, and whether retrieved objects are returned in the
+     * order of the ids.
+     */
+    public void setLookupOptions( LookupOptions lookupOptions ) {
+        if( lookupOptions == null ) {
+            throw new IllegalArgumentException( "Lookup options must not be null" );
+        }
+        this.lookupOptions = lookupOptions;
+    }
+
+    public SlowQueryMonitor getSlowQueryMonitor() {
+        return slowQueryMonitor;
+    }
+
+    /**
+     * Passes the searches made by this CrudUtil, and by retrieve(boolean,
+     * fieldName) and retrieveAll(), to the monitor, or stops monitoring if
+     * slowQueryMonitor is null.
+     */
+    public void setSlowQueryMonitor( SlowQueryMonitor slowQueryMonitor ) {
+        this.slowQueryMonitor = slowQueryMonitor;
+    }
+
+    public UuidRepresentation getUuidRepresentation() {
+        return uuidRepresentation;
+    }
+
+    /**
+     * Sets how the uuid field is written and queried. Documents with either
+     * form are always readable.
+     */
+    public void setUuidRepresentation( UuidRepresentation uuidRepresentation ) {
+        this.uuidRepresentation = uuidRepresentation;
+    }
+
+    public TypeRegistry getTypeRegistry() {
+        return typeRegistry;
+    }
+
+    /**
+     * Enables compact mode: new documents carry a short registered type
+     * code instead of the canonical class name. Documents written either
+     * way are still found and read, so existing data keeps working while
+     * TypeCodeMigration rewrites it. Adapters must be given the same
+     * registry for their embedded documents to be written compactly too.
+     */
+    public void setTypeRegistry( TypeRegistry typeRegistry ) {
+        this.typeRegistry = typeRegistry;
+    }
+
+    public boolean isDirectCodec() {
+        return directCodec;
+    }
+
+    /**
+     * Enables the direct codec. Objects are then handed to the driver as
+     * EntityDocument views instead of marshalled BasicDBObjects. Query
+     * results are decoded by EntityDecoder straight into new objects. The
+     * stored format does not change. Versioned stores still marshall. The
+     * parallel search methods keep the plain decoder, because the direct
+     * decoder would do all of its work on the cursor thread.
+     */
+    public void setDirectCodec( boolean directCodec ) {
+        this.directCodec = directCodec;
+    }
+
+    public ObjectCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Puts a cache in front of retrieve(uuid), retrieve(uuid, fieldName)
+     * and retrieve(List). Entries are invalidated by this CrudUtil's store,
+     * delete and deleteAll methods, but not by writes made through other
+     * instances or other processes; use a time to live to bound staleness.
+     */
+    public void setCache( ObjectCache cache ) {
+        this.cache = cache;
+    }
+
+    public StoreMode getStoreMode() {
+        return storeMode;
+    }
+
+    public void setStoreMode( StoreMode storeMode ) {
+        this.storeMode = storeMode;
+    }
+
+    public String getVersionField() {
+        return versionField;
+    }
+
+    /**
+     * Enables optimistic versioning using the named int or long field of
+     * the stored class, or disables it if versionField is null. An object
+     * whose version is zero or null is treated as new.
+     */
+    public void setVersionField( String versionField ) {
+        this.versionField = versionField;
+    }
     
     public void excludeField( String field ) {
         excludedFieldNames.add( field );
+        codecs.clear();
+        configurationVersion.incrementAndGet();
     }
     
     public void register( String className, CrudUtil crudUtil ) {
+        register( className, crudUtil, AdapterMode.EMBEDDED );
+    }
+
+    /**
+     * Registers the CrudUtil that handles nested objects of the named
+     * class. In REFERENCE mode they are written as references to the
+     * documents in crudUtil's collection, and must be stored through it.
+     */
+    public void register( String className, CrudUtil crudUtil, AdapterMode mode ) {
         adapters.put( className, crudUtil );
+        adapterModes.put( className, mode );
+        adaptersByClass.clear();
+        referencesByClass.clear();
+        configurationVersion.incrementAndGet();
     }
     
     public void unregister( String className ){
         adapters.remove( className );
+        adapterModes.remove( className );
+        adaptersByClass.clear();
+        referencesByClass.clear();
+        configurationVersion.incrementAndGet();
     }
     
     private CrudUtil getAdapter(String className ){
@@ -456,4 +1890,22 @@ public class CrudUtil<T extends HasUuid> {
             return adapters.get( className );
         }
     }
+
+    private CrudUtil getAdapter( Class type ) {
+        Object adapter = adaptersByClass.get( type );
+        if( adapter == null ) {
+            adapter = getAdapter( type.getCanonicalName() );
+            adaptersByClass.put( type, adapter == null ? NO_ADAPTER : adapter );
+        }
+        return adapter == NO_ADAPTER ? null : (CrudUtil)adapter;
+    }
+
+    private boolean isReference( Class type ) {
+        Boolean result = referencesByClass.get( type );
+        if( result == null ) {
+            result = adapterModes.get( type.getCanonicalName() ) == AdapterMode.REFERENCE;
+            referencesByClass.put( type, result );
+        }
+        return result;
+    }
 }
@@ -0,0 +1,175 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+
+/**
+ * The measurements CrudMetrics keeps for one collection and class. The
+ * lock wait histogram is kept on the entry for the collection alone, whose
+ * class name is null.
+ */
+public final class CrudUtilStats {
+    private final CrudMetrics metrics;
+    private final String collection;
+    private final String className;
+    private final AtomicReferenceArray<OperationStats> operations = new AtomicReferenceArray( CrudOperation.values().length );
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+    private final LatencyHistogram marshalling = new LatencyHistogram();
+    private final LatencyHistogram unmarshalling = new LatencyHistogram();
+    private final LongAdder bytesMarshalled = new LongAdder();
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+
+    CrudUtilStats( CrudMetrics metrics, String collection, String className ) {
+        this.metrics = metrics;
+        this.collection = collection;
+        this.className = className;
+    }
+
+    /**
+     * Runs a CrudUtil operation and records it, unless it was called from
+     * inside another measured operation on the same thread, in which case
+     * its time and round trips count towards the outer one.
+     */
+    <R> R measure( CrudOperation operation, PersistenceCall<R> call ) throws PersistenceException {
+        CrudMetrics.Scope scope = CrudMetrics.scope();
+        if( scope.depth > 0 ) {
+            return call.call();
+        }
+
+        scope.depth = 1;
+        scope.roundTrips.set( 0 );
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            R result = call.call();
+            failed = false;
+            return result;
+        }
+        finally {
+            long nanos = System.nanoTime() - start;
+            int calls = scope.roundTrips.get();
+            scope.depth = 0;
+
+            getOperation( operation ).record( nanos, calls, failed );
+            for( MetricsListener listener : metrics.getListenerArray() ) {
+                listener.onOperation( collection, className, operation, nanos, calls, failed );
+            }
+        }
+    }
+
+    void roundTrip( long nanos ) {
+        CrudMetrics.Scope scope = CrudMetrics.scope();
+        if( scope.depth > 0 ) {
+            scope.roundTrips.incrementAndGet();
+        }
+
+        roundTrips.record( nanos );
+        for( MetricsListener listener : metrics.getListenerArray() ) {
+            listener.onRoundTrip( collection, className, nanos );
+        }
+    }
+
+    void marshalled( BSONObject document, long nanos ) {
+        long bytes = -1;
+        if( metrics.isCountingBytes() ) {
+            bytes = new BasicBSONEncoder().encode( document ).length;
+            bytesMarshalled.add( bytes );
+        }
+
+        marshalling.record( nanos );
+        for( MetricsListener listener : metrics.getListenerArray() ) {
+            listener.onMarshall( className, nanos, bytes );
+        }
+    }
+
+    void unmarshalled( long nanos ) {
+        unmarshalling.record( nanos );
+        for( MetricsListener listener : metrics.getListenerArray() ) {
+            listener.onUnmarshall( className, nanos );
+        }
+    }
+
+    void lockWaited( long nanos ) {
+        lockWaits.record( nanos );
+        for( MetricsListener listener : metrics.getListenerArray() ) {
+            listener.onLockWait( collection, nanos );
+        }
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public OperationStats getOperation( CrudOperation operation ) {
+        OperationStats stats = operations.get( operation.ordinal() );
+        if( stats == null ) {
+            operations.compareAndSet( operation.ordinal(), null, new OperationStats( operation ) );
+            stats = operations.get( operation.ordinal() );
+        }
+        return stats;
+    }
+
+    /**
+     * The operations that have been called at least once.
+     */
+    public List<OperationStats> getOperations() {
+        List<OperationStats> result = new ArrayList();
+        for( int index = 0; index < operations.length(); index++ ) {
+            if( operations.get( index ) != null ) {
+                result.add( operations.get( index ) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The duration of every call to the DocumentStore.
+     */
+    public LatencyHistogram getRoundTrips() {
+        return roundTrips;
+    }
+
+    /**
+     * The time taken to marshall each object; the count is the number of
+     * documents marshalled.
+     */
+    public LatencyHistogram getMarshalling() {
+        return marshalling;
+    }
+
+    public LatencyHistogram getUnmarshalling() {
+        return unmarshalling;
+    }
+
+    /**
+     * The BSON size of every document marshalled while CrudMetrics was
+     * counting bytes.
+     */
+    public long getBytesMarshalled() {
+        return bytesMarshalled.sum();
+    }
+
+    public LatencyHistogram getLockWaits() {
+        return lockWaits;
+    }
+
+    void reset() {
+        for( OperationStats stats : getOperations() ) {
+            stats.reset();
+        }
+        roundTrips.reset();
+        marshalling.reset();
+        unmarshalling.reset();
+        bytesMarshalled.reset();
+        lockWaits.reset();
+    }
+}
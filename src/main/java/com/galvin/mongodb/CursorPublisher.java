@@ -0,0 +1,261 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.DBObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Reactive Streams publisher over the results of a query. Each
+ * subscription opens its own cursor when the subscriber first requests
+ * data, and documents are read and unmarshalled a window at a time, only
+ * when the subscriber has requested more than has already been decoded, so
+ * the cursor only fetches another batch from the server when there is
+ * demand for it. The objects referenced by a window are loaded with one
+ * query per adapter. Cancelling closes the cursor.
+ * 
+ * Signals are delivered on the executor, never on the thread that calls
+ * request(), so a subscriber may request more from inside onNext(). A
+ * subscriber that throws from a signal is treated as having cancelled: the
+ * cursor is closed, the exception is logged and nothing more is sent to it.
+ * An Error, from the subscriber or from decoding, also closes the cursor and
+ * ends the subscription, but is rethrown on the executor's thread rather
+ * than signalled.
+ */
+public class CursorPublisher<T> implements Publisher<T> {
+    private static final Logger logger = LoggerFactory.getLogger( CursorPublisher.class );
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static volatile ExecutorService defaultExecutor;
+
+    private final Supplier<DocumentCursor> cursorFactory;
+    private final BatchDecoder<T> decoder;
+    private final int batchSize;
+    private final int windowSize;
+    private final Executor executor;
+
+    CursorPublisher( Supplier<DocumentCursor> cursorFactory, BatchDecoder<T> decoder, int batchSize, int windowSize, Executor executor ) {
+        this.cursorFactory = cursorFactory;
+        this.decoder = decoder;
+        this.batchSize = batchSize;
+        this.windowSize = windowSize;
+        this.executor = executor == null ? getDefaultExecutor() : executor;
+    }
+
+    /**
+     * Cursor reads block, so publishers without an executor of their own
+     * share a pool of daemon threads rather than the common fork-join pool.
+     */
+    private static ExecutorService getDefaultExecutor() {
+        ExecutorService result = defaultExecutor;
+        if( result == null ) {
+            synchronized( CursorPublisher.class ) {
+                if( defaultExecutor == null ) {
+                    defaultExecutor = Executors.newCachedThreadPool( runnable -> {
+                        Thread thread = new Thread( runnable, "CursorPublisher-" + threadCount.incrementAndGet() );
+                        thread.setDaemon( true );
+                        return thread;
+                    } );
+                }
+                result = defaultExecutor;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void subscribe( Subscriber<? super T> subscriber ) {
+        if( subscriber == null ) {
+            throw new NullPointerException( "Subscriber must not be null" );
+        }
+
+        CursorSubscription subscription = new CursorSubscription( subscriber );
+        subscriber.onSubscribe( subscription );
+    }
+
+    private final class CursorSubscription implements Subscription, Runnable {
+        private final Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalidRequest;
+        private DocumentCursor cursor;
+        private final ArrayDeque<T> decoded = new ArrayDeque();
+        private boolean done = false;
+
+        private CursorSubscription( Subscriber<? super T> subscriber ) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request( long n ) {
+            if( n <= 0 ) {
+                invalidRequest = new IllegalArgumentException( "Requested " + n + " elements; must be positive" );
+            }
+            else {
+                long current;
+                do {
+                    current = demand.get();
+                    if( current == Long.MAX_VALUE ) {
+                        break;
+                    }
+                }
+                while( !demand.compareAndSet( current, current + n < 0 ? Long.MAX_VALUE : current + n ) );
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if( work.getAndIncrement() == 0 ) {
+                try {
+                    executor.execute( this );
+                }
+                catch( RuntimeException ex ) {
+                    // no emitter is running, so this thread owns the cursor
+                    cancelled = true;
+                    finish();
+                    work.set( 0 );
+                    signalError( ex );
+                }
+            }
+        }
+
+        /**
+         * Emits as many documents as there is demand for. Only one thread
+         * runs this at a time; calls to schedule() made while it runs make
+         * it go round again instead of starting a second emitter.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if( !done ) {
+                    try {
+                        emit();
+                    }
+                    catch( Error ex ) {
+                        cancelled = true;
+                        finish();
+                        throw ex;
+                    }
+                }
+                missed = work.addAndGet( -missed );
+            }
+            while( missed != 0 );
+        }
+
+        private void emit() {
+            if( cancelled ) {
+                finish();
+                return;
+            }
+            if( invalidRequest != null ) {
+                finish();
+                signalError( invalidRequest );
+                return;
+            }
+
+            try {
+                while( demand.get() > 0 && !cancelled ) {
+                    if( decoded.isEmpty() ) {
+                        if( cursor == null ) {
+                            cursor = cursorFactory.get();
+                            if( batchSize > 0 ) {
+                                cursor.batchSize( batchSize );
+                            }
+                        }
+
+                        if( !cursor.hasNext() ) {
+                            finish();
+                            signalComplete();
+                            return;
+                        }
+
+                        List<DBObject> records = new ArrayList( windowSize );
+                        while( records.size() < windowSize && cursor.hasNext() ) {
+                            records.add( cursor.next() );
+                        }
+                        decoded.addAll( decoder.decode( records ) );
+                    }
+
+                    T item = decoded.poll();
+                    if( demand.get() != Long.MAX_VALUE ) {
+                        demand.decrementAndGet();
+                    }
+                    if( !signalNext( item ) ) {
+                        return;
+                    }
+                }
+
+                if( cancelled ) {
+                    finish();
+                }
+            }
+            catch( PersistenceException | RuntimeException ex ) {
+                finish();
+                signalError( ex );
+            }
+        }
+
+        /**
+         * Delivers an item, treating a subscriber that throws as cancelled
+         * rather than signalling it again (Reactive Streams rule 2.13).
+         */
+        private boolean signalNext( T item ) {
+            try {
+                subscriber.onNext( item );
+                return true;
+            }
+            catch( RuntimeException ex ) {
+                cancelled = true;
+                finish();
+                logger.warn( "Subscriber threw from onNext; its subscription is cancelled", ex );
+                return false;
+            }
+        }
+
+        private void signalComplete() {
+            try {
+                subscriber.onComplete();
+            }
+            catch( RuntimeException ex ) {
+                logger.warn( "Subscriber threw from onComplete", ex );
+            }
+        }
+
+        private void signalError( Throwable error ) {
+            try {
+                subscriber.onError( error );
+            }
+            catch( RuntimeException ex ) {
+                logger.warn( "Subscriber threw from onError", ex );
+            }
+        }
+
+        private void finish() {
+            done = true;
+            decoded.clear();
+            if( cursor != null ) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+    }
+}
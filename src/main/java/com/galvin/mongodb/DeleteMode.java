@@ -0,0 +1,21 @@
+package com.galvin.mongodb;
+
+/**
+ * How CrudUtil.deleteAll(DeleteMode) clears a collection.
+ */
+public enum DeleteMode {
+    /**
+     * A single server-side delete of every document of the CrudUtil's type.
+     * Documents of other types in the same collection are left alone.
+     */
+    MULTI_DELETE,
+
+    /**
+     * Drops the collection, recreates it and restores its indexes. This is
+     * much faster than deleting documents one at a time, but it removes
+     * documents of every type stored in the collection, and it must not run
+     * while anything else writes to the collection. Collection options such
+     * as capped size, validator and collation are kept.
+     */
+    TRUNCATE
+}
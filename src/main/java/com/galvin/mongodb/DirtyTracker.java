@@ -0,0 +1,222 @@
+package com.galvin.mongodb;
+
+import com.mongodb.BasicDBObject;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.BSONObject;
+import org.bson.types.Binary;
+
+/**
+ * Remembers the documents of the objects a CrudUtil has loaded or stored,
+ * as a snapshot or as per-field hashes, and works out the $set and $unset
+ * that turn a remembered document into the current one.
+ */
+final class DirtyTracker {
+    private static final long SEED = 0xcbf29ce484222325L;
+    private static final long MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    private final DirtyTracking mode;
+    private final WeakIdentityMap<Object, Object> snapshots = new WeakIdentityMap();
+
+    DirtyTracker( DirtyTracking mode ) {
+        this.mode = mode;
+    }
+
+    DirtyTracking getMode() {
+        return mode;
+    }
+
+    /**
+     * Remembers the record as the target's state. The record may be the
+     * document as read from the database: its _id and any other top-level
+     * fields that CrudUtil does not map, which start with an underscore, are
+     * never compared.
+     */
+    void track( Object target, BasicDBObject record ) {
+        snapshots.put( target, mode == DirtyTracking.SNAPSHOT ? record : hashes( record ) );
+    }
+
+    boolean isTracked( Object target ) {
+        return snapshots.get( target ) != null;
+    }
+
+    void forget( Object target ) {
+        snapshots.remove( target );
+    }
+
+    /**
+     * Returns the update that turns the remembered document of the target
+     * into record, which may have no operators if nothing changed, or null
+     * if the target is not tracked. The excluded field is never compared.
+     */
+    BasicDBObject diff( Object target, BasicDBObject record, String excluded ) {
+        Object snapshot = snapshots.get( target );
+        if( snapshot == null ) {
+            return null;
+        }
+
+        BasicDBObject set = new BasicDBObject();
+        BasicDBObject unset = new BasicDBObject();
+        if( mode == DirtyTracking.SNAPSHOT ) {
+            diff( "", (BSONObject)snapshot, record, excluded, set, unset );
+        }
+        else {
+            Map<String, Long> before = (Map<String, Long>)snapshot;
+            for( String key : record.keySet() ) {
+                Long hash = before.get( key );
+                if( !key.equals( excluded ) && !isUnmapped( key ) && ( hash == null || hash != hash( record.get( key ) ) ) ) {
+                    set.put( key, record.get( key ) );
+                }
+            }
+            for( String key : before.keySet() ) {
+                if( !key.equals( excluded ) && !isUnmapped( key ) && !record.containsField( key ) ) {
+                    unset.put( key, "" );
+                }
+            }
+        }
+
+        BasicDBObject result = new BasicDBObject();
+        if( !set.isEmpty() ) {
+            result.put( "$set", set );
+        }
+        if( !unset.isEmpty() ) {
+            result.put( "$unset", unset );
+        }
+        return result;
+    }
+
+    /**
+     * Compares two documents field by field. Embedded documents of the same
+     * type are compared recursively and lists of the same length element
+     * by element, so that only the dotted paths that changed are set or
+     * unset. A list that changed length is set whole.
+     */
+    private static void diff( String prefix, BSONObject before, BSONObject after, String excluded,
+                              BasicDBObject set, BasicDBObject unset ) {
+        for( String key : after.keySet() ) {
+            if( prefix.isEmpty() && ( key.equals( excluded ) || isUnmapped( key ) ) ) {
+                continue;
+            }
+
+            String path = prefix + key;
+            Object value = after.get( key );
+            if( !before.containsField( key ) ) {
+                set.put( path, value );
+            }
+            else {
+                diffValue( path, before.get( key ), value, set, unset );
+            }
+        }
+
+        for( String key : before.keySet() ) {
+            if( !after.containsField( key ) && !( prefix.isEmpty() && ( key.equals( excluded ) || isUnmapped( key ) ) ) ) {
+                unset.put( prefix + key, "" );
+            }
+        }
+    }
+
+    private static void diffValue( String path, Object before, Object after, BasicDBObject set, BasicDBObject unset ) {
+        if( isDocument( before ) && isDocument( after ) && sameType( (BSONObject)before, (BSONObject)after ) ) {
+            diff( path + ".", (BSONObject)before, (BSONObject)after, null, set, unset );
+        }
+        else if( before instanceof List && after instanceof List && ( (List)before ).size() == ( (List)after ).size() ) {
+            List beforeList = (List)before;
+            List afterList = (List)after;
+            for( int index = 0; index < afterList.size(); index++ ) {
+                diffValue( path + "." + index, beforeList.get( index ), afterList.get( index ), set, unset );
+            }
+        }
+        else if( !Documents.valuesEqual( before, after ) ) {
+            set.put( path, after );
+        }
+    }
+
+    /**
+     * Top-level fields that CrudUtil neither reads nor writes, such as _id.
+     */
+    private static boolean isUnmapped( String key ) {
+        return key.startsWith( "_" ) && !CrudUtil.CANONICAL_NAME.equals( key ) && !TypeRegistry.TYPE_KEY.equals( key );
+    }
+
+    private static boolean isDocument( Object value ) {
+        return value instanceof BSONObject && !( value instanceof List );
+    }
+
+    /**
+     * Embedded documents written by different adapters are replaced whole
+     * rather than merged.
+     */
+    private static boolean sameType( BSONObject before, BSONObject after ) {
+        return Documents.valuesEqual( before.get( CrudUtil.CANONICAL_NAME ), after.get( CrudUtil.CANONICAL_NAME ) ) &&
+               Documents.valuesEqual( before.get( TypeRegistry.TYPE_KEY ), after.get( TypeRegistry.TYPE_KEY ) );
+    }
+
+    private static Map<String, Long> hashes( BasicDBObject record ) {
+        Map<String, Long> result = new HashMap( record.size() * 2 );
+        for( String key : record.keySet() ) {
+            if( !isUnmapped( key ) ) {
+                result.put( key, hash( record.get( key ) ) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A 64-bit hash of a marshalled value that, unlike hashCode(), covers
+     * the order of fields and the full width of longs and doubles.
+     */
+    static long hash( Object value ) {
+        return hash( SEED, value );
+    }
+
+    private static long hash( long hash, Object value ) {
+        if( value == null ) {
+            return mix( hash, 0 );
+        }
+        else if( value instanceof BSONObject && !( value instanceof List ) ) {
+            BSONObject document = (BSONObject)value;
+            hash = mix( hash, 1 );
+            for( String key : document.keySet() ) {
+                hash = hash( hash, key );
+                hash = hash( hash, document.get( key ) );
+            }
+            return mix( hash, document.keySet().size() );
+        }
+        else if( value instanceof List ) {
+            hash = mix( hash, 2 );
+            for( Object element : (List)value ) {
+                hash = hash( hash, element );
+            }
+            return mix( hash, ( (List)value ).size() );
+        }
+        else if( value instanceof String ) {
+            String string = (String)value;
+            hash = mix( hash, 3 );
+            for( int index = 0; index < string.length(); index++ ) {
+                hash = mix( hash, string.charAt( index ) );
+            }
+            return mix( hash, string.length() );
+        }
+        else if( value instanceof Double || value instanceof Float ) {
+            return mix( mix( hash, 4 ), Double.doubleToLongBits( ( (Number)value ).doubleValue() ) );
+        }
+        else if( value instanceof Number ) {
+            return mix( mix( hash, 5 ), ( (Number)value ).longValue() );
+        }
+        else if( value instanceof Binary || value instanceof byte[] ) {
+            byte[] data = value instanceof Binary ? ( (Binary)value ).getData() : (byte[])value;
+            hash = mix( hash, value instanceof Binary ? 6 + ( (Binary)value ).getType() * 16L : 6 );
+            for( byte b : data ) {
+                hash = mix( hash, b );
+            }
+            return mix( hash, data.length );
+        }
+        return mix( mix( hash, 7 ), value.hashCode() );
+    }
+
+    private static long mix( long hash, long value ) {
+        hash = ( hash ^ value ) * MULTIPLIER;
+        return hash ^ ( hash >>> 29 );
+    }
+}
@@ -0,0 +1,25 @@
+package com.galvin.mongodb;
+
+/**
+ * How CrudUtil remembers the state of the objects it loads, so that
+ * update() can send only the fields that have changed.
+ */
+public enum DirtyTracking {
+    /**
+     * Nothing is remembered; update() stores the whole object.
+     */
+    NONE,
+
+    /**
+     * A copy of each object's document is kept. Changes are found down to
+     * single fields of embedded objects and single elements of lists, at the
+     * cost of holding a second copy of every loaded object.
+     */
+    SNAPSHOT,
+
+    /**
+     * A 64-bit hash of each top-level field is kept. A changed field is
+     * rewritten whole, including any objects and lists it holds.
+     */
+    HASH
+}
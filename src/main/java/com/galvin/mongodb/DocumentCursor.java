@@ -0,0 +1,39 @@
+package com.galvin.mongodb;
+
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * The results of DocumentStore.find(). Cursors must be closed if they are
+ * not read to the end.
+ */
+public interface DocumentCursor extends Iterator<DBObject>, Closeable {
+    /**
+     * Sets how many documents are fetched per round trip. Stores that make
+     * no round trips ignore it.
+     */
+    public DocumentCursor batchSize( int batchSize );
+
+    /**
+     * Orders the results by a sort specification such as {name: 1, _id: -1}.
+     * Must be called before the cursor is read.
+     */
+    public DocumentCursor sort( DBObject sort );
+
+    /**
+     * Returns at most limit documents, or all of them if limit is zero.
+     * Must be called before the cursor is read.
+     */
+    public DocumentCursor limit( int limit );
+
+    /**
+     * Sets the decoder used for documents read off the wire. Stores that
+     * do not decode BSON ignore it and return ordinary DBObjects.
+     */
+    public DocumentCursor decodeWith( DBDecoderFactory decoderFactory );
+
+    @Override
+    public void close();
+}
@@ -0,0 +1,77 @@
+package com.galvin.mongodb;
+
+import com.mongodb.DBObject;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * The storage operations CrudUtil performs on a collection of documents.
+ * MongoDocumentStore runs them against a DBCollection; InMemoryDocumentStore
+ * keeps the documents in the local heap.
+ *
+ * Queries, updates and field selectors use MongoDB's syntax. Failures are
+ * reported as MongoExceptions, a duplicate key on a unique index with code
+ * DUPLICATE_KEY, so CrudUtil handles every store the same way.
+ */
+public interface DocumentStore {
+    /**
+     * The error code reported when a write would violate a unique index.
+     */
+    public static final int DUPLICATE_KEY = 11000;
+
+    public String getName();
+
+    /**
+     * Returns a cursor over the documents matching the query, with only the
+     * selected fields, or every field if fields is null.
+     */
+    public DocumentCursor find( DBObject query, DBObject fields );
+
+    public long count( DBObject query );
+
+    /**
+     * Runs the query and describes how it was executed, in the format of
+     * MongoDB's explain command with executionStats: queryPlanner.winningPlan
+     * is a tree of stages, and executionStats holds nReturned,
+     * totalKeysExamined and totalDocsExamined. Servers older than 3.0
+     * report the legacy format instead; QueryPlan reads both.
+     */
+    public DBObject explain( DBObject query );
+
+    public void insert( DBObject document );
+
+    /**
+     * Replaces the matching document, or applies update operators such as
+     * $set and $setOnInsert to it. If nothing matches and upsert is true,
+     * inserts a new document seeded from the query's equality fields.
+     */
+    public UpdateResult update( DBObject query, DBObject update, boolean upsert, boolean multi );
+
+    /**
+     * Removes every matching document and returns how many there were.
+     */
+    public long remove( DBObject query );
+
+    /**
+     * Applies the writes as one batch and returns the error message of each
+     * write that failed, keyed by its position in the list. If ordered is
+     * true, nothing after the first failure is applied.
+     */
+    public SortedMap<Integer, String> bulkWrite( List<DocumentWrite> writes, boolean ordered );
+
+    /**
+     * Removes every document, keeping the indexes, and returns how many
+     * documents there were. Implementations may not be atomic, so truncate
+     * should not run while other writes are made to the store, and the
+     * count is only exact if none are.
+     */
+    public long truncate();
+
+    public void createIndex( DBObject keys, DBObject options );
+
+    /**
+     * Describes the indexes, in the format of the listIndexes command: each
+     * entry has at least a name, a key document and, if set, unique.
+     */
+    public List<DBObject> getIndexInfo();
+}
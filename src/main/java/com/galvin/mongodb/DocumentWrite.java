@@ -0,0 +1,40 @@
+package com.galvin.mongodb;
+
+import com.mongodb.DBObject;
+
+/**
+ * One write in a DocumentStore.bulkWrite() batch: either an upserting
+ * replace or a remove of every matching document.
+ */
+public final class DocumentWrite {
+    private final DBObject query;
+    private final DBObject replacement;
+
+    private DocumentWrite( DBObject query, DBObject replacement ) {
+        this.query = query;
+        this.replacement = replacement;
+    }
+
+    public static DocumentWrite replace( DBObject query, DBObject replacement ) {
+        return new DocumentWrite( query, replacement );
+    }
+
+    public static DocumentWrite remove( DBObject query ) {
+        return new DocumentWrite( query, null );
+    }
+
+    public DBObject getQuery() {
+        return query;
+    }
+
+    /**
+     * The replacement document, or null if this is a remove.
+     */
+    public DBObject getReplacement() {
+        return replacement;
+    }
+
+    public boolean isRemove() {
+        return replacement == null;
+    }
+}
@@ -0,0 +1,800 @@
+package com.galvin.mongodb;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * Evaluates MongoDB queries, sorts, field selectors and update operators
+ * against documents held in memory, for InMemoryDocumentStore. Only the
+ * operators CrudUtil and its callers emit are supported; anything else
+ * fails with a MongoException rather than silently matching the wrong
+ * documents.
+ */
+final class Documents {
+    /**
+     * The value of a path that does not exist in a document, as distinct
+     * from a field holding null.
+     */
+    static final Object MISSING = new Object();
+
+    /**
+     * The index key of a null or missing value.
+     */
+    static final Object NULL_KEY = new Object();
+
+    private Documents() {
+    }
+
+    //////////////
+    // matching //
+    //////////////
+
+    static boolean matches( DBObject document, DBObject query ) {
+        for( String key : query.keySet() ) {
+            Object condition = query.get( key );
+
+            if( "$or".equals( key ) ) {
+                boolean any = false;
+                for( Object branch : asList( condition ) ) {
+                    if( matches( document, (DBObject)branch ) ) {
+                        any = true;
+                        break;
+                    }
+                }
+                if( !any ) {
+                    return false;
+                }
+            }
+            else if( "$and".equals( key ) ) {
+                for( Object branch : asList( condition ) ) {
+                    if( !matches( document, (DBObject)branch ) ) {
+                        return false;
+                    }
+                }
+            }
+            else if( key.startsWith( "$" ) ) {
+                throw new MongoException( "Unsupported query operator " + key );
+            }
+            else if( !matchesCondition( get( document, key ), condition ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesCondition( Object value, Object condition ) {
+        if( !isOperatorObject( condition ) ) {
+            return equalsOrContains( value, condition );
+        }
+
+        Map operators = toMap( condition );
+        for( Object key : operators.keySet() ) {
+            String operator = (String)key;
+            Object argument = operators.get( operator );
+            boolean matched;
+
+            switch( operator ) {
+                case "$eq":
+                    matched = equalsOrContains( value, argument );
+                    break;
+                case "$ne":
+                    matched = !equalsOrContains( value, argument );
+                    break;
+                case "$in":
+                    matched = in( value, argument );
+                    break;
+                case "$nin":
+                    matched = !in( value, argument );
+                    break;
+                case "$exists":
+                    matched = ( value != MISSING ) == isTrue( argument );
+                    break;
+                case "$gt":
+                case "$gte":
+                case "$lt":
+                case "$lte":
+                    matched = inRange( value, operator, argument );
+                    break;
+                default:
+                    throw new MongoException( "Unsupported query operator " + operator );
+            }
+
+            if( !matched ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * MongoDB's comparison operators, which only match values of the same
+     * type as the argument, and match an array if any element does.
+     */
+    private static boolean inRange( Object value, String operator, Object argument ) {
+        if( value instanceof List ) {
+            for( Object element : (List)value ) {
+                if( inRange( element, operator, argument ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if( value == MISSING || typeOrder( value ) != typeOrder( argument ) ) {
+            return false;
+        }
+
+        int comparison = compare( value, argument );
+        switch( operator ) {
+            case "$gt":
+                return comparison > 0;
+            case "$gte":
+                return comparison >= 0;
+            case "$lt":
+                return comparison < 0;
+            default:
+                return comparison <= 0;
+        }
+    }
+
+    private static boolean in( Object value, Object candidates ) {
+        for( Object candidate : asList( candidates ) ) {
+            if( equalsOrContains( value, candidate ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * MongoDB's equality: a missing field equals null, and an array equals
+     * any of its elements as well as an identical array.
+     */
+    private static boolean equalsOrContains( Object value, Object target ) {
+        if( value == MISSING ) {
+            return target == null;
+        }
+        if( valuesEqual( value, target ) ) {
+            return true;
+        }
+        if( value instanceof List ) {
+            for( Object element : (List)value ) {
+                if( valuesEqual( element, target ) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static boolean valuesEqual( Object left, Object right ) {
+        if( left == right ) {
+            return true;
+        }
+        if( left == null || right == null ) {
+            return false;
+        }
+
+        if( left instanceof Number && right instanceof Number ) {
+            return compareNumbers( (Number)left, (Number)right ) == 0;
+        }
+        if( isBinary( left ) && isBinary( right ) ) {
+            return binaryType( left ) == binaryType( right ) &&
+                   Arrays.equals( binaryData( left ), binaryData( right ) );
+        }
+        if( left instanceof List && right instanceof List ) {
+            List leftList = (List)left;
+            List rightList = (List)right;
+            if( leftList.size() != rightList.size() ) {
+                return false;
+            }
+            for( int index = 0; index < leftList.size(); index++ ) {
+                if( !valuesEqual( leftList.get( index ), rightList.get( index ) ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if( isDocument( left ) && isDocument( right ) ) {
+            Map leftMap = toMap( left );
+            Map rightMap = toMap( right );
+            if( !new ArrayList( leftMap.keySet() ).equals( new ArrayList( rightMap.keySet() ) ) ) {
+                return false;
+            }
+            for( Object key : leftMap.keySet() ) {
+                if( !valuesEqual( leftMap.get( key ), rightMap.get( key ) ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return left.equals( right );
+    }
+
+    /////////////
+    // sorting //
+    /////////////
+
+    /**
+     * Returns a comparator that orders documents by a sort specification
+     * such as {name: 1, _id: -1}. Missing fields sort as null.
+     */
+    static Comparator<DBObject> comparator( DBObject sort ) {
+        List<String> fields = new ArrayList( sort.keySet() );
+        int[] directions = new int[ fields.size() ];
+        for( int index = 0; index < directions.length; index++ ) {
+            directions[ index ] = ( (Number)sort.get( fields.get( index ) ) ).intValue() < 0 ? -1 : 1;
+        }
+
+        return ( left, right ) -> {
+            for( int index = 0; index < directions.length; index++ ) {
+                int comparison = compare( get( left, fields.get( index ) ), get( right, fields.get( index ) ) );
+                if( comparison != 0 ) {
+                    return comparison * directions[ index ];
+                }
+            }
+            return 0;
+        };
+    }
+
+    /**
+     * Compares two values in MongoDB's order: null, numbers, strings,
+     * documents, arrays, binary data, ObjectIds, booleans, then dates.
+     */
+    static int compare( Object left, Object right ) {
+        int leftType = typeOrder( left );
+        int rightType = typeOrder( right );
+        if( leftType != rightType ) {
+            return Integer.compare( leftType, rightType );
+        }
+
+        switch( leftType ) {
+            case 0:
+                return 0;
+            case 1:
+                return compareNumbers( (Number)left, (Number)right );
+            case 2:
+                return left.toString().compareTo( right.toString() );
+            case 3:
+                return compareLists( new ArrayList( toMap( left ).values() ), new ArrayList( toMap( right ).values() ) );
+            case 4:
+                return compareLists( (List)left, (List)right );
+            case 5:
+                return compareBinary( left, right );
+            default:
+                return ( (Comparable)left ).compareTo( right );
+        }
+    }
+
+    private static int typeOrder( Object value ) {
+        if( value == null || value == MISSING ) {
+            return 0;
+        }
+        else if( value instanceof Number ) {
+            return 1;
+        }
+        else if( value instanceof String || value instanceof Character ) {
+            return 2;
+        }
+        else if( value instanceof List ) {
+            return 4;
+        }
+        else if( isDocument( value ) ) {
+            return 3;
+        }
+        else if( isBinary( value ) ) {
+            return 5;
+        }
+        else if( value instanceof ObjectId ) {
+            return 6;
+        }
+        else if( value instanceof Boolean ) {
+            return 7;
+        }
+        else if( value instanceof Date ) {
+            return 8;
+        }
+        throw new MongoException( "Unable to compare values of type " + value.getClass().getName() );
+    }
+
+    private static int compareLists( List left, List right ) {
+        for( int index = 0; index < Math.min( left.size(), right.size() ); index++ ) {
+            int comparison = compare( left.get( index ), right.get( index ) );
+            if( comparison != 0 ) {
+                return comparison;
+            }
+        }
+        return Integer.compare( left.size(), right.size() );
+    }
+
+    /**
+     * Orders binary data by length, then subtype, then bytes, as the
+     * server does.
+     */
+    private static int compareBinary( Object left, Object right ) {
+        byte[] leftData = binaryData( left );
+        byte[] rightData = binaryData( right );
+        if( leftData.length != rightData.length ) {
+            return Integer.compare( leftData.length, rightData.length );
+        }
+        if( binaryType( left ) != binaryType( right ) ) {
+            return Integer.compare( binaryType( left ) & 0xff, binaryType( right ) & 0xff );
+        }
+        for( int index = 0; index < leftData.length; index++ ) {
+            if( leftData[ index ] != rightData[ index ] ) {
+                return Integer.compare( leftData[ index ] & 0xff, rightData[ index ] & 0xff );
+            }
+        }
+        return 0;
+    }
+
+    private static int compareNumbers( Number left, Number right ) {
+        if( isIntegral( left ) && isIntegral( right ) ) {
+            return Long.compare( left.longValue(), right.longValue() );
+        }
+        return Double.compare( left.doubleValue(), right.doubleValue() );
+    }
+
+    private static boolean isIntegral( Number number ) {
+        return number instanceof Integer || number instanceof Long ||
+               number instanceof Short || number instanceof Byte;
+    }
+
+    private static boolean isOperatorObject( Object condition ) {
+        if( !isDocument( condition ) ) {
+            return false;
+        }
+        Collection keys = condition instanceof Map ? ( (Map)condition ).keySet() : ( (DBObject)condition ).keySet();
+        Iterator iterator = keys.iterator();
+        return iterator.hasNext() && String.valueOf( iterator.next() ).startsWith( "$" );
+    }
+
+    /////////////
+    // indexes //
+    /////////////
+
+    /**
+     * Returns the hash key of a scalar value, consistent with
+     * valuesEqual(), or null if the value is an array or embedded document
+     * and cannot be used as a key.
+     */
+    static Object keyOf( Object value ) {
+        if( value == null || value == MISSING ) {
+            return NULL_KEY;
+        }
+        if( value instanceof Number ) {
+            Number number = (Number)value;
+            if( isIntegral( number ) ) {
+                return number.longValue();
+            }
+            double real = number.doubleValue();
+            if( real == Math.rint( real ) && Math.abs( real ) < 0x1p63 ) {
+                return (long)real;
+            }
+            return real;
+        }
+        if( isBinary( value ) ) {
+            return new BinaryKey( binaryType( value ), binaryData( value ) );
+        }
+        if( value instanceof List || isDocument( value ) || value instanceof Object[] ) {
+            return null;
+        }
+        return value;
+    }
+
+    private static boolean isBinary( Object value ) {
+        return value instanceof Binary || value instanceof byte[];
+    }
+
+    private static byte binaryType( Object value ) {
+        return value instanceof Binary ? ( (Binary)value ).getType() : 0;
+    }
+
+    private static byte[] binaryData( Object value ) {
+        return value instanceof Binary ? ( (Binary)value ).getData() : (byte[])value;
+    }
+
+    private static final class BinaryKey {
+        private final byte type;
+        private final byte[] data;
+
+        private BinaryKey( byte type, byte[] data ) {
+            this.type = type;
+            this.data = data;
+        }
+
+        @Override
+        public boolean equals( Object other ) {
+            return other instanceof BinaryKey &&
+                   ( (BinaryKey)other ).type == type &&
+                   Arrays.equals( ( (BinaryKey)other ).data, data );
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type + Arrays.hashCode( data );
+        }
+    }
+
+    ///////////
+    // paths //
+    ///////////
+
+    /**
+     * Returns the value at a dotted path, or MISSING. A path that passes
+     * through an array collects the values from each of its documents.
+     */
+    static Object get( Object value, String path ) {
+        int dot = path.indexOf( '.' );
+        String head = dot < 0 ? path : path.substring( 0, dot );
+        String rest = dot < 0 ? null : path.substring( dot + 1 );
+
+        if( value instanceof List ) {
+            List list = (List)value;
+            if( isArrayIndex( head ) ) {
+                int index = Integer.parseInt( head );
+                if( index >= list.size() ) {
+                    return MISSING;
+                }
+                return rest == null ? list.get( index ) : get( list.get( index ), rest );
+            }
+
+            BasicDBList collected = new BasicDBList();
+            for( Object element : list ) {
+                Object found = isDocument( element ) ? get( element, path ) : MISSING;
+                if( found instanceof List ) {
+                    collected.addAll( (List)found );
+                }
+                else if( found != MISSING ) {
+                    collected.add( found );
+                }
+            }
+            return collected.isEmpty() ? MISSING : collected;
+        }
+
+        if( !isDocument( value ) ) {
+            return MISSING;
+        }
+
+        DBObject document = (DBObject)value;
+        if( !document.containsField( head ) ) {
+            return MISSING;
+        }
+        Object child = document.get( head );
+        return rest == null ? child : get( child, rest );
+    }
+
+    /**
+     * Sets the value at a dotted path, creating embedded documents as
+     * needed. A numeric part addresses an array element, padding the array
+     * with nulls if it is too short, as the server does.
+     */
+    static void set( DBObject document, String path, Object value ) {
+        setIn( document, path, value );
+    }
+
+    private static void setIn( Object container, String path, Object value ) {
+        int dot = path.indexOf( '.' );
+        String head = dot < 0 ? path : path.substring( 0, dot );
+
+        if( container instanceof List ) {
+            if( !isArrayIndex( head ) ) {
+                throw new MongoException( "Cannot create field [" + head + "] in an array" );
+            }
+            List list = (List)container;
+            int index = Integer.parseInt( head );
+            while( list.size() <= index ) {
+                list.add( null );
+            }
+
+            if( dot < 0 ) {
+                list.set( index, value );
+            }
+            else {
+                Object child = list.get( index );
+                if( !isDocument( child ) && !( child instanceof List ) ) {
+                    child = new BasicDBObject();
+                    list.set( index, child );
+                }
+                setIn( child, path.substring( dot + 1 ), value );
+            }
+            return;
+        }
+
+        DBObject document = (DBObject)container;
+        if( dot < 0 ) {
+            document.put( path, value );
+            return;
+        }
+
+        Object child = document.get( head );
+        if( !isDocument( child ) && !( child instanceof List ) ) {
+            child = new BasicDBObject();
+            document.put( head, child );
+        }
+        setIn( child, path.substring( dot + 1 ), value );
+    }
+
+    /**
+     * Removes the field at a dotted path. An array element is set to null
+     * rather than removed, as the server does.
+     */
+    static void unset( DBObject document, String path ) {
+        unsetIn( document, path );
+    }
+
+    private static void unsetIn( Object container, String path ) {
+        int dot = path.indexOf( '.' );
+        String head = dot < 0 ? path : path.substring( 0, dot );
+
+        Object child;
+        if( container instanceof List ) {
+            List list = (List)container;
+            if( !isArrayIndex( head ) || Integer.parseInt( head ) >= list.size() ) {
+                return;
+            }
+            if( dot < 0 ) {
+                list.set( Integer.parseInt( head ), null );
+                return;
+            }
+            child = list.get( Integer.parseInt( head ) );
+        }
+        else {
+            if( dot < 0 ) {
+                ( (DBObject)container ).removeField( path );
+                return;
+            }
+            child = ( (DBObject)container ).get( head );
+        }
+
+        if( isDocument( child ) || child instanceof List ) {
+            unsetIn( child, path.substring( dot + 1 ) );
+        }
+    }
+
+    private static boolean isArrayIndex( String part ) {
+        if( part.isEmpty() ) {
+            return false;
+        }
+        for( int index = 0; index < part.length(); index++ ) {
+            if( !Character.isDigit( part.charAt( index ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    ////////////////
+    // projection //
+    ////////////////
+
+    /**
+     * Applies a field selector to a copy of a stored document. Inclusion of
+     * a path that passes through an array includes the whole array.
+     */
+    static DBObject project( DBObject document, DBObject fields ) {
+        if( fields == null || fields.keySet().isEmpty() ) {
+            return document;
+        }
+
+        boolean include = false;
+        for( String field : fields.keySet() ) {
+            if( !"_id".equals( field ) && isTrue( fields.get( field ) ) ) {
+                include = true;
+                break;
+            }
+        }
+
+        if( !include ) {
+            for( String field : fields.keySet() ) {
+                unset( document, field );
+            }
+            return document;
+        }
+
+        BasicDBObject result = new BasicDBObject();
+        if( !fields.containsField( "_id" ) || isTrue( fields.get( "_id" ) ) ) {
+            if( document.containsField( "_id" ) ) {
+                result.put( "_id", document.get( "_id" ) );
+            }
+        }
+        for( String field : fields.keySet() ) {
+            if( !"_id".equals( field ) ) {
+                include( document, result, field );
+            }
+        }
+        return result;
+    }
+
+    private static void include( DBObject source, DBObject target, String path ) {
+        int dot = path.indexOf( '.' );
+        String head = dot < 0 ? path : path.substring( 0, dot );
+        if( !source.containsField( head ) ) {
+            return;
+        }
+
+        Object value = source.get( head );
+        if( dot < 0 || !isDocument( value ) ) {
+            target.put( head, value );
+            return;
+        }
+
+        Object child = target.get( head );
+        if( !isDocument( child ) ) {
+            child = new BasicDBObject();
+            target.put( head, child );
+        }
+        include( (DBObject)value, (DBObject)child, path.substring( dot + 1 ) );
+    }
+
+    /////////////
+    // updates //
+    /////////////
+
+    static boolean isOperatorUpdate( DBObject update ) {
+        return isOperatorObject( update );
+    }
+
+    /**
+     * Applies $set, $unset, $inc and $setOnInsert to a document. The last
+     * only applies if the document is being inserted by an upsert.
+     */
+    static void applyOperators( DBObject document, DBObject update, boolean inserting ) {
+        for( String operator : update.keySet() ) {
+            DBObject fields = (DBObject)update.get( operator );
+
+            for( String field : fields.keySet() ) {
+                Object value = fields.get( field );
+
+                switch( operator ) {
+                    case "$set":
+                        set( document, field, copy( value ) );
+                        break;
+                    case "$setOnInsert":
+                        if( inserting ) {
+                            set( document, field, copy( value ) );
+                        }
+                        break;
+                    case "$unset":
+                        unset( document, field );
+                        break;
+                    case "$inc":
+                        set( document, field, add( get( document, field ), (Number)value ) );
+                        break;
+                    default:
+                        throw new MongoException( "Unsupported update operator " + operator );
+                }
+            }
+        }
+    }
+
+    private static Number add( Object current, Number delta ) {
+        if( current == MISSING || current == null ) {
+            return delta;
+        }
+        if( !( current instanceof Number ) ) {
+            throw new MongoException( "Cannot apply $inc to a non-numeric value" );
+        }
+
+        Number number = (Number)current;
+        if( isIntegral( number ) && isIntegral( delta ) ) {
+            long sum = number.longValue() + delta.longValue();
+            boolean fitsInt = number instanceof Integer && delta instanceof Integer &&
+                              sum >= Integer.MIN_VALUE && sum <= Integer.MAX_VALUE;
+            return fitsInt ? (Number)(int)sum : (Number)sum;
+        }
+        return number.doubleValue() + delta.doubleValue();
+    }
+
+    /**
+     * Returns the top-level equality fields of a query, which seed the
+     * document an upsert inserts.
+     */
+    static BasicDBObject equalityFields( DBObject query ) {
+        BasicDBObject result = new BasicDBObject();
+        for( String key : query.keySet() ) {
+            Object condition = query.get( key );
+            if( !key.startsWith( "$" ) && !isOperatorObject( condition ) ) {
+                set( result, key, copy( condition ) );
+            }
+            else if( isOperatorObject( condition ) && toMap( condition ).containsKey( "$eq" ) ) {
+                set( result, key, copy( toMap( condition ).get( "$eq" ) ) );
+            }
+        }
+        return result;
+    }
+
+    /////////////
+    // copying //
+    /////////////
+
+    /**
+     * Deep-copies a value into plain BasicDBObjects and BasicDBLists, the
+     * way a round trip through the database would, so that neither the
+     * caller nor the store can change the other's copy.
+     */
+    static Object copy( Object value ) {
+        if( value instanceof List || value instanceof Object[] ) {
+            BasicDBList result = new BasicDBList();
+            for( Object element : asList( value ) ) {
+                result.add( copy( element ) );
+            }
+            return result;
+        }
+        if( isDocument( value ) ) {
+            Map map = toMap( value );
+            BasicDBObject result = new BasicDBObject();
+            for( Object key : map.keySet() ) {
+                result.put( (String)key, copy( map.get( key ) ) );
+            }
+            return result;
+        }
+        if( value instanceof Date ) {
+            return new Date( ( (Date)value ).getTime() );
+        }
+        if( value instanceof byte[] ) {
+            return ( (byte[])value ).clone();
+        }
+        return value;
+    }
+
+    static DBObject copy( DBObject document ) {
+        return (DBObject)copy( (Object)document );
+    }
+
+    /////////////
+    // helpers //
+    /////////////
+
+    private static boolean isDocument( Object value ) {
+        return ( value instanceof DBObject || value instanceof Map ) && !( value instanceof List );
+    }
+
+    private static Map toMap( Object value ) {
+        if( value instanceof Map ) {
+            return (Map)value;
+        }
+
+        DBObject document = (DBObject)value;
+        Map result = new LinkedHashMap();
+        for( String key : document.keySet() ) {
+            result.put( key, document.get( key ) );
+        }
+        return result;
+    }
+
+    static List asList( Object value ) {
+        if( value instanceof Object[] ) {
+            return Arrays.asList( (Object[])value );
+        }
+        if( value instanceof List ) {
+            return (List)value;
+        }
+        if( value instanceof Collection ) {
+            return new ArrayList( (Collection)value );
+        }
+        throw new MongoException( "Expected an array but found " + value );
+    }
+
+    private static boolean isTrue( Object value ) {
+        if( value instanceof Boolean ) {
+            return (Boolean)value;
+        }
+        if( value instanceof Number ) {
+            return ( (Number)value ).doubleValue() != 0;
+        }
+        return value != null;
+    }
+}
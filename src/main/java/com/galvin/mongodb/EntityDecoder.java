@@ -0,0 +1,189 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBCallback;
+import com.mongodb.DefaultDBDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BSONObject;
+
+/**
+ * A driver decoder that builds CrudUtil objects directly from the BSON
+ * stream. Top-level fields are set on the new object as the decoder reads
+ * them, instead of first being collected into a BasicDBObject; embedded
+ * documents and arrays are still decoded normally and converted once the
+ * document is complete. The cursor returns a DecodedEntity, which
+ * CrudUtil.unmarshall() recognizes.
+ */
+final class EntityDecoder extends DefaultDBDecoder {
+    private final CrudUtil crudUtil;
+
+    EntityDecoder( CrudUtil crudUtil ) {
+        this.crudUtil = crudUtil;
+    }
+
+    @Override
+    public DBCallback getDBCallback( DBCollection collection ) {
+        return new EntityCallback( collection );
+    }
+
+    private final class EntityCallback extends DefaultDBCallback {
+        private EntityCallback( DBCollection collection ) {
+            super( collection );
+        }
+
+        @Override
+        public BSONObject create( boolean array, List<String> path ) {
+            if( !array && ( path == null || path.isEmpty() ) ) {
+                return new DecodedEntity( crudUtil );
+            }
+            return super.create( array, path );
+        }
+    }
+
+    /**
+     * The root document of a decode: every field the driver puts into it is
+     * applied to the object being built. Errors are held until finish(),
+     * since the driver's callbacks cannot throw checked exceptions.
+     */
+    static final class DecodedEntity implements DBObject {
+        private final CrudUtil crudUtil;
+        private ClassCodec codec;
+        private Object entity;
+        private PersistenceException error;
+        private List<String> pendingNames;
+        private List<Object> pendingValues;
+
+        private DecodedEntity( CrudUtil crudUtil ) {
+            this.crudUtil = crudUtil;
+            try {
+                this.codec = crudUtil.getTargetCodec();
+                this.entity = codec.newInstance();
+            }
+            catch( PersistenceException ex ) {
+                error = ex;
+            }
+        }
+
+        boolean belongsTo( CrudUtil crudUtil ) {
+            return this.crudUtil == crudUtil;
+        }
+
+        /**
+         * Converts the embedded documents and arrays, which were still
+         * being filled in when the driver first put them here, and returns
+         * the finished object. References to other objects are left to the
+         * resolver.
+         */
+        Object finish( ReferenceResolver resolver ) throws PersistenceException {
+            if( error == null && pendingNames != null ) {
+                for( int index = 0; index < pendingNames.size(); index++ ) {
+                    apply( pendingNames.get( index ), pendingValues.get( index ), resolver );
+                }
+            }
+
+            if( error != null ) {
+                throw error;
+            }
+            return entity;
+        }
+
+        @Override
+        public Object put( String key, Object value ) {
+            if( error != null || value == null || !crudUtil.setField( key ) ) {
+                return null;
+            }
+
+            if( value instanceof BSONObject ) {
+                if( pendingNames == null ) {
+                    pendingNames = new ArrayList();
+                    pendingValues = new ArrayList();
+                }
+                pendingNames.add( key );
+                pendingValues.add( value );
+            }
+            else {
+                apply( key, value, null );
+            }
+            return null;
+        }
+
+        private void apply( String key, Object value, ReferenceResolver resolver ) {
+            try {
+                if( codec.isIgnored( key ) ) {
+                    return;
+                }
+
+                ClassCodec.FieldBinding field = codec.getField( key );
+                if( field == null ) {
+                    throw new PersistenceException( "Error in CrudUtil.unmarshall",
+                                                    new NoSuchFieldException( key ) );
+                }
+                crudUtil.unmarshallField( entity, field, value, resolver );
+            }
+            catch( PersistenceException ex ) {
+                error = ex;
+            }
+        }
+
+        @Override
+        public Object get( String key ) {
+            return null;
+        }
+
+        @Override
+        public boolean containsField( String key ) {
+            return false;
+        }
+
+        @Override
+        @Deprecated
+        public boolean containsKey( String key ) {
+            return false;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Map toMap() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void putAll( BSONObject o ) {
+            for( String key : o.keySet() ) {
+                put( key, o.get( key ) );
+            }
+        }
+
+        @Override
+        public void putAll( Map m ) {
+            for( Object key : m.keySet() ) {
+                put( (String)key, m.get( key ) );
+            }
+        }
+
+        @Override
+        public Object removeField( String key ) {
+            return null;
+        }
+
+        @Override
+        public void markAsPartialObject() {
+        }
+
+        @Override
+        public boolean isPartialObject() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.galvin.mongodb;
+
+import com.mongodb.DBObject;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.bson.BSONObject;
+
+/**
+ * A read-only document view of an object, handed to the driver in place
+ * of a marshalled BasicDBObject. Field values are read once, through the
+ * class's codec, into an array aligned with its recorded fields; the
+ * driver's encoder then writes them straight to the wire. No per-document
+ * map of keys and boxed entries is built.
+ * 
+ * The only key that may be written is _id, which the driver assigns on
+ * insert.
+ */
+final class EntityDocument implements DBObject {
+    private static final String ID = "_id";
+
+    private final ClassCodec codec;
+    private final String typeKey;
+    private final Object typeValue;
+    private final Object[] values;
+    private final int size;
+    private Object id;
+
+    EntityDocument( ClassCodec codec, String typeKey, Object typeValue, Object[] values ) {
+        this.codec = codec;
+        this.typeKey = typeKey;
+        this.typeValue = typeValue;
+        this.values = values;
+
+        int count = 0;
+        for( Object value : values ) {
+            if( value != null ) {
+                count++;
+            }
+        }
+        this.size = count;
+    }
+
+    @Override
+    public Object get( String key ) {
+        if( typeKey.equals( key ) ) {
+            return typeValue;
+        }
+        else if( ID.equals( key ) ) {
+            return id;
+        }
+
+        int index = codec.getRecordedIndex( key );
+        return index < 0 ? null : values[ index ];
+    }
+
+    @Override
+    public Object put( String key, Object value ) {
+        if( !ID.equals( key ) ) {
+            throw new UnsupportedOperationException( "EntityDocument is read-only: " + key );
+        }
+
+        Object previous = id;
+        id = value;
+        return previous;
+    }
+
+    @Override
+    public boolean containsField( String key ) {
+        return get( key ) != null;
+    }
+
+    @Override
+    @Deprecated
+    public boolean containsKey( String key ) {
+        return containsField( key );
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new KeyIterator();
+            }
+
+            @Override
+            public int size() {
+                return size + ( id == null ? 1 : 2 );
+            }
+        };
+    }
+
+    @Override
+    public Map toMap() {
+        Map result = new LinkedHashMap();
+        for( String key : keySet() ) {
+            result.put( key, get( key ) );
+        }
+        return result;
+    }
+
+    @Override
+    public void putAll( BSONObject o ) {
+        throw new UnsupportedOperationException( "EntityDocument is read-only" );
+    }
+
+    @Override
+    public void putAll( Map m ) {
+        throw new UnsupportedOperationException( "EntityDocument is read-only" );
+    }
+
+    @Override
+    public Object removeField( String key ) {
+        throw new UnsupportedOperationException( "EntityDocument is read-only" );
+    }
+
+    @Override
+    public void markAsPartialObject() {
+    }
+
+    @Override
+    public boolean isPartialObject() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+    /**
+     * Iterates _id (once assigned), then the type key, then the non-null
+     * fields in declaration order, the same order marshall() uses.
+     */
+    private final class KeyIterator implements Iterator<String> {
+        private int position = id == null ? -1 : -2;
+
+        private KeyIterator() {
+            advance( false );
+        }
+
+        private void advance( boolean step ) {
+            if( step ) {
+                position++;
+            }
+            while( position >= 0 && position < values.length && values[ position ] == null ) {
+                position++;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < values.length;
+        }
+
+        @Override
+        public String next() {
+            if( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+
+            String key;
+            if( position == -2 ) {
+                key = ID;
+            }
+            else if( position == -1 ) {
+                key = typeKey;
+            }
+            else {
+                key = codec.getRecordedFields()[ position ].getName();
+            }
+            advance( true );
+            return key;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.galvin.mongodb;
+
+/**
+ * Which entry an ObjectCache discards when it is full.
+ */
+public enum EvictionPolicy {
+    /**
+     * Discard the least recently used entry.
+     */
+    LRU,
+
+    /**
+     * Discard the least frequently used entry, breaking ties by recency.
+     */
+    LFU
+}
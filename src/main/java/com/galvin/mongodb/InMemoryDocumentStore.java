@@ -0,0 +1,667 @@
+package com.galvin.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.types.ObjectId;
+
+/**
+ * A DocumentStore that keeps its documents in the local heap, for reference
+ * data that does not need a network hop and for tests.
+ *
+ * Documents are held in a concurrent map keyed on _id, with hash indexes on
+ * the uuid and type fields and on any field given to createIndex(). Queries
+ * that test an indexed field for equality or $in are answered from the
+ * index, as is an $and with such a branch; anything else scans every
+ * document. Sorts are done in memory. Reads take no locks. Writes are
+ * serialized and never change a stored document in place: each write
+ * stores a new copy, so readers always see whole documents. Documents are
+ * copied on the way in and out, so callers cannot change stored data.
+ *
+ * Queries support equality, $in, $nin, $ne, $exists, $gt, $gte, $lt, $lte,
+ * $or and $and; updates support replacement, $set, $unset, $inc and
+ * $setOnInsert. Unique indexes are not enforced against documents whose
+ * indexed value is an embedded document, or an array in a compound index.
+ */
+public class InMemoryDocumentStore implements DocumentStore {
+    private final String name;
+    private final ConcurrentHashMap<Object, DBObject> documents = new ConcurrentHashMap();
+    private final Map<String, HashIndex> indexes = new LinkedHashMap();
+    private volatile HashIndex[] indexArray = new HashIndex[ 0 ];
+    private final Object writeLock = new Object();
+
+    public InMemoryDocumentStore( String name ) {
+        this.name = name;
+
+        // lookup indexes for the queries CrudUtil always makes; they are not
+        // reported by getIndexInfo() until createIndex() asks for them
+        addIndex( new BasicDBObject( CrudUtil.UUID_FIELD, 1 ), false, false, true );
+        addIndex( new BasicDBObject( CrudUtil.CANONICAL_NAME, 1 ), false, false, true );
+        addIndex( new BasicDBObject( TypeRegistry.TYPE_KEY, 1 ), false, false, true );
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of documents in the store.
+     */
+    public int size() {
+        return documents.size();
+    }
+
+    ///////////
+    // reads //
+    ///////////
+
+    @Override
+    public DocumentCursor find( DBObject query, DBObject fields ) {
+        return new InMemoryCursor( select( query ), fields );
+    }
+
+    @Override
+    public long count( DBObject query ) {
+        return select( query ).size();
+    }
+
+    /**
+     * Describes the query as the server would: an IXSCAN if an index
+     * narrowed the candidates, otherwise a COLLSCAN of every document. Each
+     * candidate counts as one key and one document examined.
+     */
+    @Override
+    public DBObject explain( DBObject query ) {
+        Set<Object> ids = candidateIds( query );
+        int examined = ids == null ? documents.size() : ids.size();
+        int returned = select( query ).size();
+
+        DBObject plan = ids == null ?
+                        new BasicDBObject( "stage", "COLLSCAN" ) :
+                        new BasicDBObject( "stage", "FETCH" ).append( "inputStage", new BasicDBObject( "stage", "IXSCAN" ) );
+        return new BasicDBObject( "queryPlanner", new BasicDBObject( "namespace", name ).append( "winningPlan", plan ) )
+            .append( "executionStats", new BasicDBObject( "nReturned", returned )
+                .append( "totalKeysExamined", ids == null ? 0 : examined )
+                .append( "totalDocsExamined", examined ) );
+    }
+
+    /**
+     * Returns the stored documents matching the query, without copying
+     * them.
+     */
+    private List<DBObject> select( DBObject query ) {
+        Collection<DBObject> candidates = candidates( query );
+        List<DBObject> result = new ArrayList();
+        for( DBObject document : candidates ) {
+            if( Documents.matches( document, query ) ) {
+                result.add( document );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Narrows a query to the documents an index says may match, or returns
+     * every document if no index applies. Index entries are only a hint:
+     * each candidate is matched against the whole query afterwards.
+     */
+    private Collection<DBObject> candidates( DBObject query ) {
+        Set<Object> ids = candidateIds( query );
+        if( ids == null ) {
+            return documents.values();
+        }
+
+        List<DBObject> result = new ArrayList( ids.size() );
+        for( Object id : ids ) {
+            DBObject document = documents.get( id );
+            if( document != null ) {
+                result.add( document );
+            }
+        }
+        return result;
+    }
+
+    private Set<Object> candidateIds( DBObject query ) {
+        if( query == null ) {
+            return null;
+        }
+
+        if( query.containsField( "_id" ) ) {
+            Set<Object> ids = lookup( query.get( "_id" ), null );
+            if( ids != null ) {
+                return ids;
+            }
+        }
+
+        for( HashIndex index : indexArray ) {
+            if( index.fields.size() == 1 && query.containsField( index.fields.get( 0 ) ) ) {
+                Set<Object> ids = lookup( query.get( index.fields.get( 0 ) ), index );
+                if( ids != null ) {
+                    return ids;
+                }
+            }
+        }
+
+        if( query.containsField( "$and" ) ) {
+            for( Object branch : Documents.asList( query.get( "$and" ) ) ) {
+                Set<Object> ids = candidateIds( (DBObject)branch );
+                if( ids != null ) {
+                    return ids;
+                }
+            }
+        }
+
+        if( query.containsField( "$or" ) && query.keySet().size() == 1 ) {
+            Set<Object> ids = new HashSet();
+            for( Object branch : Documents.asList( query.get( "$or" ) ) ) {
+                Set<Object> branchIds = candidateIds( (DBObject)branch );
+                if( branchIds == null ) {
+                    return null;
+                }
+                ids.addAll( branchIds );
+            }
+            return ids;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the ids of the documents whose indexed value may equal the
+     * condition, which must be a plain value or {$in: [...]}, or null if the
+     * index cannot answer it. A null index means the _id.
+     */
+    private Set<Object> lookup( Object condition, HashIndex index ) {
+        List values;
+        if( condition instanceof DBObject && ( (DBObject)condition ).containsField( "$in" ) && ( (DBObject)condition ).keySet().size() == 1 ) {
+            values = Documents.asList( ( (DBObject)condition ).get( "$in" ) );
+        }
+        else if( condition instanceof DBObject || condition instanceof List ) {
+            return null;
+        }
+        else {
+            values = Collections.singletonList( condition );
+        }
+
+        Set<Object> ids = new HashSet();
+        for( Object value : values ) {
+            Object key = Documents.keyOf( value );
+            if( key == null ) {
+                return null;
+            }
+            if( index == null ) {
+                ids.add( key );
+            }
+            else {
+                Set<Object> matching = index.entries.get( key );
+                if( matching != null ) {
+                    ids.addAll( matching );
+                }
+            }
+        }
+        if( index != null ) {
+            ids.addAll( index.unindexed );
+        }
+        return ids;
+    }
+
+    ////////////
+    // writes //
+    ////////////
+
+    @Override
+    public void insert( DBObject document ) {
+        if( !document.containsField( "_id" ) ) {
+            document.put( "_id", new ObjectId() );
+        }
+
+        synchronized( writeLock ) {
+            DBObject copy = Documents.copy( document );
+            Object id = idOf( copy.get( "_id" ) );
+            if( documents.containsKey( id ) ) {
+                throw duplicateKey( "_id_", copy.get( "_id" ) );
+            }
+            write( id, null, copy );
+        }
+    }
+
+    @Override
+    public UpdateResult update( DBObject query, DBObject update, boolean upsert, boolean multi ) {
+        boolean operators = Documents.isOperatorUpdate( update );
+        if( multi && !operators ) {
+            throw new MongoException( "A multi update must use update operators" );
+        }
+
+        synchronized( writeLock ) {
+            List<DBObject> matching = select( query );
+            if( matching.isEmpty() ) {
+                if( !upsert ) {
+                    return new UpdateResult( 0, false );
+                }
+
+                DBObject inserted;
+                if( operators ) {
+                    inserted = Documents.equalityFields( query );
+                    Documents.applyOperators( inserted, update, true );
+                }
+                else {
+                    inserted = Documents.copy( update );
+                    Object id = Documents.get( query, "_id" );
+                    if( !inserted.containsField( "_id" ) && id != Documents.MISSING ) {
+                        inserted.put( "_id", id );
+                    }
+                }
+                if( !inserted.containsField( "_id" ) ) {
+                    inserted.put( "_id", new ObjectId() );
+                }
+
+                Object id = idOf( inserted.get( "_id" ) );
+                if( documents.containsKey( id ) ) {
+                    throw duplicateKey( "_id_", inserted.get( "_id" ) );
+                }
+                write( id, null, inserted );
+                return new UpdateResult( 1, false );
+            }
+
+            long count = 0;
+            for( DBObject existing : matching ) {
+                DBObject replacement;
+                if( operators ) {
+                    replacement = Documents.copy( existing );
+                    Documents.applyOperators( replacement, update, false );
+                }
+                else {
+                    replacement = Documents.copy( update );
+                    replacement.put( "_id", existing.get( "_id" ) );
+                }
+
+                write( idOf( existing.get( "_id" ) ), existing, replacement );
+                count++;
+                if( !multi ) {
+                    break;
+                }
+            }
+            return new UpdateResult( count, true );
+        }
+    }
+
+    @Override
+    public long remove( DBObject query ) {
+        synchronized( writeLock ) {
+            List<DBObject> matching = select( query );
+            for( DBObject existing : matching ) {
+                Object id = idOf( existing.get( "_id" ) );
+                documents.remove( id );
+                for( HashIndex index : indexArray ) {
+                    index.remove( id, existing );
+                }
+            }
+            return matching.size();
+        }
+    }
+
+    @Override
+    public SortedMap<Integer, String> bulkWrite( List<DocumentWrite> writes, boolean ordered ) {
+        SortedMap<Integer, String> failures = new TreeMap();
+        for( int index = 0; index < writes.size(); index++ ) {
+            DocumentWrite write = writes.get( index );
+            try {
+                if( write.isRemove() ) {
+                    remove( write.getQuery() );
+                }
+                else {
+                    update( write.getQuery(), write.getReplacement(), true, false );
+                }
+            }
+            catch( MongoException ex ) {
+                failures.put( index, ex.getMessage() );
+                if( ordered ) {
+                    break;
+                }
+            }
+        }
+        return failures;
+    }
+
+    @Override
+    public long truncate() {
+        synchronized( writeLock ) {
+            long count = documents.size();
+            documents.clear();
+            for( HashIndex index : indexArray ) {
+                index.entries.clear();
+                index.unindexed.clear();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Replaces a document, keeping the indexes in step. The caller holds the
+     * write lock. New index entries are added before the document is
+     * published and stale ones removed after, so a reader may see an extra
+     * candidate but never misses a published document.
+     */
+    private void write( Object id, DBObject existing, DBObject replacement ) {
+        for( HashIndex index : indexArray ) {
+            index.checkUnique( id, replacement );
+        }
+        for( HashIndex index : indexArray ) {
+            index.add( id, replacement );
+        }
+
+        documents.put( id, replacement );
+
+        if( existing != null ) {
+            for( HashIndex index : indexArray ) {
+                index.removeStale( id, existing, replacement );
+            }
+        }
+    }
+
+    /**
+     * Returns the map key of an _id, which must be a scalar value.
+     */
+    private static Object idOf( Object id ) {
+        Object key = Documents.keyOf( id );
+        if( key == null ) {
+            throw new MongoException( "Unsupported _id value " + id + ": arrays and embedded documents cannot be used" );
+        }
+        return key;
+    }
+
+    private static MongoException duplicateKey( String indexName, Object key ) {
+        return new MongoException( DUPLICATE_KEY, "E11000 duplicate key error index: " + indexName + " dup key: " + key );
+    }
+
+    /////////////
+    // indexes //
+    /////////////
+
+    /**
+     * Creates a hash index on the keys, which also serves descending
+     * requests. Does nothing if an index on the same keys was already
+     * created, as MongoDB does; fails with a duplicate key error if a
+     * unique index is requested and the existing documents violate it.
+     */
+    @Override
+    public void createIndex( DBObject keys, DBObject options ) {
+        boolean unique = options != null && Boolean.TRUE.equals( options.get( "unique" ) );
+        boolean sparse = options != null && Boolean.TRUE.equals( options.get( "sparse" ) );
+
+        synchronized( writeLock ) {
+            HashIndex index = new HashIndex( keys, unique, sparse, false );
+            HashIndex existing = indexes.get( index.name );
+            if( existing != null && !existing.implicit ) {
+                return;
+            }
+
+            for( Map.Entry<Object, DBObject> entry : documents.entrySet() ) {
+                index.checkUnique( entry.getKey(), entry.getValue() );
+                index.add( entry.getKey(), entry.getValue() );
+            }
+            putIndex( index );
+        }
+    }
+
+    @Override
+    public List<DBObject> getIndexInfo() {
+        List<DBObject> result = new ArrayList();
+        result.add( new BasicDBObject( "v", 1 ).append( "key", new BasicDBObject( "_id", 1 ) ).append( "name", "_id_" ) );
+
+        for( HashIndex index : indexArray ) {
+            if( !index.implicit ) {
+                BasicDBObject info = new BasicDBObject( "v", 1 )
+                    .append( "key", Documents.copy( index.keys ) )
+                    .append( "name", index.name );
+                if( index.unique ) {
+                    info.append( "unique", true );
+                }
+                if( index.sparse ) {
+                    info.append( "sparse", true );
+                }
+                result.add( info );
+            }
+        }
+        return result;
+    }
+
+    private void addIndex( DBObject keys, boolean unique, boolean sparse, boolean implicit ) {
+        putIndex( new HashIndex( keys, unique, sparse, implicit ) );
+    }
+
+    private void putIndex( HashIndex index ) {
+        indexes.put( index.name, index );
+        indexArray = indexes.values().toArray( new HashIndex[ indexes.size() ] );
+    }
+
+    /**
+     * Maps the value of one field, or the tuple of values of several, to
+     * the ids of the documents holding it. An array value is indexed under
+     * each of its elements. Documents whose value cannot be hashed are kept
+     * in a separate set that every lookup includes.
+     */
+    private static final class HashIndex {
+        private final DBObject keys;
+        private final List<String> fields;
+        private final String name;
+        private final boolean unique;
+        private final boolean sparse;
+        private final boolean implicit;
+        private final ConcurrentHashMap<Object, Set<Object>> entries = new ConcurrentHashMap();
+        private final Set<Object> unindexed = ConcurrentHashMap.newKeySet();
+
+        private HashIndex( DBObject keys, boolean unique, boolean sparse, boolean implicit ) {
+            this.keys = keys;
+            this.fields = new ArrayList( keys.keySet() );
+            this.unique = unique;
+            this.sparse = sparse;
+            this.implicit = implicit;
+
+            StringBuilder builder = new StringBuilder();
+            for( String field : keys.keySet() ) {
+                if( builder.length() > 0 ) {
+                    builder.append( '_' );
+                }
+                builder.append( field ).append( '_' ).append( keys.get( field ) );
+            }
+            this.name = builder.toString();
+        }
+
+        /**
+         * Returns the index keys of a document, an empty set if a sparse
+         * index skips it, or null if its value cannot be hashed.
+         */
+        private Set<Object> keysOf( DBObject document ) {
+            if( fields.size() == 1 ) {
+                Object value = Documents.get( document, fields.get( 0 ) );
+                if( value == Documents.MISSING && sparse ) {
+                    return Collections.emptySet();
+                }
+                if( value instanceof List ) {
+                    Set<Object> result = new HashSet();
+                    for( Object element : (List)value ) {
+                        Object key = Documents.keyOf( element );
+                        if( key == null ) {
+                            return null;
+                        }
+                        result.add( key );
+                    }
+                    return result;
+                }
+                Object key = Documents.keyOf( value );
+                return key == null ? null : Collections.singleton( key );
+            }
+
+            List<Object> tuple = new ArrayList( fields.size() );
+            boolean allMissing = true;
+            for( String field : fields ) {
+                Object value = Documents.get( document, field );
+                allMissing &= value == Documents.MISSING;
+                Object key = Documents.keyOf( value );
+                if( key == null ) {
+                    return null;
+                }
+                tuple.add( key );
+            }
+            if( allMissing && sparse ) {
+                return Collections.emptySet();
+            }
+            return Collections.singleton( tuple );
+        }
+
+        private void checkUnique( Object id, DBObject document ) {
+            if( !unique ) {
+                return;
+            }
+
+            Set<Object> documentKeys = keysOf( document );
+            if( documentKeys == null ) {
+                return;
+            }
+            for( Object key : documentKeys ) {
+                Set<Object> ids = entries.get( key );
+                if( ids != null ) {
+                    for( Object other : ids ) {
+                        if( !other.equals( id ) ) {
+                            throw duplicateKey( name, key == Documents.NULL_KEY ? null : key );
+                        }
+                    }
+                }
+            }
+        }
+
+        private void add( Object id, DBObject document ) {
+            Set<Object> documentKeys = keysOf( document );
+            if( documentKeys == null ) {
+                unindexed.add( id );
+                return;
+            }
+            for( Object key : documentKeys ) {
+                entries.computeIfAbsent( key, k -> ConcurrentHashMap.newKeySet() ).add( id );
+            }
+        }
+
+        private void remove( Object id, DBObject document ) {
+            Set<Object> stale = keysOf( document );
+            if( stale == null ) {
+                unindexed.remove( id );
+            }
+            else {
+                removeKeys( id, stale, Collections.emptySet() );
+            }
+        }
+
+        private void removeStale( Object id, DBObject existing, DBObject replacement ) {
+            Set<Object> current = keysOf( replacement );
+            if( current != null ) {
+                unindexed.remove( id );
+            }
+
+            Set<Object> stale = keysOf( existing );
+            if( stale != null ) {
+                removeKeys( id, stale, current == null ? Collections.emptySet() : current );
+            }
+        }
+
+        private void removeKeys( Object id, Set<Object> stale, Set<Object> keep ) {
+            for( Object key : stale ) {
+                if( !keep.contains( key ) ) {
+                    Set<Object> ids = entries.get( key );
+                    if( ids != null ) {
+                        ids.remove( id );
+                        if( ids.isEmpty() ) {
+                            entries.remove( key, ids );
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    ////////////
+    // cursor //
+    ////////////
+
+    private static final class InMemoryCursor implements DocumentCursor {
+        private List<DBObject> selected;
+        private final DBObject fields;
+        private DBObject sort;
+        private int limit;
+        private Iterator<DBObject> documents;
+
+        private InMemoryCursor( List<DBObject> selected, DBObject fields ) {
+            this.selected = selected;
+            this.fields = fields;
+        }
+
+        @Override
+        public DocumentCursor batchSize( int batchSize ) {
+            return this;
+        }
+
+        @Override
+        public DocumentCursor sort( DBObject sort ) {
+            this.sort = sort;
+            return this;
+        }
+
+        @Override
+        public DocumentCursor limit( int limit ) {
+            this.limit = Math.abs( limit );
+            return this;
+        }
+
+        /**
+         * Applies the sort and limit on the first read.
+         */
+        private Iterator<DBObject> documents() {
+            if( documents == null ) {
+                if( sort != null && !sort.keySet().isEmpty() ) {
+                    selected.sort( Documents.comparator( sort ) );
+                }
+                if( limit > 0 && selected.size() > limit ) {
+                    selected = selected.subList( 0, limit );
+                }
+                documents = selected.iterator();
+            }
+            return documents;
+        }
+
+        @Override
+        public DocumentCursor decodeWith( DBDecoderFactory decoderFactory ) {
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return documents().hasNext();
+        }
+
+        @Override
+        public DBObject next() {
+            if( !documents().hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            return Documents.project( Documents.copy( documents.next() ), fields );
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the indexes a CrudUtil needs and checks that the collection
+ * really has them. Index creation is idempotent, so this is safe to run
+ * every time an application starts.
+ */
+final class IndexProvisioner {
+    private final List<DBObject> keys = new ArrayList();
+    private final List<DBObject> options = new ArrayList();
+
+    void add( DBObject indexKeys, boolean unique, boolean sparse ) {
+        BasicDBObject indexOptions = new BasicDBObject();
+        if( unique ) {
+            indexOptions.append( "unique", true );
+        }
+        if( sparse ) {
+            indexOptions.append( "sparse", true );
+        }
+
+        keys.add( indexKeys );
+        options.add( indexOptions );
+    }
+
+    /**
+     * Adds the indexes declared with Indexed and CompoundIndex on the class
+     * and its superclasses.
+     */
+    void addAnnotated( Class type ) {
+        for( Class current = type; current != null && current != Object.class; current = current.getSuperclass() ) {
+            for( Field field : current.getDeclaredFields() ) {
+                Indexed indexed = field.getAnnotation( Indexed.class );
+                if( indexed != null ) {
+                    add( new BasicDBObject( field.getName(), indexed.descending() ? -1 : 1 ), indexed.unique(), indexed.sparse() );
+                }
+            }
+
+            for( CompoundIndex compound : (CompoundIndex[])current.getAnnotationsByType( CompoundIndex.class ) ) {
+                BasicDBObject indexKeys = new BasicDBObject();
+                for( String field : compound.fields() ) {
+                    if( field.startsWith( "-" ) ) {
+                        indexKeys.append( field.substring( 1 ), -1 );
+                    }
+                    else {
+                        indexKeys.append( field, 1 );
+                    }
+                }
+                add( indexKeys, compound.unique(), compound.sparse() );
+            }
+        }
+    }
+
+    void ensure( DocumentStore store ) throws PersistenceException {
+        try {
+            for( int index = 0; index < keys.size(); index++ ) {
+                store.createIndex( keys.get( index ), options.get( index ) );
+            }
+        }
+        catch( MongoException ex ) {
+            throw new PersistenceException( "Unable to create indexes on " + store.getName(), ex );
+        }
+
+        verify( store );
+    }
+
+    /**
+     * Checks that every requested index exists with the requested
+     * uniqueness. createIndex() does nothing when an index with the same
+     * name already exists, so an index created by hand with different
+     * options would otherwise go unnoticed.
+     */
+    private void verify( DocumentStore store ) throws PersistenceException {
+        List<DBObject> existing = store.getIndexInfo();
+
+        for( int index = 0; index < keys.size(); index++ ) {
+            DBObject found = null;
+            for( DBObject info : existing ) {
+                if( sameKeys( keys.get( index ), (DBObject)info.get( "key" ) ) ) {
+                    found = info;
+                    break;
+                }
+            }
+
+            if( found == null ) {
+                throw new PersistenceException( "Index " + keys.get( index ) + " is missing from " + store.getName() );
+            }
+
+            boolean unique = Boolean.TRUE.equals( options.get( index ).get( "unique" ) );
+            if( unique && !Boolean.TRUE.equals( found.get( "unique" ) ) ) {
+                throw new PersistenceException( "Index " + keys.get( index ) + " on " + store.getName() + " exists but is not unique" );
+            }
+        }
+    }
+
+    private static boolean sameKeys( DBObject expected, DBObject actual ) {
+        if( actual == null ) {
+            return false;
+        }
+
+        List<String> expectedNames = new ArrayList( expected.keySet() );
+        List<String> actualNames = new ArrayList( actual.keySet() );
+        if( !expectedNames.equals( actualNames ) ) {
+            return false;
+        }
+
+        for( String name : expectedNames ) {
+            Object expectedValue = expected.get( name );
+            Object actualValue = actual.get( name );
+            if( !( actualValue instanceof Number ) ||
+                ( (Number)expectedValue ).intValue() != ( (Number)actualValue ).intValue() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,23 @@
+package com.galvin.mongodb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a single-field index on a persistent field. The index is
+ * created by CrudUtil.ensureIndexes().
+ */
+@Retention( RetentionPolicy.RUNTIME )
+@Target( ElementType.FIELD )
+public @interface Indexed {
+    boolean unique() default false;
+
+    /**
+     * Sparse indexes skip documents that do not have the field.
+     */
+    boolean sparse() default false;
+
+    boolean descending() default false;
+}
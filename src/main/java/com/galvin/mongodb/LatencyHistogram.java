@@ -0,0 +1,118 @@
+package com.galvin.mongodb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, in the style of
+ * HdrHistogram: values below 64 are counted exactly, and each power of two
+ * above that is split into 32 equal buckets, so every recorded value is
+ * reported to within about 3%. Values above 2^40 ns (about 18 minutes) are
+ * counted in the last bucket.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int MAX_SHIFT = MAX_MAGNITUDE - SUB_BUCKET_BITS + 1;
+    private static final int BUCKETS = SUB_BUCKETS + MAX_SHIFT * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record( long nanos ) {
+        long value = Math.max( 0, nanos );
+        counts.incrementAndGet( indexOf( value ) );
+        count.increment();
+        total.add( value );
+
+        long current = max.get();
+        while( value > current && !max.compareAndSet( current, value ) ) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long samples = getCount();
+        return samples == 0 ? 0 : (double)getTotal() / samples;
+    }
+
+    /**
+     * Returns the value below which the given percentage of recorded values
+     * fall, rounded up to the top of its bucket.
+     */
+    public long getValueAtPercentile( double percentile ) {
+        long samples = 0;
+        for( int index = 0; index < BUCKETS; index++ ) {
+            samples += counts.get( index );
+        }
+        if( samples == 0 ) {
+            return 0;
+        }
+
+        long target = Math.max( 1, (long)Math.ceil( samples * Math.min( percentile, 100.0 ) / 100.0 ) );
+        long seen = 0;
+        for( int index = 0; index < BUCKETS; index++ ) {
+            seen += counts.get( index );
+            if( seen >= target ) {
+                return Math.min( highestValueIn( index ), getMax() );
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Clears the histogram. Values recorded while it is being cleared may
+     * or may not survive.
+     */
+    public void reset() {
+        for( int index = 0; index < BUCKETS; index++ ) {
+            counts.set( index, 0 );
+        }
+        count.reset();
+        total.reset();
+        max.set( 0 );
+    }
+
+    static int indexOf( long value ) {
+        if( value < SUB_BUCKETS ) {
+            return (int)value;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros( value );
+        if( magnitude > MAX_MAGNITUDE ) {
+            return BUCKETS - 1;
+        }
+
+        // the top SUB_BUCKET_BITS bits of the value, which start with a one
+        int shift = magnitude - SUB_BUCKET_BITS + 1;
+        int subBucket = (int)( value >>> shift );
+        return SUB_BUCKETS + ( shift - 1 ) * HALF_SUB_BUCKETS + ( subBucket - HALF_SUB_BUCKETS );
+    }
+
+    static long highestValueIn( int index ) {
+        if( index < SUB_BUCKETS ) {
+            return index;
+        }
+
+        int shift = ( index - SUB_BUCKETS ) / HALF_SUB_BUCKETS + 1;
+        long subBucket = ( index - SUB_BUCKETS ) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ( ( subBucket + 1 ) << shift ) - 1;
+    }
+}
@@ -0,0 +1,22 @@
+package com.galvin.mongodb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs flagged slow queries as warnings and the rest at info. Only the
+ * query shape is logged, never its values.
+ */
+public class LoggingSlowQuerySink implements SlowQuerySink {
+    private static final Logger logger = LoggerFactory.getLogger( LoggingSlowQuerySink.class );
+
+    @Override
+    public void onSlowQuery( SlowQuery query ) {
+        if( query.isFlagged() ) {
+            logger.warn( "Slow query, missing index? " + query );
+        }
+        else if( logger.isInfoEnabled() ) {
+            logger.info( "Slow query: " + query );
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.galvin.mongodb;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Settings for looking objects up by a list of ids, in CrudUtil.retrieve(),
+ * exists() and delete(). Duplicate ids are dropped, and lists longer than
+ * chunkSize are split into one $in query per chunk, which keeps each query
+ * well under the server's 16MB command limit. Up to parallelism chunks run
+ * at once, on the given executor or on a pool created for the call. If
+ * ordered is true, retrieved objects are returned in the order of the ids
+ * that matched them; otherwise in whatever order the chunks completed.
+ */
+public class LookupOptions {
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private boolean ordered = false;
+    private ExecutorService executor;
+
+    public LookupOptions() {
+    }
+
+    public LookupOptions( int chunkSize, int parallelism, boolean ordered ) {
+        setChunkSize( chunkSize );
+        setParallelism( parallelism );
+        this.ordered = ordered;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize( int chunkSize ) {
+        if( chunkSize < 1 ) {
+            throw new IllegalArgumentException( "Chunk size must be positive: " + chunkSize );
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * The most chunks queried at once. Each one occupies a connection and a
+     * server thread, so this does not default to the number of local
+     * processors.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism( int parallelism ) {
+        if( parallelism < 1 ) {
+            throw new IllegalArgumentException( "Parallelism must be positive: " + parallelism );
+        }
+        this.parallelism = parallelism;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void setOrdered( boolean ordered ) {
+        this.ordered = ordered;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor( ExecutorService executor ) {
+        this.executor = executor;
+    }
+}
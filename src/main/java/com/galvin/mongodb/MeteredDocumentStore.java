@@ -0,0 +1,207 @@
+package com.galvin.mongodb;
+
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Wraps the DocumentStore of a CrudUtil that has metrics, timing every
+ * call as a round trip. A query is timed up to its first batch, so a
+ * cursor that is never read counts as one round trip of almost no time.
+ */
+final class MeteredDocumentStore implements DocumentStore {
+    private final DocumentStore store;
+    private final CrudUtilStats stats;
+
+    MeteredDocumentStore( DocumentStore store, CrudUtilStats stats ) {
+        this.store = store;
+        this.stats = stats;
+    }
+
+    DocumentStore getStore() {
+        return store;
+    }
+
+    @Override
+    public String getName() {
+        return store.getName();
+    }
+
+    @Override
+    public DocumentCursor find( DBObject query, DBObject fields ) {
+        long start = System.nanoTime();
+        DocumentCursor cursor = store.find( query, fields );
+        return new MeteredCursor( cursor, System.nanoTime() - start );
+    }
+
+    @Override
+    public long count( DBObject query ) {
+        long start = System.nanoTime();
+        try {
+            return store.count( query );
+        }
+        finally {
+            stats.roundTrip( System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public DBObject explain( DBObject query ) {
+        long start = System.nanoTime();
+        try {
+            return store.explain( query );
+        }
+        finally {
+            stats.roundTrip( System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public void insert( DBObject document ) {
+        long start = System.nanoTime();
+        try {
+            store.insert( document );
+        }
+        finally {
+            stats.roundTrip( System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public UpdateResult update( DBObject query, DBObject update, boolean upsert, boolean multi ) {
+        long start = System.nanoTime();
+        try {
+            return store.update( query, update, upsert, multi );
+        }
+        finally {
+            stats.roundTrip( System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public long remove( DBObject query ) {
+        long start = System.nanoTime();
+        try {
+            return store.remove( query );
+        }
+        finally {
+            stats.roundTrip( System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public SortedMap<Integer, String> bulkWrite( List<DocumentWrite> writes, boolean ordered ) {
+        long start = System.nanoTime();
+        try {
+            return store.bulkWrite( writes, ordered );
+        }
+        finally {
+            stats.roundTrip( System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public long truncate() {
+        long start = System.nanoTime();
+        try {
+            return store.truncate();
+        }
+        finally {
+            stats.roundTrip( System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public void createIndex( DBObject keys, DBObject options ) {
+        long start = System.nanoTime();
+        try {
+            store.createIndex( keys, options );
+        }
+        finally {
+            stats.roundTrip( System.nanoTime() - start );
+        }
+    }
+
+    @Override
+    public List<DBObject> getIndexInfo() {
+        long start = System.nanoTime();
+        try {
+            return store.getIndexInfo();
+        }
+        finally {
+            stats.roundTrip( System.nanoTime() - start );
+        }
+    }
+
+    private final class MeteredCursor implements DocumentCursor {
+        private final DocumentCursor cursor;
+        private long elapsed;
+        private boolean started;
+
+        MeteredCursor( DocumentCursor cursor, long elapsed ) {
+            this.cursor = cursor;
+            this.elapsed = elapsed;
+        }
+
+        @Override
+        public DocumentCursor batchSize( int batchSize ) {
+            cursor.batchSize( batchSize );
+            return this;
+        }
+
+        @Override
+        public DocumentCursor sort( DBObject sort ) {
+            cursor.sort( sort );
+            return this;
+        }
+
+        @Override
+        public DocumentCursor limit( int limit ) {
+            cursor.limit( limit );
+            return this;
+        }
+
+        @Override
+        public DocumentCursor decodeWith( DBDecoderFactory decoderFactory ) {
+            cursor.decodeWith( decoderFactory );
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if( started ) {
+                return cursor.hasNext();
+            }
+
+            long start = System.nanoTime();
+            try {
+                return cursor.hasNext();
+            }
+            finally {
+                finish( System.nanoTime() - start );
+            }
+        }
+
+        @Override
+        public DBObject next() {
+            if( !started ) {
+                hasNext();
+            }
+            return cursor.next();
+        }
+
+        @Override
+        public void close() {
+            if( !started ) {
+                finish( 0 );
+            }
+            cursor.close();
+        }
+
+        private void finish( long nanos ) {
+            started = true;
+            stats.roundTrip( elapsed + nanos );
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.galvin.mongodb;
+
+/**
+ * Receives every measurement CrudMetrics takes, for forwarding to a
+ * metrics system. Listeners are called on the thread doing the work, so
+ * they must be fast and thread-safe. Durations are in nanoseconds.
+ */
+public interface MetricsListener {
+    /**
+     * A CrudUtil operation finished. roundTrips is the number of store
+     * calls it made.
+     */
+    public default void onOperation( String collection, String className, CrudOperation operation, long nanos, int roundTrips, boolean failed ) {
+    }
+
+    /**
+     * A single call to the DocumentStore finished.
+     */
+    public default void onRoundTrip( String collection, String className, long nanos ) {
+    }
+
+    /**
+     * An object was marshalled to a document. bytes is the BSON size of
+     * the document, or -1 if CrudMetrics is not counting bytes.
+     */
+    public default void onMarshall( String className, long nanos, long bytes ) {
+    }
+
+    public default void onUnmarshall( String className, long nanos ) {
+    }
+
+    /**
+     * A MongoDbConnection waited for the lock that guards creating a
+     * collection.
+     */
+    public default void onLockWait( String collection, long nanos ) {
+    }
+}
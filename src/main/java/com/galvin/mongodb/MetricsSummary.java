@@ -0,0 +1,92 @@
+package com.galvin.mongodb;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of one histogram kept by CrudMetrics, with its times in
+ * microseconds. The metric is the name of a CrudOperation, or ROUND_TRIP,
+ * MARSHALL, UNMARSHALL or LOCK_WAIT.
+ */
+public final class MetricsSummary {
+    private final String collection;
+    private final String className;
+    private final String metric;
+    private final long count;
+    private final long failures;
+    private final long roundTrips;
+    private final long bytes;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double maxMicros;
+
+    @ConstructorProperties( { "collection", "className", "metric", "count", "failures", "roundTrips", "bytes",
+                              "meanMicros", "p50Micros", "p99Micros", "maxMicros" } )
+    public MetricsSummary( String collection, String className, String metric, long count, long failures, long roundTrips, long bytes,
+                           double meanMicros, double p50Micros, double p99Micros, double maxMicros ) {
+        this.collection = collection;
+        this.className = className;
+        this.metric = metric;
+        this.count = count;
+        this.failures = failures;
+        this.roundTrips = roundTrips;
+        this.bytes = bytes;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    static MetricsSummary of( String collection, String className, String metric, LatencyHistogram histogram,
+                              long failures, long roundTrips, long bytes ) {
+        return new MetricsSummary( collection, className, metric, histogram.getCount(), failures, roundTrips, bytes,
+                                   histogram.getMean() / 1000.0,
+                                   histogram.getValueAtPercentile( 50 ) / 1000.0,
+                                   histogram.getValueAtPercentile( 99 ) / 1000.0,
+                                   histogram.getMax() / 1000.0 );
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public long getRoundTrips() {
+        return roundTrips;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+}
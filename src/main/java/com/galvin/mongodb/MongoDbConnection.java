@@ -6,7 +6,10 @@ import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang3.StringUtils;
 
 public class MongoDbConnection
@@ -18,9 +21,13 @@ public class MongoDbConnection
     private String dbName;
     private String user;
     private String password;
+    private MongoClientOptions clientOptions;
 
-    private MongoClient mongo;
-    private DB db;
+    private volatile MongoClient mongo;
+    private volatile DB db;
+    private final ConcurrentHashMap<String, DBCollection> collections = new ConcurrentHashMap();
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private volatile CrudMetrics metrics;
 
     private final Object MONGO_CLIENT_LOCK = new Object();
     private final Object MONGO_DB_LOCK = new Object();
@@ -64,59 +71,107 @@ public class MongoDbConnection
         this.password = password;
     }
 
+    /**
+     * Creates a connection whose MongoClient is built with the given pool,
+     * timeout and heartbeat options. See MongoDbConnection.Builder.
+     */
+    public MongoDbConnection( String host, int port, String dbName, String user, String password, MongoClientOptions clientOptions )
+    {
+        this( host, port, dbName, user, password );
+        this.clientOptions = clientOptions;
+    }
+
     ///////////////
     // accessors //
     ///////////////
     
     public MongoClient getMongoClient() throws UnknownHostException
     {
-        synchronized( MONGO_CLIENT_LOCK )
+        MongoClient result = mongo;
+        if( result == null )
         {
-            if( mongo == null )
+            synchronized( MONGO_CLIENT_LOCK )
             {
-                mongo = new MongoClient( host, port );
+                if( mongo == null )
+                {
+                    if( clientOptions == null )
+                    {
+                        mongo = new MongoClient( host, port );
+                    }
+                    else
+                    {
+                        mongo = new MongoClient( new ServerAddress( host, port ), clientOptions );
+                    }
+                }
+                result = mongo;
             }
         }
-        return mongo;
+        return result;
     }
 
     public DB getDB() throws UnknownHostException, DatabaseLoginException
     {
-        synchronized( MONGO_DB_LOCK )
+        DB result = db;
+        if( result == null )
         {
-            if( db == null )
+            synchronized( MONGO_DB_LOCK )
             {
-                db = getMongoClient().getDB( dbName );
-
-                //authentication
-                if( !StringUtils.isEmpty( user ) && !StringUtils.isEmpty( password ) )
+                if( db == null )
                 {
-                    boolean auth = db.authenticate( user, password.toCharArray() );
-                    if( !auth )
+                    DB candidate = getMongoClient().getDB( dbName );
+
+                    //authentication
+                    if( !StringUtils.isEmpty( user ) && !StringUtils.isEmpty( password ) )
                     {
-                        db = null;
-                        throw new DatabaseLoginException( host, port, dbName, user );
+                        boolean auth = candidate.authenticate( user, password.toCharArray() );
+                        if( !auth )
+                        {
+                            throw new DatabaseLoginException( host, port, dbName, user );
+                        }
                     }
+                    db = candidate;
                 }
+                result = db;
             }
         }
-        return db;
+        return result;
     }
 
+    /**
+     * Returns the named collection, creating it if necessary. Handles are
+     * cached, so only the first call for each name touches the server or
+     * takes a lock.
+     */
     public DBCollection getCollection( String collectionName ) throws UnknownHostException, DatabaseLoginException
     {
+        DBCollection collection = collections.get( collectionName );
+        if( collection != null )
+        {
+            return collection;
+        }
+
+        long start = System.nanoTime();
         synchronized( USERS_COLLECTION_LOCK )
         {
-            DBCollection collection;
-            
-            if( getDB().collectionExists( collectionName ) )
+            CrudMetrics current = metrics;
+            if( current != null )
             {
-                collection = getDB().getCollection( collectionName );
+                current.lockWaited( collectionName, System.nanoTime() - start );
             }
-            else
+
+            collection = collections.get( collectionName );
+            if( collection == null )
             {
-                DBObject collectionParameters = new BasicDBObject();
-                collection = getDB().createCollection( collectionName, collectionParameters );
+                if( getDB().collectionExists( collectionName ) )
+                {
+                    collection = getDB().getCollection( collectionName );
+                }
+                else
+                {
+                    DBObject collectionParameters = new BasicDBObject();
+                    collection = getDB().createCollection( collectionName, collectionParameters );
+                }
+                collections.put( collectionName, collection );
             }
             return collection;
         }
@@ -175,5 +230,235 @@ public class MongoDbConnection
     {
         this.password = password;
     }
+
+    public MongoClientOptions getClientOptions()
+    {
+        return clientOptions;
+    }
+
+    /**
+     * Sets the options used to build the MongoClient. Has no effect once
+     * the client has been created.
+     */
+    public void setClientOptions( MongoClientOptions clientOptions )
+    {
+        this.clientOptions = clientOptions;
+    }
+
+    /**
+     * The circuit breaker shared by every CollectionUtil.getCollection()
+     * call on this connection.
+     */
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return circuitBreaker;
+    }
+
+    /**
+     * Replaces the circuit breaker, or disables it if circuitBreaker is null.
+     */
+    public void setCircuitBreaker( CircuitBreaker circuitBreaker )
+    {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CrudMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Records the time getCollection() spends waiting for the lock that
+     * guards creating collections, or stops recording if metrics is null.
+     */
+    public void setMetrics( CrudMetrics metrics )
+    {
+        this.metrics = metrics;
+    }
+
+    /////////////
+    // builder //
+    /////////////
+
+    /**
+     * Builds a MongoDbConnection with a tuned connection pool. Options that
+     * are not set keep the driver's defaults.
+     */
+    public static class Builder
+    {
+        private String host = "127.0.0.1";
+        private int port = DEFAULT_MONGO_DB_PORT;
+        private String dbName = "mydata";
+        private String user;
+        private String password;
+
+        private Integer connectionsPerHost;
+        private Integer minConnectionsPerHost;
+        private Integer threadsAllowedToBlockForConnectionMultiplier;
+        private Integer maxWaitTime;
+        private Integer maxConnectionIdleTime;
+        private Integer connectTimeout;
+        private Integer socketTimeout;
+        private Integer heartbeatFrequency;
+        private Integer minHeartbeatFrequency;
+        private Integer heartbeatConnectTimeout;
+        private Integer heartbeatSocketTimeout;
+
+        public Builder host( String host )
+        {
+            this.host = host;
+            return this;
+        }
+
+        public Builder port( int port )
+        {
+            this.port = port;
+            return this;
+        }
+
+        public Builder dbName( String dbName )
+        {
+            this.dbName = dbName;
+            return this;
+        }
+
+        public Builder credentials( String user, String password )
+        {
+            this.user = user;
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * The maximum number of pooled connections per server.
+         */
+        public Builder connectionsPerHost( int connectionsPerHost )
+        {
+            this.connectionsPerHost = connectionsPerHost;
+            return this;
+        }
+
+        public Builder minConnectionsPerHost( int minConnectionsPerHost )
+        {
+            this.minConnectionsPerHost = minConnectionsPerHost;
+            return this;
+        }
+
+        /**
+         * Sizes the wait queue: this many threads per pooled connection may
+         * block waiting for a connection before further requests fail.
+         */
+        public Builder threadsAllowedToBlockForConnectionMultiplier( int multiplier )
+        {
+            this.threadsAllowedToBlockForConnectionMultiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * How long, in milliseconds, a thread waits for a pooled connection.
+         */
+        public Builder maxWaitTime( int maxWaitTime )
+        {
+            this.maxWaitTime = maxWaitTime;
+            return this;
+        }
+
+        public Builder maxConnectionIdleTime( int maxConnectionIdleTime )
+        {
+            this.maxConnectionIdleTime = maxConnectionIdleTime;
+            return this;
+        }
+
+        public Builder connectTimeout( int connectTimeout )
+        {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder socketTimeout( int socketTimeout )
+        {
+            this.socketTimeout = socketTimeout;
+            return this;
+        }
+
+        public Builder heartbeatFrequency( int heartbeatFrequency )
+        {
+            this.heartbeatFrequency = heartbeatFrequency;
+            return this;
+        }
+
+        public Builder minHeartbeatFrequency( int minHeartbeatFrequency )
+        {
+            this.minHeartbeatFrequency = minHeartbeatFrequency;
+            return this;
+        }
+
+        public Builder heartbeatConnectTimeout( int heartbeatConnectTimeout )
+        {
+            this.heartbeatConnectTimeout = heartbeatConnectTimeout;
+            return this;
+        }
+
+        public Builder heartbeatSocketTimeout( int heartbeatSocketTimeout )
+        {
+            this.heartbeatSocketTimeout = heartbeatSocketTimeout;
+            return this;
+        }
+
+        public MongoClientOptions buildClientOptions()
+        {
+            MongoClientOptions.Builder options = MongoClientOptions.builder();
+            if( connectionsPerHost != null )
+            {
+                options.connectionsPerHost( connectionsPerHost );
+            }
+            if( minConnectionsPerHost != null )
+            {
+                options.minConnectionsPerHost( minConnectionsPerHost );
+            }
+            if( threadsAllowedToBlockForConnectionMultiplier != null )
+            {
+                options.threadsAllowedToBlockForConnectionMultiplier( threadsAllowedToBlockForConnectionMultiplier );
+            }
+            if( maxWaitTime != null )
+            {
+                options.maxWaitTime( maxWaitTime );
+            }
+            if( maxConnectionIdleTime != null )
+            {
+                options.maxConnectionIdleTime( maxConnectionIdleTime );
+            }
+            if( connectTimeout != null )
+            {
+                options.connectTimeout( connectTimeout );
+            }
+            if( socketTimeout != null )
+            {
+                options.socketTimeout( socketTimeout );
+            }
+            if( heartbeatFrequency != null )
+            {
+                options.heartbeatFrequency( heartbeatFrequency );
+            }
+            if( minHeartbeatFrequency != null )
+            {
+                options.minHeartbeatFrequency( minHeartbeatFrequency );
+            }
+            if( heartbeatConnectTimeout != null )
+            {
+                options.heartbeatConnectTimeout( heartbeatConnectTimeout );
+            }
+            if( heartbeatSocketTimeout != null )
+            {
+                options.heartbeatSocketTimeout( heartbeatSocketTimeout );
+            }
+            return options.build();
+        }
+
+        public MongoDbConnection build()
+        {
+            return new MongoDbConnection( host, port, dbName, user, password, buildClientOptions() );
+        }
+    }
     
 }
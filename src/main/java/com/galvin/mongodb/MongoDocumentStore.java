@@ -0,0 +1,227 @@
+package com.galvin.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DocumentStore backed by a MongoDB collection.
+ */
+public class MongoDocumentStore implements DocumentStore {
+    private static final Logger logger = LoggerFactory.getLogger( MongoDocumentStore.class );
+
+    private final DBCollection collection;
+
+    public MongoDocumentStore( DBCollection collection ) {
+        this.collection = collection;
+    }
+
+    public DBCollection getCollection() {
+        return collection;
+    }
+
+    @Override
+    public String getName() {
+        return collection.getName();
+    }
+
+    @Override
+    public DocumentCursor find( DBObject query, DBObject fields ) {
+        return new MongoDocumentCursor( fields == null ? collection.find( query ) : collection.find( query, fields ) );
+    }
+
+    @Override
+    public long count( DBObject query ) {
+        return collection.count( query );
+    }
+
+    @Override
+    public DBObject explain( DBObject query ) {
+        return collection.find( query ).explain();
+    }
+
+    @Override
+    public void insert( DBObject document ) {
+        collection.insert( document );
+    }
+
+    @Override
+    public UpdateResult update( DBObject query, DBObject update, boolean upsert, boolean multi ) {
+        WriteResult result = collection.update( query, update, upsert, multi );
+        return new UpdateResult( result.getN(), result.isUpdateOfExisting() );
+    }
+
+    @Override
+    public long remove( DBObject query ) {
+        return collection.remove( query ).getN();
+    }
+
+    @Override
+    public SortedMap<Integer, String> bulkWrite( List<DocumentWrite> writes, boolean ordered ) {
+        SortedMap<Integer, String> failures = new TreeMap();
+        if( writes.isEmpty() ) {
+            return failures;
+        }
+
+        BulkWriteOperation bulk = ordered ?
+                                  collection.initializeOrderedBulkOperation() :
+                                  collection.initializeUnorderedBulkOperation();
+        for( DocumentWrite write : writes ) {
+            if( write.isRemove() ) {
+                bulk.find( write.getQuery() ).remove();
+            }
+            else {
+                bulk.find( write.getQuery() ).upsert().replaceOne( write.getReplacement() );
+            }
+        }
+
+        try {
+            bulk.execute();
+        }
+        catch( BulkWriteException ex ) {
+            if( ex.getWriteErrors().isEmpty() ) {
+                throw ex;
+            }
+            for( BulkWriteError error : ex.getWriteErrors() ) {
+                failures.put( error.getIndex(), error.getMessage() );
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Drops and recreates the collection with its original options, such
+     * as capped size, validator and collation, then recreates its indexes.
+     * This is much faster than removing the documents one by one.
+     *
+     * The steps are not atomic, and truncate must not run while anything
+     * else writes to the collection: writes made just before the drop are
+     * lost without being counted, and writes made before the indexes are
+     * back are not checked by its unique indexes. The count returned is the
+     * number of documents just before the drop, so it is approximate if
+     * that rule is broken.
+     */
+    @Override
+    public long truncate() {
+        DBObject collectionOptions = getCollectionOptions();
+        List<DBObject> indexes = collection.getIndexInfo();
+        long count = collection.count();
+
+        collection.drop();
+        BasicDBObject create = new BasicDBObject( "create", collection.getName() );
+        if( collectionOptions != null ) {
+            for( String key : collectionOptions.keySet() ) {
+                create.put( key, collectionOptions.get( key ) );
+            }
+        }
+        collection.getDB().command( create ).throwOnError();
+
+        for( DBObject index : indexes ) {
+            if( !"_id_".equals( index.get( "name" ) ) ) {
+                BasicDBObject options = new BasicDBObject( index.toMap() );
+                options.removeField( "key" );
+                options.removeField( "v" );
+                options.removeField( "ns" );
+                collection.createIndex( (DBObject)index.get( "key" ), options );
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * The options the collection was created with, or null if the server
+     * is too old to report them.
+     */
+    private DBObject getCollectionOptions() {
+        CommandResult result = collection.getDB().command( new BasicDBObject( "listCollections", 1 )
+            .append( "filter", new BasicDBObject( "name", collection.getName() ) ) );
+        if( !result.ok() ) {
+            logger.warn( "Unable to read the options of {}; it will be recreated without them: {}",
+                         collection.getName(), result.getErrorMessage() );
+            return null;
+        }
+
+        DBObject cursor = (DBObject)result.get( "cursor" );
+        List batch = cursor == null ? null : (List)cursor.get( "firstBatch" );
+        if( batch == null || batch.isEmpty() ) {
+            return null;
+        }
+
+        DBObject options = (DBObject)( (DBObject)batch.get( 0 ) ).get( "options" );
+        if( options != null ) {
+            // storage flags reported by old servers are not create options
+            options.removeField( "flags" );
+        }
+        return options;
+    }
+
+    @Override
+    public void createIndex( DBObject keys, DBObject options ) {
+        collection.createIndex( keys, options );
+    }
+
+    @Override
+    public List<DBObject> getIndexInfo() {
+        return collection.getIndexInfo();
+    }
+
+    private static final class MongoDocumentCursor implements DocumentCursor {
+        private final DBCursor cursor;
+
+        private MongoDocumentCursor( DBCursor cursor ) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public DocumentCursor batchSize( int batchSize ) {
+            cursor.batchSize( batchSize );
+            return this;
+        }
+
+        @Override
+        public DocumentCursor sort( DBObject sort ) {
+            cursor.sort( sort );
+            return this;
+        }
+
+        @Override
+        public DocumentCursor limit( int limit ) {
+            cursor.limit( limit );
+            return this;
+        }
+
+        @Override
+        public DocumentCursor decodeWith( DBDecoderFactory decoderFactory ) {
+            cursor.setDecoderFactory( decoderFactory );
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        @Override
+        public DBObject next() {
+            return cursor.next();
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+}
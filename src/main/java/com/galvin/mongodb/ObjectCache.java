@@ -0,0 +1,344 @@
+package com.galvin.mongodb;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of retrieved objects, keyed by uuid or by a field name
+ * and value, for use with CrudUtil.setCache(). Every entry also records the
+ * uuid of the object it holds, so that storing or deleting that object
+ * invalidates all of the keys it was cached under.
+ *
+ * With copy-on-read enabled the cache holds the stored document, and every
+ * hit unmarshalls a fresh copy; callers may then modify what they get back.
+ * Without it, every hit returns the same shared instance.
+ *
+ * Large caches are split into segments by key, each with its own lock and
+ * its own share of the maximum size, so that threads reading different keys
+ * do not wait for each other; eviction order is kept per segment. Caches of
+ * fewer than 128 entries have a single segment.
+ *
+ * A value read from the database can be overtaken by a write that
+ * invalidates it before it is cached. To stop such a value being cached,
+ * callers take a stamp() before reading and pass it to put(), which drops
+ * the value if its uuid has been invalidated since.
+ */
+public class ObjectCache {
+    private static final int MAXIMUM_SEGMENTS = 16;
+    private static final int MINIMUM_SEGMENT_SIZE = 64;
+    private static final int INVALIDATION_STRIPES = 64;
+
+    private final int maximumSize;
+    private final EvictionPolicy evictionPolicy;
+    private final long ttlNanos;
+    private final boolean copyOnRead;
+
+    private final Segment[] segments;
+    private final ConcurrentHashMap<String, Set<Object>> keysByUuid = new ConcurrentHashMap();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicLongArray invalidatedAt = new AtomicLongArray( INVALIDATION_STRIPES );
+    private volatile long clearedAt = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public ObjectCache( int maximumSize ) {
+        this( maximumSize, EvictionPolicy.LRU, 0, false );
+    }
+
+    /**
+     * Creates a cache holding at most maximumSize entries. Entries expire
+     * ttlMillis after they are added, or never if ttlMillis is zero.
+     */
+    public ObjectCache( int maximumSize, EvictionPolicy evictionPolicy, long ttlMillis, boolean copyOnRead ) {
+        if( maximumSize < 1 ) {
+            throw new IllegalArgumentException( "Maximum size must be positive: " + maximumSize );
+        }
+
+        this.maximumSize = maximumSize;
+        this.evictionPolicy = evictionPolicy;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.copyOnRead = copyOnRead;
+
+        int count = 1;
+        while( count < MAXIMUM_SEGMENTS && count * 2 * MINIMUM_SEGMENT_SIZE <= maximumSize ) {
+            count *= 2;
+        }
+        this.segments = new Segment[ count ];
+        for( int index = 0; index < count; index++ ) {
+            segments[ index ] = new Segment( maximumSize / count + ( index < maximumSize % count ? 1 : 0 ) );
+        }
+    }
+
+    static Object key( String fieldName, Object value ) {
+        return CrudUtil.UUID_FIELD.equals( fieldName ) ? value : new FieldKey( fieldName, value );
+    }
+
+    Object get( Object key ) {
+        Segment segment = segmentFor( key );
+        Entry entry;
+        boolean expired = false;
+        synchronized( segment ) {
+            entry = segment.entries.get( key );
+            if( entry != null && ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos ) {
+                segment.removeEntry( key );
+                expired = true;
+            }
+            else if( entry != null && segment.frequencies != null ) {
+                segment.frequencies.remove( entry );
+                entry.useCount++;
+                entry.lastUse = clock.incrementAndGet();
+                segment.frequencies.add( entry );
+            }
+        }
+
+        if( expired ) {
+            forgetKey( entry.uuid, key );
+            expirations.increment();
+            entry = null;
+        }
+
+        if( entry == null ) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Returns the stamp to pass to put() for a value about to be read from
+     * the database.
+     */
+    long stamp() {
+        return epoch.get();
+    }
+
+    /**
+     * Caches the value unless its uuid has been invalidated since the stamp
+     * was taken, in which case it may already be out of date.
+     */
+    void put( Object key, String uuid, Object value, long stamp ) {
+        if( isInvalidatedSince( uuid, stamp ) ) {
+            return;
+        }
+
+        Segment segment = segmentFor( key );
+        Entry entry = new Entry( key, uuid, value, System.nanoTime(), clock.incrementAndGet() );
+        Entry replaced;
+        Entry evicted = null;
+        synchronized( segment ) {
+            replaced = segment.removeEntry( key );
+            if( segment.entries.size() >= segment.maximumSize ) {
+                Object eldest = segment.frequencies != null ?
+                                segment.frequencies.first().key :
+                                segment.entries.keySet().iterator().next();
+                evicted = segment.removeEntry( eldest );
+            }
+
+            segment.entries.put( key, entry );
+            if( segment.frequencies != null ) {
+                segment.frequencies.add( entry );
+            }
+        }
+
+        if( replaced != null && !replaced.uuid.equals( uuid ) ) {
+            forgetKey( replaced.uuid, key );
+        }
+        if( evicted != null ) {
+            forgetKey( evicted.uuid, evicted.key );
+            evictions.increment();
+        }
+
+        keysByUuid.compute( uuid, ( id, keys ) -> {
+            Set<Object> result = keys == null ? new HashSet() : keys;
+            result.add( key );
+            return result;
+        } );
+
+        // invalidate() moves the epoch before it looks up the keys, so if it
+        // ran after the check above either it found this key or this sees it
+        if( isInvalidatedSince( uuid, stamp ) ) {
+            removeIfSame( key, entry );
+        }
+    }
+
+    /**
+     * Discards every entry holding the object with the given uuid.
+     */
+    public void invalidate( String uuid ) {
+        long now = epoch.incrementAndGet();
+        invalidatedAt.accumulateAndGet( stripe( uuid ), now, Math::max );
+
+        Set<Object> keys = keysByUuid.remove( uuid );
+        if( keys != null ) {
+            for( Object key : keys ) {
+                Segment segment = segmentFor( key );
+                synchronized( segment ) {
+                    Entry entry = segment.entries.get( key );
+                    if( entry != null && entry.uuid.equals( uuid ) ) {
+                        segment.removeEntry( key );
+                        invalidations.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        clearedAt = epoch.incrementAndGet();
+        for( Segment segment : segments ) {
+            Entry[] removed;
+            synchronized( segment ) {
+                removed = segment.entries.values().toArray( new Entry[ segment.entries.size() ] );
+                segment.entries.clear();
+                if( segment.frequencies != null ) {
+                    segment.frequencies.clear();
+                }
+            }
+
+            invalidations.add( removed.length );
+            for( Entry entry : removed ) {
+                forgetKey( entry.uuid, entry.key );
+            }
+        }
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats( hits.sum(), misses.sum(), evictions.sum(), expirations.sum(), invalidations.sum(), size() );
+    }
+
+    public int size() {
+        int result = 0;
+        for( Segment segment : segments ) {
+            synchronized( segment ) {
+                result += segment.entries.size();
+            }
+        }
+        return result;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public long getTtlMillis() {
+        return ttlNanos / 1000000L;
+    }
+
+    public boolean isCopyOnRead() {
+        return copyOnRead;
+    }
+
+    private boolean isInvalidatedSince( String uuid, long stamp ) {
+        return clearedAt > stamp || invalidatedAt.get( stripe( uuid ) ) > stamp;
+    }
+
+    private void removeIfSame( Object key, Entry entry ) {
+        Segment segment = segmentFor( key );
+        synchronized( segment ) {
+            if( segment.entries.get( key ) == entry ) {
+                segment.removeEntry( key );
+            }
+        }
+        forgetKey( entry.uuid, key );
+    }
+
+    private void forgetKey( String uuid, Object key ) {
+        keysByUuid.computeIfPresent( uuid, ( id, keys ) -> {
+            keys.remove( key );
+            return keys.isEmpty() ? null : keys;
+        } );
+    }
+
+    private Segment segmentFor( Object key ) {
+        int hash = key.hashCode();
+        return segments[ ( hash ^ ( hash >>> 16 ) ) & ( segments.length - 1 ) ];
+    }
+
+    private static int stripe( String uuid ) {
+        int hash = uuid.hashCode();
+        return ( hash ^ ( hash >>> 16 ) ) & ( INVALIDATION_STRIPES - 1 );
+    }
+
+    private final class Segment {
+        private final int maximumSize;
+        private final LinkedHashMap<Object, Entry> entries;
+        private final TreeSet<Entry> frequencies;
+
+        private Segment( int maximumSize ) {
+            this.maximumSize = maximumSize;
+            this.entries = new LinkedHashMap( 16, 0.75f, evictionPolicy == EvictionPolicy.LRU );
+            this.frequencies = evictionPolicy == EvictionPolicy.LFU ?
+                               new TreeSet( Comparator.comparingLong( ( Entry entry ) -> entry.useCount )
+                                                      .thenComparingLong( entry -> entry.lastUse ) ) :
+                               null;
+        }
+
+        private Entry removeEntry( Object key ) {
+            Entry entry = entries.remove( key );
+            if( entry != null && frequencies != null ) {
+                frequencies.remove( entry );
+            }
+            return entry;
+        }
+    }
+
+    private static final class Entry {
+        private final Object key;
+        private final String uuid;
+        private final Object value;
+        private final long created;
+        private long useCount = 1;
+        private long lastUse;
+
+        private Entry( Object key, String uuid, Object value, long created, long lastUse ) {
+            this.key = key;
+            this.uuid = uuid;
+            this.value = value;
+            this.created = created;
+            this.lastUse = lastUse;
+        }
+    }
+
+    private static final class FieldKey {
+        private final String fieldName;
+        private final Object value;
+
+        private FieldKey( String fieldName, Object value ) {
+            this.fieldName = fieldName;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals( Object other ) {
+            if( !( other instanceof FieldKey ) ) {
+                return false;
+            }
+            FieldKey key = (FieldKey)other;
+            return fieldName.equals( key.fieldName ) && Objects.equals( value, key.value );
+        }
+
+        @Override
+        public int hashCode() {
+            return fieldName.hashCode() * 31 + Objects.hashCode( value );
+        }
+    }
+}
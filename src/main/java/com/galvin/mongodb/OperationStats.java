@@ -0,0 +1,59 @@
+package com.galvin.mongodb;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latencies, failures and server round trips of one CrudOperation on
+ * one CrudUtil.
+ */
+public final class OperationStats {
+    private final CrudOperation operation;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder roundTrips = new LongAdder();
+
+    OperationStats( CrudOperation operation ) {
+        this.operation = operation;
+    }
+
+    void record( long nanos, int roundTrips, boolean failed ) {
+        latency.record( nanos );
+        this.roundTrips.add( roundTrips );
+        if( failed ) {
+            failures.increment();
+        }
+    }
+
+    public CrudOperation getOperation() {
+        return operation;
+    }
+
+    /**
+     * The duration of each call, failed or not.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * The total number of store calls made by all the operations. A query
+     * counts once, however many batches its cursor fetches.
+     */
+    public long getRoundTrips() {
+        return roundTrips.sum();
+    }
+
+    void reset() {
+        latency.reset();
+        failures.reset();
+        roundTrips.reset();
+    }
+}
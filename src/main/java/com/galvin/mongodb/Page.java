@@ -0,0 +1,44 @@
+package com.galvin.mongodb;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of objects returned for a PageRequest.
+ */
+public class Page<T> {
+    private final List<T> items;
+    private final String continuation;
+
+    Page( List<T> items, String continuation ) {
+        this.items = items;
+        this.continuation = continuation;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * The opaque token that requests the next page, or null if this is the
+     * last page.
+     */
+    public String getContinuation() {
+        return continuation;
+    }
+
+    public boolean hasMore() {
+        return continuation != null;
+    }
+
+    /**
+     * Returns a request for the next page with the same sort and limit.
+     */
+    public PageRequest next( PageRequest request ) {
+        PageRequest result = new PageRequest( request.getLimit(), continuation );
+        for( Map.Entry<String, Integer> entry : request.getSort().entrySet() ) {
+            result.addSort( entry.getKey(), entry.getValue() > 0 );
+        }
+        return result;
+    }
+}
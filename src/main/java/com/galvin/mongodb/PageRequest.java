@@ -0,0 +1,101 @@
+package com.galvin.mongodb;
+
+import com.mongodb.BasicDBObject;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Asks CrudUtil for one page of a sorted query. Pages are found by keyset
+ * rather than by skipping: the continuation of each page holds the sort
+ * values of its last object, and the next page starts after them. With an
+ * index on the sort fields followed by _id, every page costs about the same
+ * however deep it is, and objects inserted or deleted between requests do
+ * not shift the pages.
+ *
+ * Objects are sorted by the fields added with addSort() and then by _id,
+ * which breaks ties, so the order is stable. Every sort field must hold a
+ * single value, not null or an array, in every document. The continuation
+ * can only be used with the same sort fields.
+ */
+public class PageRequest {
+    public static final int DEFAULT_LIMIT = 100;
+    static final String ID_FIELD = "_id";
+
+    private final LinkedHashMap<String, Integer> sort = new LinkedHashMap();
+    private int limit = DEFAULT_LIMIT;
+    private String continuation;
+
+    public PageRequest() {
+    }
+
+    public PageRequest( int limit ) {
+        setLimit( limit );
+    }
+
+    public PageRequest( int limit, String continuation ) {
+        setLimit( limit );
+        this.continuation = continuation;
+    }
+
+    /**
+     * Adds a sort field. Fields are sorted in the order they are added.
+     * Dotted paths into embedded documents are allowed.
+     */
+    public void addSort( String field, boolean ascending ) {
+        if( ID_FIELD.equals( field ) ) {
+            throw new IllegalArgumentException( "Objects are always sorted by " + ID_FIELD + " last" );
+        }
+        sort.put( field, ascending ? 1 : -1 );
+    }
+
+    /**
+     * The sort fields, with 1 for ascending and -1 for descending.
+     */
+    public Map<String, Integer> getSort() {
+        return Collections.unmodifiableMap( sort );
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit( int limit ) {
+        if( limit < 1 ) {
+            throw new IllegalArgumentException( "Limit must be positive: " + limit );
+        }
+        this.limit = limit;
+    }
+
+    public String getContinuation() {
+        return continuation;
+    }
+
+    /**
+     * Sets where the page starts: null for the first page, or the
+     * continuation of the previous page.
+     */
+    public void setContinuation( String continuation ) {
+        this.continuation = continuation;
+    }
+
+    /**
+     * The full sort specification, ending with _id in the direction of the
+     * last sort field.
+     */
+    BasicDBObject createSort() {
+        BasicDBObject result = new BasicDBObject();
+        int direction = 1;
+        for( Map.Entry<String, Integer> entry : sort.entrySet() ) {
+            result.append( entry.getKey(), entry.getValue() );
+            direction = entry.getValue();
+        }
+        result.append( ID_FIELD, direction );
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "sort " + createSort() + " limit " + limit + ( continuation == null ? "" : " after " + continuation );
+    }
+}
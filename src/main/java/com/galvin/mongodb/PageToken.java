@@ -0,0 +1,56 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import java.util.Base64;
+import java.util.List;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+
+/**
+ * Encodes the sort values of the last object on a page as a continuation:
+ * a BSON document, so values keep their types, in URL-safe Base64. The sort
+ * specification is recorded too, so a continuation cannot be used with a
+ * different sort.
+ */
+final class PageToken {
+    private static final String SORT_KEY = "s";
+    private static final String VALUES_KEY = "v";
+
+    private PageToken() {
+    }
+
+    static String encode( BSONObject sort, List<Object> values ) {
+        BasicDBList list = new BasicDBList();
+        list.addAll( values );
+        BasicDBObject token = new BasicDBObject( SORT_KEY, signature( sort ) ).append( VALUES_KEY, list );
+        return Base64.getUrlEncoder().withoutPadding().encodeToString( new BasicBSONEncoder().encode( token ) );
+    }
+
+    static List<Object> decode( BSONObject sort, String continuation ) throws PersistenceException {
+        BSONObject token;
+        try {
+            token = new BasicBSONDecoder().readObject( Base64.getUrlDecoder().decode( continuation ) );
+        }
+        catch( RuntimeException ex ) {
+            throw new PersistenceException( "Invalid continuation [" + continuation + "]", ex );
+        }
+
+        Object values = token.get( VALUES_KEY );
+        if( !signature( sort ).equals( token.get( SORT_KEY ) ) || !( values instanceof List ) ||
+            ( (List)values ).size() != sort.keySet().size() ) {
+            throw new PersistenceException( "Continuation was not created for the sort " + signature( sort ) );
+        }
+        return (List<Object>)values;
+    }
+
+    private static String signature( BSONObject sort ) {
+        StringBuilder result = new StringBuilder();
+        for( String field : sort.keySet() ) {
+            result.append( field ).append( ':' ).append( sort.get( field ) ).append( ',' );
+        }
+        return result.toString();
+    }
+}
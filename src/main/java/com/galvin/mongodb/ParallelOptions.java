@@ -0,0 +1,70 @@
+package com.galvin.mongodb;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Settings for retrieving large result sets with parallel unmarshalling.
+ * The calling thread reads documents from the cursor in batches of
+ * batchSize and hands each batch to a pool of parallelism threads to be
+ * unmarshalled, so fetching and decoding overlap. If an executor is given
+ * it is used instead of a pool created for the call, and parallelism only
+ * limits how many batches are queued on it.
+ */
+public class ParallelOptions {
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean ordered = true;
+    private ExecutorService executor;
+
+    public ParallelOptions() {
+    }
+
+    public ParallelOptions( int parallelism, boolean ordered ) {
+        setParallelism( parallelism );
+        this.ordered = ordered;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism( int parallelism ) {
+        if( parallelism < 1 ) {
+            throw new IllegalArgumentException( "Parallelism must be positive: " + parallelism );
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize( int batchSize ) {
+        if( batchSize < 1 ) {
+            throw new IllegalArgumentException( "Batch size must be positive: " + batchSize );
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * If true, results are returned in cursor order; otherwise each batch
+     * is appended as soon as it has been unmarshalled.
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void setOrdered( boolean ordered ) {
+        this.ordered = ordered;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor( ExecutorService executor ) {
+        this.executor = executor;
+    }
+}
@@ -0,0 +1,156 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.DBObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Drains a cursor on the calling thread while a pool unmarshalls the
+ * documents it has already read. At most two batches per thread are in
+ * flight at once, so a slow decoder throttles the cursor instead of
+ * letting raw documents pile up.
+ */
+final class ParallelUnmarshaller<T> {
+    private final RecordDecoder<T> decoder;
+    private final ParallelOptions options;
+
+    ParallelUnmarshaller( RecordDecoder<T> decoder, ParallelOptions options ) {
+        this.decoder = decoder;
+        this.options = options;
+    }
+
+    List<T> unmarshall( DocumentCursor cursor ) throws PersistenceException {
+        cursor.batchSize( options.getBatchSize() );
+
+        ExecutorService executor = options.getExecutor();
+        boolean ownExecutor = executor == null;
+        if( ownExecutor ) {
+            executor = new ForkJoinPool( options.getParallelism() );
+        }
+
+        try {
+            if( options.isOrdered() ) {
+                return unmarshallOrdered( cursor, executor );
+            }
+            else {
+                return unmarshallUnordered( cursor, executor );
+            }
+        }
+        finally {
+            cursor.close();
+            if( ownExecutor ) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private List<T> unmarshallOrdered( DocumentCursor cursor, ExecutorService executor ) throws PersistenceException {
+        List<T> result = new ArrayList();
+        Deque<Future<List<T>>> pending = new ArrayDeque();
+        int maxInFlight = options.getParallelism() * 2;
+
+        try {
+            List<DBObject> batch;
+            while( !( batch = nextBatch( cursor ) ).isEmpty() ) {
+                pending.addLast( executor.submit( decodeTask( batch ) ) );
+                if( pending.size() >= maxInFlight ) {
+                    result.addAll( await( pending.removeFirst() ) );
+                }
+            }
+
+            while( !pending.isEmpty() ) {
+                result.addAll( await( pending.removeFirst() ) );
+            }
+            return result;
+        }
+        finally {
+            for( Future<List<T>> future : pending ) {
+                future.cancel( true );
+            }
+        }
+    }
+
+    private List<T> unmarshallUnordered( DocumentCursor cursor, ExecutorService executor ) throws PersistenceException {
+        List<T> result = new ArrayList();
+        List<Future<List<T>>> submitted = new ArrayList();
+        CompletionService<List<T>> completion = new ExecutorCompletionService( executor );
+        int maxInFlight = options.getParallelism() * 2;
+        int inFlight = 0;
+
+        try {
+            List<DBObject> batch;
+            while( !( batch = nextBatch( cursor ) ).isEmpty() ) {
+                submitted.add( completion.submit( decodeTask( batch ) ) );
+                inFlight++;
+                if( inFlight >= maxInFlight ) {
+                    result.addAll( await( take( completion ) ) );
+                    inFlight--;
+                }
+            }
+
+            for( ; inFlight > 0; inFlight-- ) {
+                result.addAll( await( take( completion ) ) );
+            }
+            return result;
+        }
+        finally {
+            for( Future<List<T>> future : submitted ) {
+                future.cancel( true );
+            }
+        }
+    }
+
+    private List<DBObject> nextBatch( DocumentCursor cursor ) {
+        List<DBObject> batch = new ArrayList( options.getBatchSize() );
+        while( batch.size() < options.getBatchSize() && cursor.hasNext() ) {
+            batch.add( cursor.next() );
+        }
+        return batch;
+    }
+
+    private Callable<List<T>> decodeTask( List<DBObject> batch ) {
+        return () -> {
+            List<T> decoded = new ArrayList( batch.size() );
+            for( DBObject record : batch ) {
+                decoded.add( decoder.decode( record ) );
+            }
+            return decoded;
+        };
+    }
+
+    private Future<List<T>> take( CompletionService<List<T>> completion ) throws PersistenceException {
+        try {
+            return completion.take();
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException( "Interrupted while unmarshalling", ex );
+        }
+    }
+
+    private List<T> await( Future<List<T>> future ) throws PersistenceException {
+        try {
+            return future.get();
+        }
+        catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException( "Interrupted while unmarshalling", ex );
+        }
+        catch( ExecutionException ex ) {
+            if( ex.getCause() instanceof PersistenceException ) {
+                throw (PersistenceException)ex.getCause();
+            }
+            throw new PersistenceException( "Error in CrudUtil.unmarshall", ex.getCause() );
+        }
+    }
+}
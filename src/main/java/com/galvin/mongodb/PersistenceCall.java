@@ -0,0 +1,10 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+
+/**
+ * A unit of CrudUtil work that CrudMetrics can measure.
+ */
+interface PersistenceCall<R> {
+    R call() throws PersistenceException;
+}
@@ -0,0 +1,47 @@
+package com.galvin.mongodb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Limits which fields are read from the database. An include projection
+ * fetches only the named fields (plus the uuid and type fields, which are
+ * always read); an exclude projection fetches everything except the named
+ * fields. Fields that are not fetched are left at the values the class's
+ * no-arg constructor gives them.
+ * 
+ * Objects loaded with a projection are incomplete: storing one replaces
+ * the whole document, losing the fields that were not loaded.
+ */
+public class Projection {
+    private final boolean include;
+    private final Set<String> fields;
+
+    private Projection( boolean include, String... fields ) {
+        this.include = include;
+        this.fields = Collections.unmodifiableSet( new LinkedHashSet( Arrays.asList( fields ) ) );
+    }
+
+    public static Projection include( String... fields ) {
+        return new Projection( true, fields );
+    }
+
+    public static Projection exclude( String... fields ) {
+        return new Projection( false, fields );
+    }
+
+    public boolean isInclude() {
+        return include;
+    }
+
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    @Override
+    public String toString() {
+        return ( include ? "include " : "exclude " ) + fields;
+    }
+}
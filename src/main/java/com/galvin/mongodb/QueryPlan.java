@@ -0,0 +1,132 @@
+package com.galvin.mongodb;
+
+import java.util.List;
+import org.bson.BSONObject;
+
+/**
+ * The parts of an explain result that matter for finding missing indexes:
+ * whether any stage scanned the whole collection, and how many index keys
+ * and documents were examined to return the results. Reads the explain
+ * format of MongoDB 3.0 and later, and the legacy format with cursor,
+ * nscanned and n.
+ */
+public final class QueryPlan {
+    private final BSONObject explain;
+    private final boolean collectionScan;
+    private final String summary;
+    private final long keysExamined;
+    private final long docsExamined;
+    private final long returned;
+
+    private QueryPlan( BSONObject explain, boolean collectionScan, String summary, long keysExamined, long docsExamined, long returned ) {
+        this.explain = explain;
+        this.collectionScan = collectionScan;
+        this.summary = summary;
+        this.keysExamined = keysExamined;
+        this.docsExamined = docsExamined;
+        this.returned = returned;
+    }
+
+    public static QueryPlan parse( BSONObject explain ) {
+        BSONObject planner = document( explain, "queryPlanner" );
+        if( planner != null ) {
+            BSONObject stats = document( explain, "executionStats" );
+            StringBuilder summary = new StringBuilder();
+            boolean collectionScan = stages( document( planner, "winningPlan" ), summary );
+            return new QueryPlan( explain, collectionScan, summary.toString(),
+                                  number( stats, "totalKeysExamined" ),
+                                  number( stats, "totalDocsExamined" ),
+                                  number( stats, "nReturned" ) );
+        }
+
+        String cursor = String.valueOf( explain.get( "cursor" ) );
+        boolean collectionScan = cursor.startsWith( "BasicCursor" );
+        long scanned = number( explain, "nscanned" );
+        return new QueryPlan( explain, collectionScan, cursor,
+                              collectionScan ? 0 : scanned,
+                              explain.containsField( "nscannedObjects" ) ? number( explain, "nscannedObjects" ) : scanned,
+                              number( explain, "n" ) );
+    }
+
+    /**
+     * Appends the stage names from the root down, such as FETCH &lt;
+     * IXSCAN, and returns true if any of them is a COLLSCAN.
+     */
+    private static boolean stages( BSONObject stage, StringBuilder summary ) {
+        if( stage == null ) {
+            return false;
+        }
+
+        String name = String.valueOf( stage.get( "stage" ) );
+        if( summary.length() > 0 ) {
+            summary.append( " < " );
+        }
+        summary.append( name );
+
+        boolean collectionScan = "COLLSCAN".equals( name );
+        collectionScan |= stages( document( stage, "inputStage" ), summary );
+        Object inputs = stage.get( "inputStages" );
+        if( inputs instanceof List ) {
+            for( Object input : (List)inputs ) {
+                if( input instanceof BSONObject ) {
+                    collectionScan |= stages( (BSONObject)input, summary );
+                }
+            }
+        }
+        return collectionScan;
+    }
+
+    private static BSONObject document( BSONObject parent, String key ) {
+        Object value = parent == null ? null : parent.get( key );
+        return value instanceof BSONObject ? (BSONObject)value : null;
+    }
+
+    private static long number( BSONObject parent, String key ) {
+        Object value = parent == null ? null : parent.get( key );
+        return value instanceof Number ? ( (Number)value ).longValue() : 0;
+    }
+
+    /**
+     * The explain result this plan was read from.
+     */
+    public BSONObject getExplain() {
+        return explain;
+    }
+
+    public boolean isCollectionScan() {
+        return collectionScan;
+    }
+
+    /**
+     * The stages of the winning plan, such as "FETCH &lt; IXSCAN", or the
+     * cursor type in the legacy format.
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    public long getKeysExamined() {
+        return keysExamined;
+    }
+
+    public long getDocsExamined() {
+        return docsExamined;
+    }
+
+    public long getReturned() {
+        return returned;
+    }
+
+    /**
+     * The number of keys or documents examined, whichever is greater, per
+     * result returned. A query that returns nothing counts as returning one.
+     */
+    public double getExaminedRatio() {
+        return (double)Math.max( keysExamined, docsExamined ) / Math.max( returned, 1 );
+    }
+
+    @Override
+    public String toString() {
+        return summary + " keysExamined=" + keysExamined + " docsExamined=" + docsExamined + " returned=" + returned;
+    }
+}
@@ -0,0 +1,88 @@
+package com.galvin.mongodb;
+
+import java.util.List;
+import java.util.Map;
+import org.bson.BSONObject;
+
+/**
+ * Reduces a query to its shape: the same fields and operators with every
+ * value replaced by ?, so that queries differing only in their values are
+ * reported together. {name: "a", n: {$gt: 5}} and {name: "b", n: {$gt: 7}}
+ * both have the shape {name: ?, n: {$gt: ?}}. The elements of $and, $or
+ * and $nor are shaped individually; the values of $in and $nin are not.
+ */
+public final class QueryShape {
+    private QueryShape() {
+    }
+
+    public static String of( BSONObject query ) {
+        StringBuilder result = new StringBuilder();
+        append( result, query );
+        return result.toString();
+    }
+
+    private static void append( StringBuilder result, Object value ) {
+        if( value instanceof BSONObject && !( value instanceof List ) ) {
+            BSONObject document = (BSONObject)value;
+            result.append( '{' );
+            boolean first = true;
+            for( String key : document.keySet() ) {
+                if( !first ) {
+                    result.append( ", " );
+                }
+                first = false;
+
+                result.append( key ).append( ": " );
+                Object child = document.get( key );
+                if( isLogical( key ) && child instanceof List ) {
+                    appendList( result, (List)child );
+                }
+                else if( key.startsWith( "$" ) && !isNested( key ) ) {
+                    result.append( '?' );
+                }
+                else {
+                    append( result, child );
+                }
+            }
+            result.append( '}' );
+        }
+        else if( value instanceof Map ) {
+            result.append( '{' );
+            boolean first = true;
+            for( Object key : ( (Map)value ).keySet() ) {
+                if( !first ) {
+                    result.append( ", " );
+                }
+                first = false;
+                result.append( key ).append( ": " );
+                append( result, ( (Map)value ).get( key ) );
+            }
+            result.append( '}' );
+        }
+        else {
+            result.append( '?' );
+        }
+    }
+
+    private static void appendList( StringBuilder result, List list ) {
+        result.append( '[' );
+        for( int index = 0; index < list.size(); index++ ) {
+            if( index > 0 ) {
+                result.append( ", " );
+            }
+            append( result, list.get( index ) );
+        }
+        result.append( ']' );
+    }
+
+    private static boolean isLogical( String key ) {
+        return "$and".equals( key ) || "$or".equals( key ) || "$nor".equals( key );
+    }
+
+    /**
+     * Operators whose argument is itself a query or condition.
+     */
+    private static boolean isNested( String key ) {
+        return "$not".equals( key ) || "$elemMatch".equals( key );
+    }
+}
@@ -0,0 +1,11 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.DBObject;
+
+/**
+ * Turns a document read from the database into an object.
+ */
+interface RecordDecoder<T> {
+    T decode( DBObject record ) throws PersistenceException;
+}
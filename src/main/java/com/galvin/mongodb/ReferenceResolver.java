@@ -0,0 +1,198 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+import com.galvin.db.PersistenceException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+/**
+ * Collects the uuid references met while unmarshalling a result set and
+ * loads them afterwards in rounds: each round fetches every outstanding
+ * uuid with one lookup per adapter, and the objects it loads may add
+ * references for the next round. Objects are remembered by type and uuid
+ * for the life of the resolver, so each is loaded once and references that
+ * lead back to an object already loaded, including cycles, share it.
+ *
+ * Unmarshalling may happen on several threads at once; resolve() is called
+ * once they have finished.
+ */
+final class ReferenceResolver {
+    private HashMap<String, HashMap<String, Object>> loaded;
+    private LinkedHashMap<String, Request> requests;
+    private List<Callback> callbacks;
+
+    /**
+     * Receives the object a reference resolves to, or null if no object
+     * with its uuid exists.
+     */
+    interface Slot {
+        void fill( Object value ) throws PersistenceException;
+    }
+
+    /**
+     * Work to run once every reference has been filled in.
+     */
+    interface Callback {
+        void run() throws PersistenceException;
+    }
+
+    /**
+     * Stands in for a referenced object until it has been loaded.
+     */
+    static final class Pending {
+        private final CrudUtil adapter;
+        private final String uuid;
+
+        private Pending( CrudUtil adapter, String uuid ) {
+            this.adapter = adapter;
+            this.uuid = uuid;
+        }
+    }
+
+    /**
+     * Returns the object with the given uuid if it has already been
+     * loaded, otherwise a Pending that must be passed to await().
+     */
+    synchronized Object reference( CrudUtil adapter, String uuid ) {
+        HashMap<String, Object> objects = loaded == null ? null : loaded.get( adapter.getClassName() );
+        Object result = objects == null ? null : objects.get( uuid );
+        return result != null ? result : new Pending( adapter, uuid );
+    }
+
+    synchronized void await( Pending pending, Slot slot ) {
+        if( requests == null ) {
+            requests = new LinkedHashMap();
+        }
+
+        Request request = requests.get( pending.adapter.getClassName() );
+        if( request == null ) {
+            request = new Request( pending.adapter );
+            requests.put( pending.adapter.getClassName(), request );
+        }
+
+        List<Slot> slots = request.slots.get( pending.uuid );
+        if( slots == null ) {
+            slots = new ArrayList( 1 );
+            request.slots.put( pending.uuid, slots );
+        }
+        slots.add( slot );
+    }
+
+    /**
+     * Runs the callback at the end of resolve(), after every slot has been
+     * filled.
+     */
+    synchronized void whenResolved( Callback callback ) {
+        if( callbacks == null ) {
+            callbacks = new ArrayList();
+        }
+        callbacks.add( callback );
+    }
+
+    /**
+     * Loads every outstanding reference, fills in its slots and then runs
+     * the callbacks. The roots are the objects of the result set itself,
+     * which references may point back to; they are only examined if there
+     * is something to resolve.
+     */
+    void resolve( CrudUtil rootAdapter, Collection<? extends HasUuid> roots ) throws PersistenceException {
+        if( hasRequests() ) {
+            synchronized( this ) {
+                HashMap<String, Object> objects = objectsOf( rootAdapter.getClassName() );
+                for( HasUuid root : roots ) {
+                    if( root != null && root.getUuid() != null ) {
+                        objects.putIfAbsent( root.getUuid(), root );
+                    }
+                }
+            }
+
+            while( hasRequests() ) {
+                LinkedHashMap<String, Request> round;
+                synchronized( this ) {
+                    round = requests;
+                    requests = null;
+                }
+
+                for( Entry<String, Request> entry : round.entrySet() ) {
+                    resolve( entry.getKey(), entry.getValue() );
+                }
+            }
+        }
+
+        List<Callback> finished;
+        synchronized( this ) {
+            finished = callbacks;
+            callbacks = null;
+        }
+        if( finished != null ) {
+            for( Callback callback : finished ) {
+                callback.run();
+            }
+        }
+    }
+
+    private void resolve( String className, Request request ) throws PersistenceException {
+        HashMap<String, Object> objects;
+        List<String> missing = new ArrayList();
+        synchronized( this ) {
+            objects = objectsOf( className );
+            for( String uuid : request.slots.keySet() ) {
+                if( !objects.containsKey( uuid ) ) {
+                    missing.add( uuid );
+                }
+            }
+        }
+
+        if( !missing.isEmpty() ) {
+            List<HasUuid> found = request.adapter.loadReferenced( missing, this );
+            synchronized( this ) {
+                for( String uuid : missing ) {
+                    objects.put( uuid, null );
+                }
+                for( HasUuid item : found ) {
+                    objects.put( item.getUuid(), item );
+                }
+            }
+        }
+
+        for( Entry<String, List<Slot>> entry : request.slots.entrySet() ) {
+            Object value;
+            synchronized( this ) {
+                value = objects.get( entry.getKey() );
+            }
+            for( Slot slot : entry.getValue() ) {
+                slot.fill( value );
+            }
+        }
+    }
+
+    private synchronized boolean hasRequests() {
+        return requests != null && !requests.isEmpty();
+    }
+
+    private HashMap<String, Object> objectsOf( String className ) {
+        if( loaded == null ) {
+            loaded = new HashMap();
+        }
+
+        HashMap<String, Object> result = loaded.get( className );
+        if( result == null ) {
+            result = new HashMap();
+            loaded.put( className, result );
+        }
+        return result;
+    }
+
+    private static final class Request {
+        private final CrudUtil adapter;
+        private final LinkedHashMap<String, List<Slot>> slots = new LinkedHashMap();
+
+        private Request( CrudUtil adapter ) {
+            this.adapter = adapter;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.DatabaseLoginException;
+import com.mongodb.MongoException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Controls how CollectionUtil.getCollection() retries while the database
+ * is unavailable: exponential backoff from initialDelayMillis up to
+ * maxDelayMillis, randomized by jitter, until deadlineMillis have passed
+ * or maxAttempts attempts have been made. Errors rejected by the
+ * retryable predicate, such as failed logins, are not retried at all.
+ */
+public class RetryPolicy {
+    /**
+     * Mongo error codes for failed authentication and authorization.
+     */
+    private static final int AUTHENTICATION_FAILED = 18;
+    private static final int UNAUTHORIZED = 13;
+
+    public static final Predicate<Throwable> DEFAULT_RETRYABLE = t -> {
+        if( t instanceof DatabaseLoginException ||
+            t instanceof IllegalArgumentException ) {
+            return false;
+        }
+        if( t instanceof MongoException ) {
+            int code = ( (MongoException)t ).getCode();
+            return code != AUTHENTICATION_FAILED && code != UNAUTHORIZED;
+        }
+        return true;
+    };
+
+    private long initialDelayMillis = 100;
+    private long maxDelayMillis = 5000;
+    private double multiplier = 2.0;
+    private double jitter = 0.5;
+    private long deadlineMillis = 30000;
+    private int maxAttempts = 0;
+    private Predicate<Throwable> retryable = DEFAULT_RETRYABLE;
+
+    public RetryPolicy() {
+    }
+
+    public RetryPolicy( long initialDelayMillis, long maxDelayMillis, long deadlineMillis ) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * The delay before retry number attempt, counting from zero.
+     */
+    public long getDelayMillis( int attempt ) {
+        double delay = Math.min( maxDelayMillis, initialDelayMillis * Math.pow( multiplier, attempt ) );
+        if( jitter > 0 ) {
+            delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+        }
+        return (long)delay;
+    }
+
+    public boolean isRetryable( Throwable t ) {
+        return retryable.test( t );
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    public void setInitialDelayMillis( long initialDelayMillis ) {
+        this.initialDelayMillis = initialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public void setMaxDelayMillis( long maxDelayMillis ) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public void setMultiplier( double multiplier ) {
+        this.multiplier = multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * The fraction, from 0 to 1, by which each delay may be randomly
+     * shortened, so that threads which failed together do not all retry
+     * together.
+     */
+    public void setJitter( double jitter ) {
+        if( jitter < 0 || jitter > 1 ) {
+            throw new IllegalArgumentException( "Jitter must be between 0 and 1: " + jitter );
+        }
+        this.jitter = jitter;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    public void setDeadlineMillis( long deadlineMillis ) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Limits the number of attempts, or removes the limit if zero.
+     */
+    public void setMaxAttempts( int maxAttempts ) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public Predicate<Throwable> getRetryable() {
+        return retryable;
+    }
+
+    public void setRetryable( Predicate<Throwable> retryable ) {
+        this.retryable = retryable;
+    }
+}
@@ -0,0 +1,89 @@
+package com.galvin.mongodb;
+
+/**
+ * The slow queries of one shape captured by a SlowQueryMonitor, totalled.
+ */
+public final class ShapeReport {
+    private final String collection;
+    private final String shape;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long explained;
+    private final long collectionScans;
+    private final long poorlySelective;
+    private final QueryPlan lastPlan;
+
+    ShapeReport( String collection, String shape, long count, long totalNanos, long maxNanos,
+                 long explained, long collectionScans, long poorlySelective, QueryPlan lastPlan ) {
+        this.collection = collection;
+        this.shape = shape;
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.explained = explained;
+        this.collectionScans = collectionScans;
+        this.poorlySelective = poorlySelective;
+        this.lastPlan = lastPlan;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * The number of slow queries with this shape.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public double getMeanNanos() {
+        return count == 0 ? 0 : (double)totalNanos / count;
+    }
+
+    /**
+     * How many of them were explained.
+     */
+    public long getExplained() {
+        return explained;
+    }
+
+    public long getCollectionScans() {
+        return collectionScans;
+    }
+
+    public long getPoorlySelective() {
+        return poorlySelective;
+    }
+
+    public boolean isFlagged() {
+        return collectionScans > 0 || poorlySelective > 0;
+    }
+
+    /**
+     * The most recent plan captured for this shape, or null if none of its
+     * queries were explained.
+     */
+    public QueryPlan getLastPlan() {
+        return lastPlan;
+    }
+
+    @Override
+    public String toString() {
+        return collection + " " + shape + ": " + count + " slow, mean " + (long)( getMeanNanos() / 1000000 ) + "ms, max " +
+               ( maxNanos / 1000000 ) + "ms, " + collectionScans + " COLLSCAN, " + poorlySelective + " poorly selective";
+    }
+}
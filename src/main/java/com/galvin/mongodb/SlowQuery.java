@@ -0,0 +1,100 @@
+package com.galvin.mongodb;
+
+import com.mongodb.DBObject;
+
+/**
+ * A query that took longer than a SlowQueryMonitor's threshold.
+ */
+public final class SlowQuery {
+    private final String collection;
+    private final String className;
+    private final String shape;
+    private final DBObject query;
+    private final long nanos;
+    private final QueryPlan plan;
+    private final boolean collectionScan;
+    private final boolean poorlySelective;
+    private final boolean failed;
+
+    SlowQuery( String collection, String className, String shape, DBObject query, long nanos,
+               QueryPlan plan, boolean collectionScan, boolean poorlySelective, boolean failed ) {
+        this.collection = collection;
+        this.className = className;
+        this.shape = shape;
+        this.query = query;
+        this.nanos = nanos;
+        this.plan = plan;
+        this.collectionScan = collectionScan;
+        this.poorlySelective = poorlySelective;
+        this.failed = failed;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * The query with its values removed; see QueryShape.
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * The query itself, which may contain user data.
+     */
+    public DBObject getQuery() {
+        return query;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * The explain plan, or null if this query was not sampled for explain.
+     */
+    public QueryPlan getPlan() {
+        return plan;
+    }
+
+    public boolean isCollectionScan() {
+        return collectionScan;
+    }
+
+    /**
+     * True if the plan examined more keys or documents per result than the
+     * monitor allows.
+     */
+    public boolean isPoorlySelective() {
+        return poorlySelective;
+    }
+
+    /**
+     * True if the query threw instead of returning, for example because it
+     * timed out; getNanos() is then the time until it failed.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * True if the plan shows the query needs an index.
+     */
+    public boolean isFlagged() {
+        return collectionScan || poorlySelective;
+    }
+
+    @Override
+    public String toString() {
+        return collection + " " + shape + " took " + ( nanos / 1000000 ) + "ms" +
+               ( plan == null ? "" : ": " + plan ) +
+               ( collectionScan ? " [COLLSCAN]" : "" ) +
+               ( poorlySelective ? " [POORLY SELECTIVE]" : "" ) +
+               ( failed ? " [FAILED]" : "" );
+    }
+}
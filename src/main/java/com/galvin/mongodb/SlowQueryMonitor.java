@@ -0,0 +1,300 @@
+package com.galvin.mongodb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import com.mongodb.DBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Captures the searches made through a CrudUtil that take longer than a
+ * threshold. Each slow query is reduced to its QueryShape and, if sampled,
+ * explained. Plans that scan the whole collection, or that examine too
+ * many keys or documents for each result, are flagged. Every slow query is
+ * passed to the sinks and totalled by shape in getReport().
+ *
+ * Explaining runs the query a second time, so by default only the first
+ * slow query of each shape is explained; setExplainSampleRate() explains a
+ * fraction of the rest. CrudUtil.explain() explains any query on demand.
+ * Explains run on a background executor rather than in the caller's
+ * request, and a query waiting for its explain reaches the sinks and the
+ * report once the explain finishes; while it runs, other slow queries of
+ * the same shape are not explained. Queries that fail are captured too.
+ * One monitor may be shared by several CrudUtils.
+ */
+public class SlowQueryMonitor {
+    private static final Logger logger = LoggerFactory.getLogger( SlowQueryMonitor.class );
+
+    public static final long DEFAULT_THRESHOLD_MILLIS = 100;
+    public static final double DEFAULT_MAX_EXAMINED_RATIO = 10;
+    public static final int DEFAULT_MAX_SHAPES = 1000;
+    private static final int EXPLAIN_QUEUE_SIZE = 100;
+    private static volatile ExecutorService defaultExecutor;
+
+    private volatile long thresholdNanos;
+    private volatile boolean explainNewShapes = true;
+    private volatile double explainSampleRate = 0;
+    private volatile double maxExaminedRatio = DEFAULT_MAX_EXAMINED_RATIO;
+    private volatile int maxShapes = DEFAULT_MAX_SHAPES;
+    private volatile Executor explainExecutor;
+    private final CopyOnWriteArrayList<SlowQuerySink> sinks = new CopyOnWriteArrayList();
+    private final ConcurrentHashMap<String, ShapeStats> shapes = new ConcurrentHashMap();
+
+    public SlowQueryMonitor() {
+        this( DEFAULT_THRESHOLD_MILLIS );
+    }
+
+    public SlowQueryMonitor( long thresholdMillis ) {
+        setThresholdMillis( thresholdMillis );
+    }
+
+    /**
+     * Explains run one at a time on a shared daemon thread, so that a
+     * burst of slow queries cannot add a burst of explains to a database
+     * that is already struggling. Explains beyond the queue are skipped.
+     */
+    private static ExecutorService getDefaultExecutor() {
+        ExecutorService result = defaultExecutor;
+        if( result == null ) {
+            synchronized( SlowQueryMonitor.class ) {
+                if( defaultExecutor == null ) {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor( 1, 1, 60, TimeUnit.SECONDS,
+                                                                          new LinkedBlockingQueue( EXPLAIN_QUEUE_SIZE ),
+                                                                          runnable -> {
+                                                                              Thread thread = new Thread( runnable, "SlowQueryMonitor-explain" );
+                                                                              thread.setDaemon( true );
+                                                                              return thread;
+                                                                          } );
+                    executor.allowCoreThreadTimeOut( true );
+                    defaultExecutor = executor;
+                }
+                result = defaultExecutor;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Called by CrudUtil after every monitored query, including those that
+     * failed.
+     */
+    void completed( DocumentStore store, String className, DBObject query, long nanos, boolean failed ) {
+        if( nanos < thresholdNanos ) {
+            return;
+        }
+
+        String collection = store.getName();
+        String shape = QueryShape.of( query );
+        String key = collection + '\u0000' + shape;
+        ShapeStats stats = shapes.get( key );
+        if( stats == null && shapes.size() < maxShapes ) {
+            shapes.putIfAbsent( key, new ShapeStats( collection, shape ) );
+            stats = shapes.get( key );
+        }
+
+        boolean claimed = explainNewShapes && stats != null && stats.explainClaimed.compareAndSet( false, true );
+        if( claimed || ( explainSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < explainSampleRate ) ) {
+            ShapeStats shapeStats = stats;
+            Executor executor = explainExecutor;
+            try {
+                ( executor == null ? getDefaultExecutor() : executor ).execute( () -> {
+                    QueryPlan plan = explain( store, collection, shape, query );
+                    if( claimed && plan == null ) {
+                        shapeStats.explainClaimed.set( false );
+                    }
+                    captured( shapeStats, collection, className, shape, query, nanos, plan, failed );
+                } );
+                return;
+            }
+            catch( RejectedExecutionException ex ) {
+                logger.debug( "Explain queue full; not explaining slow query {} on {}", shape, collection );
+                if( claimed ) {
+                    stats.explainClaimed.set( false );
+                }
+            }
+        }
+
+        captured( stats, collection, className, shape, query, nanos, null, failed );
+    }
+
+    private static QueryPlan explain( DocumentStore store, String collection, String shape, DBObject query ) {
+        try {
+            return QueryPlan.parse( store.explain( query ) );
+        }
+        catch( RuntimeException ex ) {
+            logger.warn( "Unable to explain slow query " + shape + " on " + collection, ex );
+            return null;
+        }
+    }
+
+    private void captured( ShapeStats stats, String collection, String className, String shape, DBObject query,
+                           long nanos, QueryPlan plan, boolean failed ) {
+        boolean collectionScan = plan != null && plan.isCollectionScan();
+        boolean poorlySelective = plan != null && plan.getExaminedRatio() > maxExaminedRatio;
+        SlowQuery slowQuery = new SlowQuery( collection, className, shape, query, nanos, plan, collectionScan, poorlySelective, failed );
+
+        if( stats != null ) {
+            stats.record( slowQuery );
+        }
+
+        for( SlowQuerySink sink : sinks ) {
+            try {
+                sink.onSlowQuery( slowQuery );
+            }
+            catch( RuntimeException ex ) {
+                logger.warn( "Slow query sink failed", ex );
+            }
+        }
+    }
+
+    /**
+     * The slow queries captured so far, totalled by collection and shape,
+     * slowest total first.
+     */
+    public List<ShapeReport> getReport() {
+        List<ShapeReport> result = new ArrayList( shapes.size() );
+        for( ShapeStats stats : shapes.values() ) {
+            result.add( stats.report() );
+        }
+        result.sort( Comparator.comparingLong( ShapeReport::getTotalNanos ).reversed() );
+        return result;
+    }
+
+    public void reset() {
+        shapes.clear();
+    }
+
+    public void addSink( SlowQuerySink sink ) {
+        sinks.add( sink );
+    }
+
+    public void removeSink( SlowQuerySink sink ) {
+        sinks.remove( sink );
+    }
+
+    public long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis( thresholdNanos );
+    }
+
+    /**
+     * Sets how long a query must take to be captured. Zero captures every
+     * query.
+     */
+    public void setThresholdMillis( long thresholdMillis ) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos( thresholdMillis );
+    }
+
+    public boolean isExplainNewShapes() {
+        return explainNewShapes;
+    }
+
+    /**
+     * Sets whether a slow query is explained if no query of its shape has
+     * been explained yet. Defaults to true. Shapes beyond getMaxShapes() are
+     * only explained by sampling.
+     */
+    public void setExplainNewShapes( boolean explainNewShapes ) {
+        this.explainNewShapes = explainNewShapes;
+    }
+
+    public double getExplainSampleRate() {
+        return explainSampleRate;
+    }
+
+    /**
+     * Sets the fraction, from 0 to 1, of other slow queries that are
+     * explained. Defaults to 0.
+     */
+    public void setExplainSampleRate( double explainSampleRate ) {
+        if( explainSampleRate < 0 || explainSampleRate > 1 ) {
+            throw new IllegalArgumentException( "Sample rate must be between 0 and 1: " + explainSampleRate );
+        }
+        this.explainSampleRate = explainSampleRate;
+    }
+
+    public double getMaxExaminedRatio() {
+        return maxExaminedRatio;
+    }
+
+    /**
+     * Sets how many keys or documents a plan may examine per result before
+     * it is flagged as poorly selective.
+     */
+    public void setMaxExaminedRatio( double maxExaminedRatio ) {
+        this.maxExaminedRatio = maxExaminedRatio;
+    }
+
+    public Executor getExplainExecutor() {
+        return explainExecutor;
+    }
+
+    /**
+     * Sets the executor that explains run on, or null for the shared
+     * single-threaded default. Sinks are called on it for the queries it
+     * explains.
+     */
+    public void setExplainExecutor( Executor explainExecutor ) {
+        this.explainExecutor = explainExecutor;
+    }
+
+    public int getMaxShapes() {
+        return maxShapes;
+    }
+
+    /**
+     * Limits the number of shapes kept for the report. Slow queries of
+     * other shapes are still passed to the sinks.
+     */
+    public void setMaxShapes( int maxShapes ) {
+        this.maxShapes = maxShapes;
+    }
+
+    private static final class ShapeStats {
+        private final String collection;
+        private final String shape;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+        private final AtomicBoolean explainClaimed = new AtomicBoolean();
+        private long explained;
+        private long collectionScans;
+        private long poorlySelective;
+        private QueryPlan lastPlan;
+
+        private ShapeStats( String collection, String shape ) {
+            this.collection = collection;
+            this.shape = shape;
+        }
+
+        private synchronized void record( SlowQuery query ) {
+            count++;
+            totalNanos += query.getNanos();
+            maxNanos = Math.max( maxNanos, query.getNanos() );
+            if( query.getPlan() != null ) {
+                explained++;
+                lastPlan = query.getPlan();
+            }
+            if( query.isCollectionScan() ) {
+                collectionScans++;
+            }
+            if( query.isPoorlySelective() ) {
+                poorlySelective++;
+            }
+        }
+
+        private synchronized ShapeReport report() {
+            return new ShapeReport( collection, shape, count, totalNanos, maxNanos, explained, collectionScans, poorlySelective, lastPlan );
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.galvin.mongodb;
+
+/**
+ * Receives the slow queries captured by a SlowQueryMonitor. Sinks are
+ * called on the thread that ran the query, so they should hand anything
+ * expensive off to another thread.
+ */
+public interface SlowQuerySink {
+    public void onSlowQuery( SlowQuery query );
+}
@@ -0,0 +1,17 @@
+package com.galvin.mongodb;
+
+/**
+ * How CrudUtil.store() replaces an existing document.
+ */
+public enum StoreMode {
+    /**
+     * Delete any document with the object's uuid, then insert the new one.
+     * Costs several round trips, and the document is briefly missing.
+     */
+    DELETE_AND_INSERT,
+
+    /**
+     * Replace the document keyed on uuid in a single upsert.
+     */
+    UPSERT
+}
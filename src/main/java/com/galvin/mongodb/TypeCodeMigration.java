@@ -0,0 +1,163 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites the documents of one type that still carry the canonical class
+ * name so that they use the CrudUtil's compact type code instead. Each
+ * document is unmarshalled and marshalled again to find the type fields
+ * that change, including those of embedded adapted objects, and only those
+ * fields are updated, with $unset and $set. The update is keyed on the
+ * document's _id and on every old type field it replaces, so other fields
+ * written concurrently are kept, and a document whose embedded objects have
+ * moved or changed type since it was read is skipped and left for another
+ * run. Readers see either form throughout, so the migration can run in the
+ * background against a live collection.
+ */
+public class TypeCodeMigration<T extends HasUuid> {
+    private static final Logger logger = LoggerFactory.getLogger( TypeCodeMigration.class );
+
+    private final CrudUtil<T> crudUtil;
+    private final int batchSize;
+    private final AtomicLong migrated = new AtomicLong();
+    private volatile boolean cancelled = false;
+
+    public TypeCodeMigration( CrudUtil<T> crudUtil ) {
+        this( crudUtil, 500 );
+    }
+
+    public TypeCodeMigration( CrudUtil<T> crudUtil, int batchSize ) {
+        if( crudUtil.getTypeRegistry() == null ) {
+            throw new IllegalArgumentException( "CrudUtil for " + crudUtil.getClassName() + " has no type registry" );
+        }
+        if( crudUtil.getCollection() == null ) {
+            throw new IllegalArgumentException( "CrudUtil for " + crudUtil.getClassName() + " is not backed by a MongoDB collection" );
+        }
+        this.crudUtil = crudUtil;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Runs the migration on the executor.
+     */
+    public Future<Long> start( ExecutorService executor ) {
+        return executor.submit( this::run );
+    }
+
+    /**
+     * Runs the migration on the calling thread and returns the number of
+     * documents rewritten.
+     */
+    public long run() throws PersistenceException {
+        DBCollection collection = crudUtil.getCollection();
+        BasicDBObject query = new BasicDBObject( CrudUtil.CANONICAL_NAME, crudUtil.getClassName() );
+        DBCursor cursor = collection.find( query ).batchSize( batchSize );
+
+        try {
+            BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            int pending = 0;
+
+            while( cursor.hasNext() && !cancelled ) {
+                DBObject record = cursor.next();
+                BasicDBObject replacement = crudUtil.marshall( crudUtil.unmarshall( record ) );
+
+                BasicDBObject filter = new BasicDBObject( "_id", record.get( "_id" ) );
+                BasicDBObject set = new BasicDBObject();
+                BasicDBObject unset = new BasicDBObject();
+                collectTypeChanges( "", record, replacement, filter, set, unset );
+                if( set.isEmpty() ) {
+                    continue;
+                }
+
+                bulk.find( filter ).updateOne( new BasicDBObject( "$set", set ).append( "$unset", unset ) );
+                pending++;
+
+                if( pending == batchSize ) {
+                    migrated.addAndGet( bulk.execute().getMatchedCount() );
+                    bulk = collection.initializeUnorderedBulkOperation();
+                    pending = 0;
+                }
+            }
+
+            if( pending > 0 ) {
+                migrated.addAndGet( bulk.execute().getMatchedCount() );
+            }
+
+            logger.info( "Migrated {} documents of {} to compact type codes", migrated.get(), crudUtil.getClassName() );
+            return migrated.get();
+        }
+        catch( MongoException ex ) {
+            throw new PersistenceException( "Type code migration failed for " + crudUtil.getClassName(), ex );
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Finds the documents, at any depth, whose canonical class name is
+     * replaced by a type code in the re-marshalled form. Each becomes an
+     * $unset of the name and a $set of the code, and the old name is added
+     * to the filter so that the update only applies while it is still
+     * there.
+     */
+    private static void collectTypeChanges( String prefix, Object original, Object replacement,
+                                            BasicDBObject filter, BasicDBObject set, BasicDBObject unset ) {
+        if( original instanceof BasicDBList ) {
+            if( replacement instanceof List ) {
+                List originalList = (List)original;
+                List replacementList = (List)replacement;
+                for( int index = 0; index < originalList.size() && index < replacementList.size(); index++ ) {
+                    collectTypeChanges( prefix + index + ".", originalList.get( index ), replacementList.get( index ), filter, set, unset );
+                }
+            }
+        }
+        else if( original instanceof DBObject && replacement instanceof DBObject ) {
+            DBObject originalDocument = (DBObject)original;
+            DBObject replacementDocument = (DBObject)replacement;
+
+            Object name = originalDocument.get( CrudUtil.CANONICAL_NAME );
+            Object code = replacementDocument.get( TypeRegistry.TYPE_KEY );
+            if( name != null && code != null && !replacementDocument.containsField( CrudUtil.CANONICAL_NAME ) ) {
+                filter.append( prefix + CrudUtil.CANONICAL_NAME, name );
+                unset.append( prefix + CrudUtil.CANONICAL_NAME, "" );
+                set.append( prefix + TypeRegistry.TYPE_KEY, code );
+            }
+
+            for( String key : originalDocument.keySet() ) {
+                if( !CrudUtil.CANONICAL_NAME.equals( key ) ) {
+                    collectTypeChanges( prefix + key + ".", originalDocument.get( key ), replacementDocument.get( key ), filter, set, unset );
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the migration after the current document. Batches already
+     * written stay migrated.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * The number of documents rewritten so far.
+     */
+    public long getMigrated() {
+        return migrated.get();
+    }
+}
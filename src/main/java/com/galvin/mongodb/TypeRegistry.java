@@ -0,0 +1,113 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns short, stable integer codes to stored classes, so that documents
+ * can carry a small type code under TYPE_KEY instead of the fully qualified
+ * class name under the canonical-name key. Codes are kept in a registry
+ * collection, one document per class, and are never reused; every process
+ * sharing the registry collection sees the same codes. Lookups are cached
+ * after the first round trip.
+ */
+public class TypeRegistry {
+    public static final String TYPE_KEY = "_t";
+
+    private static final String CODE_FIELD = "code";
+    private static final String COUNTER_ID = "__next_code__";
+    private static final String COUNTER_FIELD = "seq";
+
+    private final DBCollection registry;
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap();
+    private final ConcurrentHashMap<Integer, String> classNames = new ConcurrentHashMap();
+
+    public TypeRegistry( DBCollection registry ) {
+        this.registry = registry;
+    }
+
+    /**
+     * Returns the code for the class, registering it if necessary.
+     */
+    public int getCode( String className ) throws PersistenceException {
+        Integer code = codes.get( className );
+        if( code != null ) {
+            return code;
+        }
+
+        try {
+            DBObject existing = registry.findOne( new BasicDBObject( "_id", className ) );
+            if( existing == null ) {
+                existing = register( className );
+            }
+
+            code = ( (Number)existing.get( CODE_FIELD ) ).intValue();
+            remember( className, code );
+            return code;
+        }
+        catch( MongoException ex ) {
+            throw new PersistenceException( "Unable to register type " + className, ex );
+        }
+    }
+
+    /**
+     * Returns the class registered under the code, or null if there is none.
+     */
+    public String getClassName( int code ) throws PersistenceException {
+        String className = classNames.get( code );
+        if( className != null ) {
+            return className;
+        }
+
+        try {
+            DBObject existing = registry.findOne( new BasicDBObject( CODE_FIELD, code ) );
+            if( existing != null ) {
+                className = (String)existing.get( "_id" );
+                remember( className, code );
+            }
+            return className;
+        }
+        catch( MongoException ex ) {
+            throw new PersistenceException( "Unable to look up type code " + code, ex );
+        }
+    }
+
+    /**
+     * Allocates the next code and records it for the class. If another
+     * process registers the same class first, its code wins and the code
+     * allocated here is left unused.
+     */
+    private DBObject register( String className ) {
+        DBObject counter = registry.findAndModify( new BasicDBObject( "_id", COUNTER_ID ),
+                                                   null,
+                                                   null,
+                                                   false,
+                                                   new BasicDBObject( "$inc", new BasicDBObject( COUNTER_FIELD, 1 ) ),
+                                                   true,
+                                                   true );
+        int code = ( (Number)counter.get( COUNTER_FIELD ) ).intValue();
+
+        BasicDBObject entry = new BasicDBObject( "_id", className ).append( CODE_FIELD, code );
+        try {
+            registry.insert( entry );
+            return entry;
+        }
+        catch( DuplicateKeyException ex ) {
+            return registry.findOne( new BasicDBObject( "_id", className ) );
+        }
+    }
+
+    private void remember( String className, int code ) {
+        codes.put( className, code );
+        classNames.put( code, className );
+    }
+
+    public DBCollection getRegistry() {
+        return registry;
+    }
+}
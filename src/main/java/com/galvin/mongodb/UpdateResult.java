@@ -0,0 +1,29 @@
+package com.galvin.mongodb;
+
+/**
+ * The outcome of DocumentStore.update().
+ */
+public final class UpdateResult {
+    private final long n;
+    private final boolean updateOfExisting;
+
+    public UpdateResult( long n, boolean updateOfExisting ) {
+        this.n = n;
+        this.updateOfExisting = updateOfExisting;
+    }
+
+    /**
+     * The number of documents updated or inserted.
+     */
+    public long getN() {
+        return n;
+    }
+
+    /**
+     * True if an existing document was updated, false if nothing matched
+     * or a document was upserted.
+     */
+    public boolean isUpdateOfExisting() {
+        return updateOfExisting;
+    }
+}
@@ -0,0 +1,56 @@
+package com.galvin.mongodb;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import org.bson.types.Binary;
+
+/**
+ * Converts uuid strings to and from BSON binary subtype 4.
+ */
+final class UuidCodec {
+    static final byte SUBTYPE_UUID = 4;
+
+    private UuidCodec() {
+    }
+
+    /**
+     * Returns the binary form of the uuid, or the string itself if it is
+     * not a valid UUID and so has no binary form.
+     */
+    static Object toBinary( String uuid ) {
+        UUID parsed;
+        try {
+            parsed = UUID.fromString( uuid );
+        }
+        catch( IllegalArgumentException ex ) {
+            return uuid;
+        }
+
+        // UUID.fromString() accepts some non-canonical forms
+        if( !parsed.toString().equalsIgnoreCase( uuid ) ) {
+            return uuid;
+        }
+
+        ByteBuffer bytes = ByteBuffer.allocate( 16 );
+        bytes.putLong( parsed.getMostSignificantBits() );
+        bytes.putLong( parsed.getLeastSignificantBits() );
+        return new Binary( SUBTYPE_UUID, bytes.array() );
+    }
+
+    static boolean isUuid( Object value ) {
+        return value instanceof UUID ||
+               ( value instanceof Binary && ( (Binary)value ).length() == 16 );
+    }
+
+    /**
+     * Returns the string form of a stored uuid, whatever form it was
+     * stored in. The driver decodes the legacy subtype 3 as a UUID.
+     */
+    static String toString( Object value ) {
+        if( value instanceof Binary && ( (Binary)value ).length() == 16 ) {
+            ByteBuffer bytes = ByteBuffer.wrap( ( (Binary)value ).getData() );
+            return new UUID( bytes.getLong(), bytes.getLong() ).toString();
+        }
+        return value == null ? null : value.toString();
+    }
+}
@@ -0,0 +1,119 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites the string uuids of one type as BSON binary. Only the top-level
+ * uuid field is converted; embedded objects keep whatever form they were
+ * written in, and both forms are read back as strings. Each update is keyed
+ * on the document's _id and old uuid, so the migration can run against a
+ * live collection while the CrudUtil is in MIXED mode. Switch it to BINARY
+ * once the migration has finished.
+ */
+public class UuidMigration<T extends HasUuid> {
+    private static final Logger logger = LoggerFactory.getLogger( UuidMigration.class );
+    private static final int BSON_STRING = 2;
+
+    private final CrudUtil<T> crudUtil;
+    private final int batchSize;
+    private final AtomicLong migrated = new AtomicLong();
+    private volatile boolean cancelled = false;
+
+    public UuidMigration( CrudUtil<T> crudUtil ) {
+        this( crudUtil, 500 );
+    }
+
+    public UuidMigration( CrudUtil<T> crudUtil, int batchSize ) {
+        if( crudUtil.getUuidRepresentation() == UuidRepresentation.STRING ) {
+            throw new IllegalArgumentException( "CrudUtil for " + crudUtil.getClassName() + " still writes string uuids" );
+        }
+        if( crudUtil.getCollection() == null ) {
+            throw new IllegalArgumentException( "CrudUtil for " + crudUtil.getClassName() + " is not backed by a MongoDB collection" );
+        }
+        this.crudUtil = crudUtil;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Runs the migration on the executor.
+     */
+    public Future<Long> start( ExecutorService executor ) {
+        return executor.submit( this::run );
+    }
+
+    /**
+     * Runs the migration on the calling thread and returns the number of
+     * documents rewritten.
+     */
+    public long run() throws PersistenceException {
+        DBCollection collection = crudUtil.getCollection();
+        BasicDBObject query = crudUtil.createTypeQuery( crudUtil.getClassName() )
+            .append( CrudUtil.UUID_FIELD, new BasicDBObject( "$type", BSON_STRING ) );
+        DBCursor cursor = collection.find( query, new BasicDBObject( CrudUtil.UUID_FIELD, 1 ) ).batchSize( batchSize );
+
+        try {
+            BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+            int pending = 0;
+
+            while( cursor.hasNext() && !cancelled ) {
+                DBObject record = cursor.next();
+                String uuid = (String)record.get( CrudUtil.UUID_FIELD );
+                Object binary = UuidCodec.toBinary( uuid );
+                if( binary == uuid ) {
+                    logger.warn( "Leaving {} document {} as it is: its uuid is not a valid UUID", crudUtil.getClassName(), uuid );
+                    continue;
+                }
+
+                bulk.find( new BasicDBObject( "_id", record.get( "_id" ) ).append( CrudUtil.UUID_FIELD, uuid ) )
+                    .updateOne( new BasicDBObject( "$set", new BasicDBObject( CrudUtil.UUID_FIELD, binary ) ) );
+                pending++;
+
+                if( pending == batchSize ) {
+                    migrated.addAndGet( bulk.execute().getMatchedCount() );
+                    bulk = collection.initializeUnorderedBulkOperation();
+                    pending = 0;
+                }
+            }
+
+            if( pending > 0 ) {
+                migrated.addAndGet( bulk.execute().getMatchedCount() );
+            }
+
+            logger.info( "Migrated {} documents of {} to binary uuids", migrated.get(), crudUtil.getClassName() );
+            return migrated.get();
+        }
+        catch( MongoException ex ) {
+            throw new PersistenceException( "Uuid migration failed for " + crudUtil.getClassName(), ex );
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stops the migration after the current document. Batches already
+     * written stay migrated.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * The number of documents rewritten so far.
+     */
+    public long getMigrated() {
+        return migrated.get();
+    }
+}
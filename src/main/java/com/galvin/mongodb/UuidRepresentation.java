@@ -0,0 +1,23 @@
+package com.galvin.mongodb;
+
+/**
+ * How CrudUtil stores and queries the uuid field. Objects always see their
+ * uuid as a String; documents holding either form can always be read.
+ */
+public enum UuidRepresentation {
+    /**
+     * The 36-character string form.
+     */
+    STRING,
+
+    /**
+     * BSON binary subtype 4, 16 bytes. Queries only match binary uuids.
+     */
+    BINARY,
+
+    /**
+     * Writes binary uuids, but queries match both forms. Use this while
+     * UuidMigration converts existing documents, then switch to BINARY.
+     */
+    MIXED
+}
@@ -0,0 +1,75 @@
+package com.galvin.mongodb;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe map whose keys are compared by identity and held weakly,
+ * so an entry disappears once its key is no longer used elsewhere. Unlike
+ * WeakHashMap, it does not depend on the keys' equals() and hashCode(),
+ * which may change as the objects are modified.
+ */
+final class WeakIdentityMap<K, V> {
+    private final ConcurrentHashMap<IdentityReference<K>, V> entries = new ConcurrentHashMap();
+    private final ReferenceQueue<K> queue = new ReferenceQueue();
+
+    V get( K key ) {
+        expunge();
+        return entries.get( new IdentityReference( key, null ) );
+    }
+
+    void put( K key, V value ) {
+        expunge();
+        entries.put( new IdentityReference( key, queue ), value );
+    }
+
+    V remove( K key ) {
+        expunge();
+        return entries.remove( new IdentityReference( key, null ) );
+    }
+
+    void clear() {
+        entries.clear();
+        expunge();
+    }
+
+    int size() {
+        expunge();
+        return entries.size();
+    }
+
+    private void expunge() {
+        Reference<? extends K> reference;
+        while( ( reference = queue.poll() ) != null ) {
+            entries.remove( reference );
+        }
+    }
+
+    private static final class IdentityReference<K> extends WeakReference<K> {
+        private final int hash;
+
+        private IdentityReference( K key, ReferenceQueue<K> queue ) {
+            super( key, queue );
+            this.hash = System.identityHashCode( key );
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals( Object other ) {
+            if( other == this ) {
+                return true;
+            }
+            if( !( other instanceof IdentityReference ) ) {
+                return false;
+            }
+            Object key = get();
+            return key != null && key == ( (IdentityReference)other ).get();
+        }
+    }
+}
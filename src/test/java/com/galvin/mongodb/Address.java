@@ -0,0 +1,29 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+
+public class Address implements HasUuid {
+    String uuid;
+    String street;
+    String city;
+    int zip;
+
+    public Address() {
+    }
+
+    public Address( String street, String city, int zip ) {
+        this.street = street;
+        this.city = city;
+        this.zip = zip;
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public void setUuid( String uuid ) {
+        this.uuid = uuid;
+    }
+}
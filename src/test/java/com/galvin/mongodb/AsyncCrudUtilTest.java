@@ -0,0 +1,232 @@
+package com.galvin.mongodb;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncCrudUtilTest {
+    private BlockingStore store;
+    private CrudUtil<Customer> customers;
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new BlockingStore();
+        customers = new CrudUtil<Customer>( store, Customer.class.getCanonicalName() );
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        store.release();
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void noMoreThanMaxInFlightRunAtOnce() throws Exception {
+        AsyncCrudUtil<Customer> async = new AsyncCrudUtil<Customer>( customers, pool, 2, 0 );
+        store.block();
+
+        List<CompletableFuture<Customer>> futures = new ArrayList();
+        for( int index = 0; index < 10; index++ ) {
+            futures.add( async.retrieve( "missing" + index ) );
+        }
+        store.awaitRunning( 2 );
+        assertEquals( 2, async.getInFlight() );
+        assertEquals( 8, async.getQueued() );
+
+        store.release();
+        for( CompletableFuture<Customer> future : futures ) {
+            future.get( 5, TimeUnit.SECONDS );
+        }
+        assertEquals( 2, store.maxRunning.get() );
+        assertEquals( 0, async.getInFlight() );
+        assertEquals( 0, async.getQueued() );
+    }
+
+    @Test
+    public void fullQueueRejectsOperations() throws Exception {
+        AsyncCrudUtil<Customer> async = new AsyncCrudUtil<Customer>( customers, pool, 1, 2 );
+        store.block();
+
+        CompletableFuture<Customer> running = async.retrieve( "a" );
+        store.awaitRunning( 1 );
+        CompletableFuture<Customer> first = async.retrieve( "b" );
+        CompletableFuture<Customer> second = async.retrieve( "c" );
+        CompletableFuture<Customer> rejected = async.retrieve( "d" );
+
+        assertFailedWith( RejectedExecutionException.class, rejected );
+        assertEquals( 2, async.getQueued() );
+
+        store.release();
+        running.get( 5, TimeUnit.SECONDS );
+        first.get( 5, TimeUnit.SECONDS );
+        second.get( 5, TimeUnit.SECONDS );
+        assertEquals( 0, async.getQueued() );
+    }
+
+    @Test
+    public void failedOperationsGiveUpTheirPlace() throws Exception {
+        AsyncCrudUtil<Customer> async = new AsyncCrudUtil<Customer>( customers, pool, 1, 0 );
+        store.failure = new MongoException( "down" );
+
+        assertFailedWith( MongoException.class, async.retrieve( "a" ) );
+        assertEquals( 0, async.getInFlight() );
+
+        store.failure = null;
+        async.retrieve( "a" ).get( 5, TimeUnit.SECONDS );
+    }
+
+    @Test
+    public void executorFailuresGiveUpTheirPlace() throws Exception {
+        for( RuntimeException failure : new RuntimeException[]{ new RejectedExecutionException( "shut down" ), new IllegalStateException( "broken" ) } ) {
+            AsyncCrudUtil<Customer> async = new AsyncCrudUtil<Customer>( customers, task -> { throw failure; }, 1, 0 );
+
+            assertFailedWith( failure.getClass(), async.retrieve( "a" ) );
+            assertFailedWith( failure.getClass(), async.retrieve( "b" ) );
+            assertEquals( 0, async.getInFlight() );
+            assertEquals( 0, async.getQueued() );
+        }
+    }
+
+    @Test
+    public void chainedStagesRunWithoutHoldingAPlace() throws Exception {
+        AsyncCrudUtil<Customer> async = new AsyncCrudUtil<Customer>( customers, pool, 1, 0 );
+        Customer customer = new Customer( "Ada" );
+        customers.store( customer );
+
+        // hold the retrieve until the stage is attached, so that the stage
+        // runs on the thread that completes it
+        store.block();
+        AtomicInteger inFlightDuringStage = new AtomicInteger( -1 );
+        CompletableFuture<String> stored = async.retrieve( customer.getUuid() ).thenApply( found -> {
+            inFlightDuringStage.set( async.getInFlight() );
+            found.name = "Grace";
+            return async.store( found ).join();
+        } );
+        store.release();
+
+        assertEquals( customer.getUuid(), stored.get( 5, TimeUnit.SECONDS ) );
+        assertEquals( 0, inFlightDuringStage.get() );
+        assertEquals( "Grace", customers.retrieve( customer.getUuid() ).name );
+    }
+
+    @Test
+    public void directExecutorRunsQueuedOperationsWithoutRecursing() throws Exception {
+        AsyncCrudUtil<Customer> async = new AsyncCrudUtil<Customer>( customers, Runnable::run, 1, 0 );
+        List<CompletableFuture<Customer>> submitted = new ArrayList();
+        AtomicReference<Throwable> uncaught = new AtomicReference();
+
+        // operations submitted while one is running queue behind it, and
+        // would each add to the stack if they were started recursively
+        store.onFind( () -> {
+            for( int index = 0; index < 20000; index++ ) {
+                submitted.add( async.retrieve( "missing" + index ) );
+            }
+        } );
+        Thread thread = new Thread( null, () -> async.retrieve( "a" ).join(), "small-stack", 256 * 1024 );
+        thread.setUncaughtExceptionHandler( ( failed, failure ) -> uncaught.set( failure ) );
+        thread.start();
+        thread.join();
+
+        assertNull( uncaught.get() );
+        assertEquals( 20000, submitted.size() );
+        for( CompletableFuture<Customer> future : submitted ) {
+            assertTrue( future.isDone() );
+            assertNull( future.get() );
+        }
+        assertEquals( 0, async.getInFlight() );
+    }
+
+    private static void assertFailedWith( Class<? extends Throwable> type, CompletableFuture<?> future ) throws Exception {
+        try {
+            future.get( 5, TimeUnit.SECONDS );
+            fail( "expected " + type.getSimpleName() );
+        }
+        catch( ExecutionException ex ) {
+            assertTrue( String.valueOf( ex.getCause() ), type.isInstance( ex.getCause() ) );
+        }
+    }
+
+    /**
+     * A store whose queries can be held until released, and which counts
+     * how many run at once.
+     */
+    private static final class BlockingStore extends InMemoryDocumentStore {
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxRunning = new AtomicInteger();
+        private volatile CountDownLatch gate = new CountDownLatch( 0 );
+        private volatile RuntimeException failure;
+        private final AtomicReference<Runnable> onFind = new AtomicReference();
+
+        private BlockingStore() {
+            super( "customers" );
+        }
+
+        void block() {
+            gate = new CountDownLatch( 1 );
+        }
+
+        void release() {
+            gate.countDown();
+        }
+
+        /**
+         * Runs the action during the next query.
+         */
+        void onFind( Runnable action ) {
+            onFind.set( action );
+        }
+
+        void awaitRunning( int count ) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while( running.get() < count && System.currentTimeMillis() < deadline ) {
+                Thread.sleep( 5 );
+            }
+            assertEquals( count, running.get() );
+        }
+
+        @Override
+        public DocumentCursor find( DBObject query, DBObject fields ) {
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet( now, Math::max );
+            try {
+                if( !gate.await( 5, TimeUnit.SECONDS ) ) {
+                    throw new IllegalStateException( "never released" );
+                }
+                if( failure != null ) {
+                    throw failure;
+                }
+                Runnable action = onFind.getAndSet( null );
+                if( action != null ) {
+                    action.run();
+                }
+                return super.find( query, fields );
+            }
+            catch( InterruptedException ex ) {
+                throw new IllegalStateException( ex );
+            }
+            finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClassCodecTest {
+    private CrudUtil<Customer> customers;
+    private CrudUtil<Address> addresses;
+
+    @Before
+    public void setUp() {
+        customers = new CrudUtil<Customer>( new InMemoryDocumentStore( "customers" ), Customer.class.getCanonicalName() );
+        addresses = new CrudUtil<Address>( new InMemoryDocumentStore( "addresses" ), Address.class.getCanonicalName() );
+        customers.register( Address.class.getCanonicalName(), addresses );
+    }
+
+    @Test
+    public void compileRecordsInheritedFieldsFirst() throws Exception {
+        ClassCodec codec = ClassCodec.compile( PreferredCustomer.class, Collections.<String>emptySet() );
+
+        assertEquals( Arrays.asList( "uuid", "name", "age", "balance", "rating", "verified", "created", "status",
+                                     "history", "tags", "groups", "home", "addresses", "discount" ),
+                      names( codec.getRecordedFields() ) );
+        assertEquals( PreferredCustomer.class.getCanonicalName(), codec.getCanonicalName() );
+        assertNull( "static fields are not persistent", codec.getField( "instances" ) );
+        assertNull( "transient fields are not persistent", codec.getField( "session" ) );
+        assertTrue( codec.newInstance() instanceof PreferredCustomer );
+    }
+
+    @Test
+    public void excludedFieldsAreReadButNotRecorded() throws Exception {
+        ClassCodec codec = ClassCodec.compile( Customer.class, Arrays.asList( "balance" ) );
+
+        assertEquals( -1, codec.getRecordedIndex( "balance" ) );
+        assertEquals( 2, codec.getRecordedIndex( "age" ) );
+        assertNotNull( codec.getField( "balance" ) );
+        assertFalse( names( codec.getRecordedFields() ).contains( "balance" ) );
+    }
+
+    @Test
+    public void classWithoutNoArgConstructorCannotBeInstantiated() throws Exception {
+        ClassCodec codec = ClassCodec.compile( Named.class, Collections.<String>emptySet() );
+        try {
+            codec.newInstance();
+            fail( "instantiated a class without a no-arg constructor" );
+        }
+        catch( PersistenceException ex ) {
+            assertTrue( ex.getMessage().contains( "no-argument constructor" ) );
+        }
+    }
+
+    @Test
+    public void scalarFieldsRoundTrip() throws Exception {
+        Customer customer = new Customer( "Ada" );
+        customer.age = 36;
+        customer.balance = 1L << 40;
+        customer.rating = 4.5;
+        customer.verified = Boolean.TRUE;
+        customer.created = new Date( 1000 );
+        customer.session = "not stored";
+
+        BasicDBObject record = customers.marshall( customer );
+        assertNotNull( "marshalling assigns a uuid", customer.getUuid() );
+        assertEquals( Customer.class.getCanonicalName(), record.get( CrudUtil.CANONICAL_NAME ) );
+        assertFalse( record.containsField( "session" ) );
+        assertFalse( "null fields are not written", record.containsField( "status" ) );
+
+        Customer copy = customers.unmarshall( record );
+        assertEquals( customer.getUuid(), copy.getUuid() );
+        assertEquals( "Ada", copy.name );
+        assertEquals( 36, copy.age );
+        assertEquals( 1L << 40, copy.balance );
+        assertEquals( 4.5, copy.rating, 0 );
+        assertEquals( Boolean.TRUE, copy.verified );
+        assertEquals( new Date( 1000 ), copy.created );
+        assertNull( copy.session );
+        assertNull( copy.status );
+    }
+
+    @Test
+    public void numbersAreCoercedToTheDeclaredType() throws Exception {
+        BasicDBObject record = customers.marshall( new Customer( "Ada" ) );
+        record.put( "age", 36L );
+        record.put( "balance", 12 );
+        record.put( "rating", 3 );
+
+        Customer copy = customers.unmarshall( record );
+        assertEquals( 36, copy.age );
+        assertEquals( 12L, copy.balance );
+        assertEquals( 3.0, copy.rating, 0 );
+    }
+
+    @Test
+    public void enumsAreStoredAsOrdinals() throws Exception {
+        Customer customer = new Customer( "Ada" );
+        customer.status = Status.SUSPENDED;
+        customer.history.addAll( Arrays.asList( Status.ACTIVE, Status.CLOSED, Status.ACTIVE ) );
+
+        BasicDBObject record = customers.marshall( customer );
+        assertEquals( 1, record.get( "status" ) );
+        assertEquals( Arrays.asList( 0, 2, 0 ), record.get( "history" ) );
+
+        Customer copy = customers.unmarshall( record );
+        assertEquals( Status.SUSPENDED, copy.status );
+        assertEquals( Arrays.asList( Status.ACTIVE, Status.CLOSED, Status.ACTIVE ), copy.history );
+    }
+
+    @Test
+    public void nestedListsRoundTrip() throws Exception {
+        Customer customer = new Customer( "Ada" );
+        customer.tags.addAll( Arrays.asList( "a", "b" ) );
+        customer.groups.add( new ArrayList( Arrays.asList( "x", "y" ) ) );
+        customer.groups.add( new ArrayList() );
+
+        BasicDBObject record = customers.marshall( customer );
+        assertTrue( record.get( "groups" ) instanceof BasicDBList );
+
+        Customer copy = customers.unmarshall( record );
+        assertEquals( Arrays.asList( "a", "b" ), copy.tags );
+        assertEquals( Arrays.asList( Arrays.asList( "x", "y" ), Arrays.asList() ), copy.groups );
+    }
+
+    @Test
+    public void nestedAdaptersRoundTrip() throws Exception {
+        Customer customer = new Customer( "Ada" );
+        customer.home = new Address( "1 Main St", "Springfield", 12345 );
+        customer.addresses.add( new Address( "2 Side St", "Shelbyville", 54321 ) );
+        customer.addresses.add( new Address( "3 High St", "Capital City", 11111 ) );
+
+        BasicDBObject record = customers.marshall( customer );
+        BasicDBObject home = (BasicDBObject)record.get( "home" );
+        assertEquals( Address.class.getCanonicalName(), home.get( CrudUtil.CANONICAL_NAME ) );
+        assertEquals( "Springfield", home.get( "city" ) );
+        assertNotNull( "nested objects get uuids too", customer.home.getUuid() );
+
+        Customer copy = customers.unmarshall( record );
+        assertEquals( customer.home.getUuid(), copy.home.getUuid() );
+        assertEquals( "1 Main St", copy.home.street );
+        assertEquals( 12345, copy.home.zip );
+        assertEquals( 2, copy.addresses.size() );
+        assertEquals( "Shelbyville", copy.addresses.get( 0 ).city );
+        assertEquals( "Capital City", copy.addresses.get( 1 ).city );
+    }
+
+    @Test
+    public void subclassesRoundTripThroughTheStore() throws Exception {
+        CrudUtil<PreferredCustomer> preferred = new CrudUtil<PreferredCustomer>( new InMemoryDocumentStore( "preferred" ), PreferredCustomer.class.getCanonicalName() );
+        preferred.register( Address.class.getCanonicalName(), addresses );
+
+        for( boolean direct : new boolean[]{ false, true } ) {
+            preferred.setDirectCodec( direct );
+
+            PreferredCustomer customer = new PreferredCustomer();
+            customer.name = "Ada";
+            customer.discount = 0.25;
+            customer.status = Status.CLOSED;
+            customer.home = new Address( "1 Main St", "Springfield", 12345 );
+            preferred.store( customer );
+
+            PreferredCustomer copy = preferred.retrieve( customer.getUuid() );
+            assertEquals( "Ada", copy.name );
+            assertEquals( 0.25, copy.discount, 0 );
+            assertEquals( Status.CLOSED, copy.status );
+            assertEquals( "Springfield", copy.home.city );
+        }
+    }
+
+    @Test
+    public void unknownFieldsFail() throws Exception {
+        BasicDBObject record = customers.marshall( new Customer( "Ada" ) );
+        record.put( "nickname", "Countess" );
+        try {
+            customers.unmarshall( record );
+            fail( "unmarshalled a field the class does not have" );
+        }
+        catch( PersistenceException ex ) {
+            assertTrue( ex.getCause() instanceof NoSuchFieldException );
+        }
+    }
+
+    @Test
+    public void unmappedKeysAreIgnored() throws Exception {
+        BasicDBObject record = customers.marshall( new Customer( "Ada" ) );
+        record.put( "_id", "ignored" );
+
+        assertEquals( "Ada", customers.unmarshall( record ).name );
+    }
+
+    @Test
+    public void storedStaticFieldsAreIgnored() throws Exception {
+        // earlier versions wrote non-final static fields into each record
+        int instances = Customer.instances;
+        BasicDBObject record = customers.marshall( new Customer( "Ada" ) );
+        record.put( "instances", instances + 100 );
+
+        assertEquals( "Ada", customers.unmarshall( record ).name );
+        assertEquals( instances, Customer.instances );
+
+        for( boolean direct : new boolean[]{ false, true } ) {
+            InMemoryDocumentStore store = new InMemoryDocumentStore( "customers" );
+            store.insert( record );
+            CrudUtil<Customer> stored = new CrudUtil<Customer>( store, Customer.class.getCanonicalName() );
+            stored.register( Address.class.getCanonicalName(), addresses );
+            stored.setDirectCodec( direct );
+
+            assertEquals( "Ada", stored.retrieve( (String)record.get( CrudUtil.UUID_FIELD ) ).name );
+            assertEquals( instances, Customer.instances );
+        }
+    }
+
+    private static final class Named {
+        private String name;
+
+        private Named( String name ) {
+            this.name = name;
+        }
+    }
+
+    private static List<String> names( ClassCodec.FieldBinding[] fields ) {
+        List<String> result = new ArrayList();
+        for( ClassCodec.FieldBinding field : fields ) {
+            result.add( field.getName() );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,42 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.HasUuid;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class Customer implements HasUuid {
+    static int instances;
+
+    String uuid;
+    String name;
+    int age;
+    long balance;
+    double rating;
+    Boolean verified;
+    Date created;
+    Status status;
+    List<Status> history = new ArrayList();
+    List<String> tags = new ArrayList();
+    List<List<String>> groups = new ArrayList();
+    Address home;
+    List<Address> addresses = new ArrayList();
+    transient String session;
+
+    public Customer() {
+    }
+
+    public Customer( String name ) {
+        this.name = name;
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public void setUuid( String uuid ) {
+        this.uuid = uuid;
+    }
+}
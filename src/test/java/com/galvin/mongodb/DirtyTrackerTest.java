@@ -0,0 +1,241 @@
+package com.galvin.mongodb;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DirtyTrackerTest {
+    private static final String ADDRESS = Address.class.getCanonicalName();
+
+    @Test
+    public void untrackedObjectsHaveNoDiff() {
+        DirtyTracker tracker = new DirtyTracker( DirtyTracking.SNAPSHOT );
+        assertNull( tracker.diff( new Object(), new BasicDBObject( "name", "Ada" ), null ) );
+    }
+
+    @Test
+    public void unchangedDocumentsHaveNoOperators() {
+        for( DirtyTracking mode : new DirtyTracking[]{ DirtyTracking.SNAPSHOT, DirtyTracking.HASH } ) {
+            DirtyTracker tracker = new DirtyTracker( mode );
+            Object target = new Object();
+            tracker.track( target, customer() );
+
+            assertTrue( mode.name(), tracker.diff( target, customer(), null ).isEmpty() );
+        }
+    }
+
+    @Test
+    public void topLevelFieldsAreSetAndUnset() {
+        for( DirtyTracking mode : new DirtyTracking[]{ DirtyTracking.SNAPSHOT, DirtyTracking.HASH } ) {
+            DirtyTracker tracker = new DirtyTracker( mode );
+            Object target = new Object();
+            tracker.track( target, customer() );
+
+            BasicDBObject after = customer();
+            after.put( "name", "Grace" );
+            after.put( "age", 85 );
+            after.removeField( "status" );
+
+            assertEquals( mode.name(),
+                          update( new BasicDBObject( "name", "Grace" ).append( "age", 85 ), new BasicDBObject( "status", "" ) ),
+                          tracker.diff( target, after, null ) );
+        }
+    }
+
+    @Test
+    public void unmappedAndExcludedFieldsAreIgnored() {
+        for( DirtyTracking mode : new DirtyTracking[]{ DirtyTracking.SNAPSHOT, DirtyTracking.HASH } ) {
+            DirtyTracker tracker = new DirtyTracker( mode );
+            Object target = new Object();
+            BasicDBObject before = customer();
+            before.put( "_id", "stored id" );
+            before.put( "version", 1 );
+            tracker.track( target, before );
+
+            BasicDBObject after = customer();
+            after.put( "version", 2 );
+
+            assertTrue( mode.name(), tracker.diff( target, after, "version" ).isEmpty() );
+        }
+    }
+
+    @Test
+    public void nestedDocumentsDiffByPath() {
+        DirtyTracker tracker = new DirtyTracker( DirtyTracking.SNAPSHOT );
+        Object target = new Object();
+        tracker.track( target, customer() );
+
+        BasicDBObject after = customer();
+        DBObject home = (DBObject)after.get( "home" );
+        home.put( "city", "Shelbyville" );
+        home.removeField( "zip" );
+        home.put( "street", "2 Side St" );
+
+        assertEquals( update( new BasicDBObject( "home.city", "Shelbyville" ).append( "home.street", "2 Side St" ),
+                              new BasicDBObject( "home.zip", "" ) ),
+                      tracker.diff( target, after, null ) );
+    }
+
+    @Test
+    public void nestedDocumentsOfAnotherTypeAreReplaced() {
+        DirtyTracker tracker = new DirtyTracker( DirtyTracking.SNAPSHOT );
+        Object target = new Object();
+        tracker.track( target, customer() );
+
+        BasicDBObject after = customer();
+        BasicDBObject home = new BasicDBObject( CrudUtil.CANONICAL_NAME, "com.example.PostBox" ).append( "city", "Springfield" );
+        after.put( "home", home );
+
+        assertEquals( update( new BasicDBObject( "home", home ), null ), tracker.diff( target, after, null ) );
+    }
+
+    @Test
+    public void sameLengthListsDiffByElement() {
+        DirtyTracker tracker = new DirtyTracker( DirtyTracking.SNAPSHOT );
+        Object target = new Object();
+        tracker.track( target, customer() );
+
+        BasicDBObject after = customer();
+        ( (List)after.get( "tags" ) ).set( 1, "changed" );
+        ( (DBObject)( (List)after.get( "addresses" ) ).get( 1 ) ).put( "zip", 99999 );
+
+        assertEquals( update( new BasicDBObject( "tags.1", "changed" ).append( "addresses.1.zip", 99999 ), null ),
+                      tracker.diff( target, after, null ) );
+    }
+
+    @Test
+    public void resizedListsAreSetWhole() {
+        DirtyTracker tracker = new DirtyTracker( DirtyTracking.SNAPSHOT );
+        Object target = new Object();
+        tracker.track( target, customer() );
+
+        BasicDBObject after = customer();
+        ( (List)after.get( "tags" ) ).add( "d" );
+        ( (List)after.get( "addresses" ) ).remove( 0 );
+
+        assertEquals( update( new BasicDBObject( "tags", after.get( "tags" ) ).append( "addresses", after.get( "addresses" ) ), null ),
+                      tracker.diff( target, after, null ) );
+    }
+
+    @Test
+    public void hashesRewriteChangedFieldsWhole() {
+        DirtyTracker tracker = new DirtyTracker( DirtyTracking.HASH );
+        Object target = new Object();
+        tracker.track( target, customer() );
+
+        BasicDBObject after = customer();
+        ( (DBObject)after.get( "home" ) ).put( "city", "Shelbyville" );
+        ( (List)after.get( "tags" ) ).set( 1, "changed" );
+
+        assertEquals( update( new BasicDBObject( "home", after.get( "home" ) ).append( "tags", after.get( "tags" ) ), null ),
+                      tracker.diff( target, after, null ) );
+    }
+
+    @Test
+    public void hashesSeeFieldOrderAndNumberWidth() {
+        assertTrue( DirtyTracker.hash( new BasicDBObject( "a", 1 ).append( "b", 2 ) ) != DirtyTracker.hash( new BasicDBObject( "b", 2 ).append( "a", 1 ) ) );
+        assertTrue( DirtyTracker.hash( 1L << 40 ) != DirtyTracker.hash( ( 1L << 40 ) + 1 ) );
+        assertTrue( DirtyTracker.hash( 0.1 ) != DirtyTracker.hash( 0.1f ) );
+        assertTrue( DirtyTracker.hash( list( "a", "b" ) ) != DirtyTracker.hash( list( "ab" ) ) );
+    }
+
+    @Test
+    public void updateSendsOnlyTheChangedPaths() throws Exception {
+        RecordingStore store = new RecordingStore();
+        CrudUtil<Customer> customers = new CrudUtil<Customer>( store, Customer.class.getCanonicalName() );
+        customers.register( ADDRESS, new CrudUtil<Address>( new InMemoryDocumentStore( "addresses" ), ADDRESS ) );
+        customers.setDirtyTracking( DirtyTracking.SNAPSHOT );
+
+        Customer customer = new Customer( "Ada" );
+        customer.home = new Address( "1 Main St", "Springfield", 12345 );
+        customer.tags.addAll( Arrays.asList( "a", "b" ) );
+        customers.store( customer );
+
+        Customer loaded = customers.retrieve( customer.getUuid() );
+        customers.update( loaded );
+        assertTrue( "an unchanged object is not written", store.updates.isEmpty() );
+
+        loaded.home.city = "Shelbyville";
+        loaded.tags.set( 1, "c" );
+        customers.update( loaded );
+        assertEquals( Arrays.asList( update( new BasicDBObject( "home.city", "Shelbyville" ).append( "tags.1", "c" ), null ) ),
+                      store.updates );
+
+        loaded.tags.add( "d" );
+        loaded.home = null;
+        store.updates.clear();
+        customers.update( loaded );
+        assertEquals( Arrays.asList( update( new BasicDBObject( "tags", list( "a", "c", "d" ) ), new BasicDBObject( "home", "" ) ) ),
+                      store.updates );
+
+        Customer stored = customers.retrieve( customer.getUuid() );
+        assertNull( stored.home );
+        assertEquals( Arrays.asList( "a", "c", "d" ), stored.tags );
+        assertEquals( "Ada", stored.name );
+    }
+
+    private static BasicDBObject customer() {
+        BasicDBList addresses = new BasicDBList();
+        addresses.add( address( "2 Side St", "Shelbyville", 54321 ) );
+        addresses.add( address( "3 High St", "Capital City", 11111 ) );
+
+        return new BasicDBObject( CrudUtil.CANONICAL_NAME, Customer.class.getCanonicalName() )
+            .append( CrudUtil.UUID_FIELD, "customer" )
+            .append( "name", "Ada" )
+            .append( "status", 0 )
+            .append( "tags", list( "a", "b", "c" ) )
+            .append( "home", address( "1 Main St", "Springfield", 12345 ) )
+            .append( "addresses", addresses );
+    }
+
+    private static BasicDBObject address( String street, String city, int zip ) {
+        return new BasicDBObject( CrudUtil.CANONICAL_NAME, ADDRESS )
+            .append( "street", street )
+            .append( "city", city )
+            .append( "zip", zip );
+    }
+
+    private static BasicDBList list( Object... values ) {
+        BasicDBList result = new BasicDBList();
+        result.addAll( Arrays.asList( values ) );
+        return result;
+    }
+
+    private static BasicDBObject update( BasicDBObject set, BasicDBObject unset ) {
+        BasicDBObject result = new BasicDBObject();
+        if( set != null ) {
+            result.put( "$set", set );
+        }
+        if( unset != null ) {
+            result.put( "$unset", unset );
+        }
+        return result;
+    }
+
+    /**
+     * Records the operator updates CrudUtil sends.
+     */
+    private static final class RecordingStore extends InMemoryDocumentStore {
+        private final List<DBObject> updates = new ArrayList();
+
+        private RecordingStore() {
+            super( "customers" );
+        }
+
+        @Override
+        public UpdateResult update( DBObject query, DBObject update, boolean upsert, boolean multi ) {
+            if( Documents.isOperatorUpdate( update ) ) {
+                updates.add( update );
+            }
+            return super.update( query, update, upsert, multi );
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package com.galvin.mongodb;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The queries, sorts and updates CrudUtil relies on, run against each
+ * DocumentStore so that InMemoryDocumentStore is held to the server's
+ * behaviour. Every document has a uuid, which the assertions refer to.
+ */
+public abstract class DocumentStoreTest {
+    protected DocumentStore store;
+
+    /**
+     * Returns an empty store, or fails an assumption if the store cannot
+     * be tested here.
+     */
+    protected abstract DocumentStore createStore() throws Exception;
+
+    @Before
+    public void setUp() throws Exception {
+        store = createStore();
+    }
+
+    //////////////
+    // matching //
+    //////////////
+
+    @Test
+    public void inMatchesAnyListedValue() {
+        insert( "a", "name", "alpha" );
+        insert( "b", "name", "beta" );
+        insert( "c", "name", "gamma" );
+
+        assertEquals( Arrays.asList( "a", "c" ), find( query( "name", in( "alpha", "gamma" ) ) ) );
+        assertEquals( Arrays.asList( "a", "b" ), find( query( CrudUtil.UUID_FIELD, in( "a", "b", "z" ) ) ) );
+        assertEquals( Arrays.asList(), find( query( CrudUtil.UUID_FIELD, in() ) ) );
+    }
+
+    @Test
+    public void inMatchesArraysContainingAValue() {
+        insert( "a", "tags", list( "red", "green" ) );
+        insert( "b", "tags", list( "blue" ) );
+        insert( "c", "tags", list() );
+
+        assertEquals( Arrays.asList( "a", "b" ), find( query( "tags", in( "green", "blue" ) ) ) );
+        assertEquals( Arrays.asList( "a" ), find( query( "tags", "red" ) ) );
+    }
+
+    @Test
+    public void inWithNullMatchesMissingFields() {
+        insert( "a", "name", null );
+        insert( "b" );
+        insert( "c", "name", "gamma" );
+
+        assertEquals( Arrays.asList( "a", "b" ), find( query( "name", in( (Object)null ) ) ) );
+        assertEquals( Arrays.asList( "a", "b" ), find( query( "name", null ) ) );
+    }
+
+    @Test
+    public void existsSeparatesMissingFieldsFromNull() {
+        insert( "a", "name", null );
+        insert( "b" );
+        insert( "c", "name", "gamma" );
+        insert( "d", "address", new BasicDBObject( "city", "Boston" ) );
+
+        assertEquals( Arrays.asList( "a", "c" ), find( query( "name", new BasicDBObject( "$exists", true ) ) ) );
+        assertEquals( Arrays.asList( "b", "d" ), find( query( "name", new BasicDBObject( "$exists", false ) ) ) );
+        assertEquals( Arrays.asList( "d" ), find( query( "address.city", new BasicDBObject( "$exists", true ) ) ) );
+    }
+
+    @Test
+    public void rangesOnlyMatchValuesOfTheSameType() {
+        insert( "a", "value", 1 );
+        insert( "b", "value", 2.5 );
+        insert( "c", "value", "5" );
+        insert( "d", "value", 3L );
+
+        assertEquals( Arrays.asList( "b", "d" ), find( query( "value", new BasicDBObject( "$gt", 1 ) ) ) );
+        assertEquals( Arrays.asList( "a", "b" ), find( query( "value", new BasicDBObject( "$gte", 1 ).append( "$lt", 3 ) ) ) );
+        assertEquals( Arrays.asList( "c" ), find( query( "value", new BasicDBObject( "$gt", "" ) ) ) );
+    }
+
+    @Test
+    public void orMatchesTheTypeQuery() {
+        store.insert( new BasicDBObject( CrudUtil.UUID_FIELD, "a" ).append( CrudUtil.CANONICAL_NAME, "com.example.Item" ) );
+        store.insert( new BasicDBObject( CrudUtil.UUID_FIELD, "b" ).append( TypeRegistry.TYPE_KEY, 7 ) );
+        store.insert( new BasicDBObject( CrudUtil.UUID_FIELD, "c" ).append( TypeRegistry.TYPE_KEY, 8 ) );
+
+        DBObject query = new BasicDBObject( "$or", Arrays.asList(
+            new BasicDBObject( CrudUtil.CANONICAL_NAME, "com.example.Item" ),
+            new BasicDBObject( TypeRegistry.TYPE_KEY, 7 ) ) );
+        assertEquals( Arrays.asList( "a", "b" ), find( query ) );
+    }
+
+    @Test
+    public void orKeysetQueryResumesAfterTiesOnTheSortKey() {
+        insert( "a", "score", 1 );
+        insert( "b", "score", 2 );
+        insert( "c", "score", 2 );
+        insert( "d", "score", 2 );
+        insert( "e", "score", 3 );
+
+        // the documents after (score 2, uuid b) in {score: 1, uuid: 1} order
+        DBObject ascending = new BasicDBObject( "$or", Arrays.asList(
+            new BasicDBObject( "score", new BasicDBObject( "$gt", 2 ) ),
+            new BasicDBObject( "score", 2 ).append( CrudUtil.UUID_FIELD, new BasicDBObject( "$gt", "b" ) ) ) );
+        assertEquals( Arrays.asList( "c", "d", "e" ), find( ascending, new BasicDBObject( "score", 1 ).append( CrudUtil.UUID_FIELD, 1 ) ) );
+
+        // the documents after (score 2, uuid c) in {score: -1, uuid: 1} order
+        DBObject descending = new BasicDBObject( "$or", Arrays.asList(
+            new BasicDBObject( "score", new BasicDBObject( "$lt", 2 ) ),
+            new BasicDBObject( "score", 2 ).append( CrudUtil.UUID_FIELD, new BasicDBObject( "$gt", "c" ) ) ) );
+        assertEquals( Arrays.asList( "d", "a" ), find( descending, new BasicDBObject( "score", -1 ).append( CrudUtil.UUID_FIELD, 1 ) ) );
+    }
+
+    /////////////
+    // sorting //
+    /////////////
+
+    @Test
+    public void sortOrdersTypesLikeTheServer() {
+        insert( "a", "value", new Date( 0 ) );
+        insert( "b", "value", true );
+        insert( "c", "value", "a" );
+        insert( "d", "value", "B" );
+        insert( "e", "value", 2 );
+        insert( "f", "value", 1.5 );
+        insert( "g", "value", null );
+        insert( "h" );
+        insert( "i", "value", 10L );
+
+        BasicDBObject sort = new BasicDBObject( "value", 1 ).append( CrudUtil.UUID_FIELD, 1 );
+        assertEquals( Arrays.asList( "g", "h", "f", "e", "i", "d", "c", "b", "a" ), find( new BasicDBObject(), sort ) );
+    }
+
+    @Test
+    public void sortByDottedPathAndDirection() {
+        insert( "a", "address", new BasicDBObject( "city", "Austin" ).append( "zip", 2 ) );
+        insert( "b", "address", new BasicDBObject( "city", "Boston" ).append( "zip", 1 ) );
+        insert( "c", "address", new BasicDBObject( "city", "Austin" ).append( "zip", 3 ) );
+
+        BasicDBObject sort = new BasicDBObject( "address.city", -1 ).append( "address.zip", 1 );
+        assertEquals( Arrays.asList( "b", "a", "c" ), find( new BasicDBObject(), sort ) );
+    }
+
+    /////////////
+    // updates //
+    /////////////
+
+    @Test
+    public void dottedSetCreatesEmbeddedDocuments() {
+        insert( "a", "name", "alpha" );
+
+        update( "a", new BasicDBObject( "$set", new BasicDBObject( "address.city", "Boston" ).append( "address.zip", 2 ) ) );
+
+        DBObject stored = get( "a" );
+        assertEquals( "alpha", stored.get( "name" ) );
+        assertEquals( "Boston", Documents.get( stored, "address.city" ) );
+        assertEquals( 2, ( (Number)Documents.get( stored, "address.zip" ) ).intValue() );
+    }
+
+    @Test
+    public void dottedSetReplacesOneField() {
+        insert( "a", "address", new BasicDBObject( "city", "Austin" ).append( "zip", 1 ) );
+
+        update( "a", new BasicDBObject( "$set", new BasicDBObject( "address.city", "Boston" ) ) );
+
+        DBObject address = (DBObject)get( "a" ).get( "address" );
+        assertEquals( Arrays.asList( "city", "zip" ), new ArrayList( address.keySet() ) );
+        assertEquals( "Boston", address.get( "city" ) );
+    }
+
+    @Test
+    public void dottedSetAddressesListElements() {
+        insert( "a", "items", list( new BasicDBObject( "name", "one" ), new BasicDBObject( "name", "two" ) ) );
+
+        update( "a", new BasicDBObject( "$set", new BasicDBObject( "items.1.name", "second" ).append( "items.3", "fourth" ) ) );
+
+        List items = (List)get( "a" ).get( "items" );
+        assertEquals( 4, items.size() );
+        assertEquals( "one", ( (DBObject)items.get( 0 ) ).get( "name" ) );
+        assertEquals( "second", ( (DBObject)items.get( 1 ) ).get( "name" ) );
+        assertNull( items.get( 2 ) );
+        assertEquals( "fourth", items.get( 3 ) );
+    }
+
+    @Test
+    public void dottedUnsetRemovesNestedFields() {
+        insert( "a", "address", new BasicDBObject( "city", "Austin" ).append( "zip", 1 ) );
+
+        update( "a", new BasicDBObject( "$unset", new BasicDBObject( "address.zip", "" ).append( "address.missing", "" ).append( "missing.path", "" ) ) );
+
+        DBObject stored = get( "a" );
+        DBObject address = (DBObject)stored.get( "address" );
+        assertEquals( Arrays.asList( "city" ), new ArrayList( address.keySet() ) );
+        assertFalse( stored.containsField( "missing" ) );
+    }
+
+    @Test
+    public void unsetOfAListElementLeavesNull() {
+        insert( "a", "items", list( "one", "two", "three" ) );
+
+        update( "a", new BasicDBObject( "$unset", new BasicDBObject( "items.1", "" ) ) );
+
+        assertEquals( list( "one", null, "three" ), get( "a" ).get( "items" ) );
+    }
+
+    @Test
+    public void setAndUnsetApplyTogether() {
+        insert( "a", "name", "alpha", CrudUtil.CANONICAL_NAME, "com.example.Item" );
+
+        update( "a", new BasicDBObject( "$set", new BasicDBObject( TypeRegistry.TYPE_KEY, 7 ) )
+                     .append( "$unset", new BasicDBObject( CrudUtil.CANONICAL_NAME, "" ) ) );
+
+        DBObject stored = get( "a" );
+        assertEquals( 7, ( (Number)stored.get( TypeRegistry.TYPE_KEY ) ).intValue() );
+        assertFalse( stored.containsField( CrudUtil.CANONICAL_NAME ) );
+        assertEquals( "alpha", stored.get( "name" ) );
+    }
+
+    @Test
+    public void upsertSeedsTheDocumentFromEqualityFields() {
+        UpdateResult result = store.update( new BasicDBObject( CrudUtil.UUID_FIELD, "a" ).append( "score", new BasicDBObject( "$gt", 1 ) ),
+                                            new BasicDBObject( "$set", new BasicDBObject( "name", "alpha" ) ),
+                                            true, false );
+        assertEquals( 1, result.getN() );
+        assertFalse( result.isUpdateOfExisting() );
+
+        DBObject stored = get( "a" );
+        assertEquals( "alpha", stored.get( "name" ) );
+        assertFalse( stored.containsField( "score" ) );
+    }
+
+    @Test
+    public void uniqueIndexRejectsDuplicates() {
+        store.createIndex( new BasicDBObject( "name", 1 ), new BasicDBObject( "unique", true ) );
+        insert( "a", "name", "alpha" );
+
+        try {
+            insert( "b", "name", "alpha" );
+            fail( "inserted a duplicate key" );
+        }
+        catch( MongoException ex ) {
+            assertEquals( DocumentStore.DUPLICATE_KEY, ex.getCode() );
+        }
+        assertTrue( find( query( CrudUtil.UUID_FIELD, "b" ) ).isEmpty() );
+    }
+
+    /////////////
+    // helpers //
+    /////////////
+
+    private void insert( String uuid, Object... fields ) {
+        BasicDBObject document = new BasicDBObject( CrudUtil.UUID_FIELD, uuid );
+        for( int index = 0; index < fields.length; index += 2 ) {
+            document.put( (String)fields[ index ], fields[ index + 1 ] );
+        }
+        store.insert( document );
+    }
+
+    private void update( String uuid, DBObject update ) {
+        UpdateResult result = store.update( new BasicDBObject( CrudUtil.UUID_FIELD, uuid ), update, false, false );
+        assertEquals( 1, result.getN() );
+    }
+
+    private DBObject get( String uuid ) {
+        DocumentCursor cursor = store.find( new BasicDBObject( CrudUtil.UUID_FIELD, uuid ), null );
+        try {
+            assertTrue( "no document " + uuid, cursor.hasNext() );
+            return cursor.next();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private List<String> find( DBObject query ) {
+        return find( query, new BasicDBObject( CrudUtil.UUID_FIELD, 1 ) );
+    }
+
+    private List<String> find( DBObject query, DBObject sort ) {
+        List<String> result = new ArrayList();
+        DocumentCursor cursor = store.find( query, null ).sort( sort );
+        try {
+            while( cursor.hasNext() ) {
+                result.add( (String)cursor.next().get( CrudUtil.UUID_FIELD ) );
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private static BasicDBObject query( String field, Object condition ) {
+        return new BasicDBObject( field, condition );
+    }
+
+    private static BasicDBObject in( Object... values ) {
+        return new BasicDBObject( "$in", list( values ) );
+    }
+
+    private static BasicDBList list( Object... values ) {
+        BasicDBList result = new BasicDBList();
+        result.addAll( Arrays.asList( values ) );
+        return result;
+    }
+}
@@ -0,0 +1,69 @@
+package com.galvin.mongodb;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.List;
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentsTest {
+    @Test
+    public void numbersAreEqualAcrossTypes() {
+        assertTrue( Documents.valuesEqual( 1, 1L ) );
+        assertTrue( Documents.valuesEqual( 2, 2.0 ) );
+        assertFalse( Documents.valuesEqual( 2, 2.5 ) );
+        assertEquals( Documents.keyOf( 2 ), Documents.keyOf( 2.0 ) );
+        assertEquals( Documents.keyOf( 2L ), Documents.keyOf( (short)2 ) );
+    }
+
+    @Test
+    public void binaryAndByteArraysAreEqual() {
+        byte[] data = { 1, 2, 3 };
+        assertTrue( Documents.valuesEqual( data.clone(), new Binary( data ) ) );
+        assertEquals( Documents.keyOf( data.clone() ), Documents.keyOf( new Binary( data ) ) );
+        assertFalse( Documents.valuesEqual( new Binary( (byte)4, data ), new Binary( data ) ) );
+    }
+
+    @Test
+    public void embeddedDocumentsCompareFieldOrder() {
+        DBObject left = new BasicDBObject( "a", 1 ).append( "b", 2 );
+        assertTrue( Documents.valuesEqual( left, new BasicDBObject( "a", 1L ).append( "b", 2 ) ) );
+        assertFalse( Documents.valuesEqual( left, new BasicDBObject( "b", 2 ).append( "a", 1 ) ) );
+    }
+
+    @Test
+    public void getCollectsValuesThroughArrays() {
+        BasicDBList items = new BasicDBList();
+        items.add( new BasicDBObject( "name", "one" ) );
+        items.add( "scalar" );
+        items.add( new BasicDBObject( "name", "two" ) );
+        DBObject document = new BasicDBObject( "items", items );
+
+        assertEquals( Arrays.asList( "one", "two" ), Documents.get( document, "items.name" ) );
+        assertEquals( "two", Documents.get( document, "items.2.name" ) );
+        assertSame( Documents.MISSING, Documents.get( document, "items.5" ) );
+        assertSame( Documents.MISSING, Documents.get( document, "other.name" ) );
+    }
+
+    @Test
+    public void copyIsDeep() {
+        BasicDBList list = new BasicDBList();
+        list.add( new BasicDBObject( "name", "one" ) );
+        DBObject original = new BasicDBObject( "list", list ).append( "array", new Object[]{ "x" } );
+
+        DBObject copy = Documents.copy( original );
+        ( (DBObject)( (List)copy.get( "list" ) ).get( 0 ) ).put( "name", "changed" );
+
+        assertEquals( "one", Documents.get( original, "list.0.name" ) );
+        assertNotSame( original.get( "list" ), copy.get( "list" ) );
+        assertTrue( copy.get( "array" ) instanceof BasicDBList );
+    }
+}
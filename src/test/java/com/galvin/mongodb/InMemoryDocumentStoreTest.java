@@ -0,0 +1,8 @@
+package com.galvin.mongodb;
+
+public class InMemoryDocumentStoreTest extends DocumentStoreTest {
+    @Override
+    protected DocumentStore createStore() {
+        return new InMemoryDocumentStore( "test" );
+    }
+}
@@ -0,0 +1,184 @@
+package com.galvin.mongodb;
+
+import com.galvin.db.PersistenceException;
+import com.mongodb.BasicDBObject;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeysetPagingTest {
+    private CrudUtil<Customer> customers;
+
+    @Before
+    public void setUp() throws Exception {
+        customers = new CrudUtil<Customer>( new InMemoryDocumentStore( "customers" ), Customer.class.getCanonicalName() );
+        for( int index = 0; index < 25; index++ ) {
+            Customer customer = new Customer( "customer" + ( index % 4 ) );
+            customer.age = index % 3;
+            customers.store( customer );
+        }
+    }
+
+    @Test
+    public void pagesSplitTiesOnTheSortKey() throws Exception {
+        for( int limit : new int[]{ 1, 2, 4, 7, 8, 9, 24, 25, 100 } ) {
+            for( boolean ascending : new boolean[]{ true, false } ) {
+                PageRequest request = new PageRequest( limit );
+                request.addSort( "age", ascending );
+                assertPagesMatchOneQuery( request );
+            }
+        }
+    }
+
+    @Test
+    public void pagesSplitTiesOnEverySortKey() throws Exception {
+        for( int limit : new int[]{ 1, 3, 5, 6 } ) {
+            PageRequest request = new PageRequest( limit );
+            request.addSort( "age", true );
+            request.addSort( "name", false );
+            assertPagesMatchOneQuery( request );
+        }
+    }
+
+    @Test
+    public void lastFullPageHasNoContinuation() throws Exception {
+        PageRequest request = new PageRequest( 5 );
+        request.addSort( "age", true );
+
+        int pages = 0;
+        Page<Customer> page;
+        do {
+            page = customers.retrieveAll( request );
+            assertEquals( 5, page.getItems().size() );
+            request = page.next( request );
+            pages++;
+        }
+        while( page.hasMore() );
+
+        assertEquals( 5, pages );
+        assertNull( page.getContinuation() );
+    }
+
+    @Test
+    public void objectsStoredBetweenPagesAreNotRepeated() throws Exception {
+        PageRequest request = new PageRequest( 4 );
+        request.addSort( "age", true );
+        Page<Customer> first = customers.retrieveAll( request );
+
+        Customer early = new Customer( "early" );
+        early.age = 0;
+        customers.store( early );
+
+        Set<String> seen = new HashSet();
+        for( Customer customer : first.getItems() ) {
+            seen.add( customer.getUuid() );
+        }
+        request = first.next( request );
+        while( request.getContinuation() != null ) {
+            Page<Customer> page = customers.retrieveAll( request );
+            for( Customer customer : page.getItems() ) {
+                assertTrue( "repeated " + customer.getUuid(), seen.add( customer.getUuid() ) );
+            }
+            request = page.next( request );
+        }
+        assertEquals( 26, seen.size() );
+    }
+
+    @Test
+    public void searchPagesOnlyMatchingObjects() throws Exception {
+        PageRequest request = new PageRequest( 2 );
+        request.addSort( "age", false );
+
+        List<Customer> found = new ArrayList();
+        Page<Customer> page;
+        do {
+            page = customers.search( new BasicDBObject( "name", "customer1" ), request );
+            found.addAll( page.getItems() );
+            request = page.next( request );
+        }
+        while( page.hasMore() );
+
+        assertEquals( customers.search( new BasicDBObject( "name", "customer1" ) ).size(), found.size() );
+        for( int index = 0; index < found.size(); index++ ) {
+            assertEquals( "customer1", found.get( index ).name );
+            assertTrue( index == 0 || found.get( index - 1 ).age >= found.get( index ).age );
+        }
+    }
+
+    @Test
+    public void continuationsOnlyWorkWithTheirSort() throws Exception {
+        PageRequest request = new PageRequest( 4 );
+        request.addSort( "age", true );
+        String continuation = customers.retrieveAll( request ).getContinuation();
+
+        PageRequest other = new PageRequest( 4, continuation );
+        other.addSort( "age", false );
+        try {
+            customers.retrieveAll( other );
+            fail( "used a continuation with another sort" );
+        }
+        catch( PersistenceException ex ) {
+            assertTrue( ex.getMessage().contains( "sort" ) );
+        }
+    }
+
+    @Test
+    public void sortFieldsMustHaveAValue() throws Exception {
+        customers.store( new Customer( null ) );
+
+        // a missing name sorts first, so it ends the first page
+        PageRequest request = new PageRequest( 1 );
+        request.addSort( "name", true );
+        try {
+            customers.retrieveAll( request );
+            fail( "paged on a missing sort field" );
+        }
+        catch( PersistenceException ex ) {
+            assertTrue( ex.getMessage().contains( "name" ) );
+        }
+    }
+
+    /**
+     * Pages through every object and checks that the pages, joined, are the
+     * same as the objects in the order one unlimited query returns them.
+     */
+    private void assertPagesMatchOneQuery( PageRequest request ) throws Exception {
+        PageRequest all = new PageRequest( 1000 );
+        for( String field : request.getSort().keySet() ) {
+            all.addSort( field, request.getSort().get( field ) > 0 );
+        }
+        Page<Customer> expected = customers.retrieveAll( all );
+        assertFalse( expected.hasMore() );
+
+        List<String> paged = new ArrayList();
+        Page<Customer> page;
+        do {
+            page = customers.retrieveAll( request );
+            assertTrue( page.getItems().size() <= request.getLimit() );
+            for( Customer customer : page.getItems() ) {
+                paged.add( customer.getUuid() );
+            }
+            request = page.next( request );
+        }
+        while( page.hasMore() );
+
+        assertEquals( request.toString(), uuids( expected.getItems() ), paged );
+    }
+
+    private static List<String> uuids( List<Customer> items ) {
+        List<String> result = new ArrayList();
+        for( Customer customer : items ) {
+            result.add( customer.getUuid() );
+        }
+        return result;
+    }
+}
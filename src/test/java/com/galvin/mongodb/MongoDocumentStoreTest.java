@@ -0,0 +1,34 @@
+package com.galvin.mongodb;
+
+import com.mongodb.DBCollection;
+import org.junit.After;
+import org.junit.Assume;
+
+/**
+ * Runs the DocumentStore cases against a MongoDB server, if one is named
+ * with -Dmongodb.test.host; otherwise they are skipped. The tests use, and
+ * drop, a collection in the MongoUtilsTest database.
+ */
+public class MongoDocumentStoreTest extends DocumentStoreTest {
+    private static final String HOST_PROPERTY = "mongodb.test.host";
+    private static final String DATABASE = "MongoUtilsTest";
+
+    private DBCollection collection;
+
+    @Override
+    protected DocumentStore createStore() throws Exception {
+        String host = System.getProperty( HOST_PROPERTY );
+        Assume.assumeTrue( "Set -D" + HOST_PROPERTY + " to test against a server", host != null );
+
+        collection = new MongoDbConnection( host, DATABASE ).getCollection( "documentStoreTest" );
+        collection.drop();
+        return new MongoDocumentStore( collection );
+    }
+
+    @After
+    public void tearDown() {
+        if( collection != null ) {
+            collection.drop();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.galvin.mongodb;
+
+public class PreferredCustomer extends Customer {
+    double discount;
+
+    public PreferredCustomer() {
+    }
+}
@@ -0,0 +1,7 @@
+package com.galvin.mongodb;
+
+public enum Status {
+    ACTIVE,
+    SUSPENDED,
+    CLOSED
+}